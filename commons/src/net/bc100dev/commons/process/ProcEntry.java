@@ -0,0 +1,377 @@
+package net.bc100dev.commons.process;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A process as read by the {@link ProcScanner}. The scanner reuses one entry per thread for all processes,
+ * so an entry is only valid during the {@link ProcScanner.Visitor#visit(ProcEntry)} call it is passed to;
+ * copy out what is needed beyond it.
+ * <p>
+ * The numeric fields are parsed straight from the read buffers and cost nothing to look at. The string
+ * fields ({@link #comm()}, {@link #cmdline()}, {@link #args()}) are created on every call.
+ * Fields of files that were not requested, or could not be read, are -1 (numbers) or empty (strings).
+ */
+public final class ProcEntry {
+
+    private long pid;
+    private char state;
+    private long ppid;
+    private long pgrp;
+    private long session;
+    private long minorFaults;
+    private long majorFaults;
+    private long utime;
+    private long stime;
+    private long priority;
+    private long nice;
+    private long numThreads;
+    private long startTime;
+    private long vsize;
+    private long rssPages;
+    private int processor;
+
+    private long uid;
+    private long gid;
+    private long vmRssKiB;
+    private long voluntarySwitches;
+    private long involuntarySwitches;
+
+    private final byte[] comm = new byte[64];
+    private int commLength;
+    private byte[] cmdline = new byte[256];
+    private int cmdlineLength;
+
+    ProcEntry() {
+    }
+
+    public long pid() {
+        return pid;
+    }
+
+    /**
+     * @return The state letter of {@code /proc/PID/stat}, like 'R', 'S' or 'Z'
+     */
+    public char state() {
+        return state;
+    }
+
+    public long ppid() {
+        return ppid;
+    }
+
+    public long pgrp() {
+        return pgrp;
+    }
+
+    public long session() {
+        return session;
+    }
+
+    public long minorFaults() {
+        return minorFaults;
+    }
+
+    public long majorFaults() {
+        return majorFaults;
+    }
+
+    /**
+     * @return The user CPU time, in clock ticks
+     */
+    public long utime() {
+        return utime;
+    }
+
+    /**
+     * @return The system CPU time, in clock ticks
+     */
+    public long stime() {
+        return stime;
+    }
+
+    public long priority() {
+        return priority;
+    }
+
+    public long nice() {
+        return nice;
+    }
+
+    public long numThreads() {
+        return numThreads;
+    }
+
+    /**
+     * @return The time the process started after boot, in clock ticks; together with the PID, it tells
+     * a process apart from a later one that got the same PID
+     */
+    public long startTime() {
+        return startTime;
+    }
+
+    /**
+     * @return The virtual memory size in bytes
+     */
+    public long vsize() {
+        return vsize;
+    }
+
+    public long rssPages() {
+        return rssPages;
+    }
+
+    /**
+     * @return The CPU the process last ran on
+     */
+    public int processor() {
+        return processor;
+    }
+
+    /**
+     * @return The real user ID, from {@code status}
+     */
+    public long uid() {
+        return uid;
+    }
+
+    /**
+     * @return The real group ID, from {@code status}
+     */
+    public long gid() {
+        return gid;
+    }
+
+    public long vmRssKiB() {
+        return vmRssKiB;
+    }
+
+    public long voluntarySwitches() {
+        return voluntarySwitches;
+    }
+
+    public long involuntarySwitches() {
+        return involuntarySwitches;
+    }
+
+    /**
+     * @return Whether the name of the process ({@code comm}) is the given one, without creating a String
+     */
+    public boolean commEquals(String name) {
+        if (name.length() != commLength)
+            return false;
+
+        for (int i = 0; i < commLength; i++) {
+            // a name that is not plain ASCII is compared as a String
+            if (comm[i] < 0)
+                return comm().equals(name);
+
+            if (comm[i] != name.charAt(i))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return The name of the process, at most 15 characters
+     */
+    public String comm() {
+        return new String(comm, 0, commLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return Whether the process has a command line; kernel threads and zombies do not
+     */
+    public boolean hasCmdline() {
+        return cmdlineLength > 0;
+    }
+
+    /**
+     * @return The command line with the arguments separated by spaces
+     */
+    public String cmdline() {
+        byte[] copy = new byte[cmdlineLength];
+        for (int i = 0; i < cmdlineLength; i++)
+            copy[i] = cmdline[i] == 0 ? (byte) ' ' : cmdline[i];
+
+        return new String(copy, StandardCharsets.UTF_8);
+    }
+
+    public String[] args() {
+        List<String> args = new ArrayList<>();
+        int start = 0;
+
+        for (int i = 0; i <= cmdlineLength; i++) {
+            if (i == cmdlineLength || cmdline[i] == 0) {
+                if (i > start || i < cmdlineLength)
+                    args.add(new String(cmdline, start, i - start, StandardCharsets.UTF_8));
+
+                start = i + 1;
+            }
+        }
+
+        return args.toArray(new String[0]);
+    }
+
+    void reset(long pid) {
+        this.pid = pid;
+        state = '?';
+        ppid = pgrp = session = -1;
+        minorFaults = majorFaults = utime = stime = -1;
+        priority = nice = numThreads = startTime = vsize = rssPages = -1;
+        processor = -1;
+        uid = gid = vmRssKiB = voluntarySwitches = involuntarySwitches = -1;
+        commLength = 0;
+        cmdlineLength = 0;
+    }
+
+    /**
+     * Parses {@code /proc/PID/stat}. The name may contain spaces and parentheses, so the fields after it
+     * are counted from the last ')'.
+     *
+     * @return False if the contents are not a stat line
+     */
+    boolean parseStat(ByteBuffer buff) {
+        int limit = buff.limit();
+        int open = -1, close = -1;
+
+        for (int i = buff.position(); i < limit; i++) {
+            byte b = buff.get(i);
+            if (b == '(' && open < 0)
+                open = i;
+            else if (b == ')')
+                close = i;
+        }
+
+        if (open < 0 || close < open || close + 2 >= limit)
+            return false;
+
+        commLength = Math.min(comm.length, close - open - 1);
+        for (int i = 0; i < commLength; i++)
+            comm[i] = buff.get(open + 1 + i);
+
+        state = (char) buff.get(close + 2);
+
+        // field 3 is the state, the numbers start at field 4 (ppid)
+        int field = 3;
+        int pos = close + 3;
+        while (pos < limit && field < 39) {
+            while (pos < limit && buff.get(pos) == ' ')
+                pos++;
+
+            int end = pos;
+            while (end < limit && buff.get(end) != ' ' && buff.get(end) != '\n')
+                end++;
+
+            field++;
+            long value = parseLong(buff, pos, end);
+
+            switch (field) {
+                case 4 -> ppid = value;
+                case 5 -> pgrp = value;
+                case 6 -> session = value;
+                case 10 -> minorFaults = value;
+                case 12 -> majorFaults = value;
+                case 14 -> utime = value;
+                case 15 -> stime = value;
+                case 18 -> priority = value;
+                case 19 -> nice = value;
+                case 20 -> numThreads = value;
+                case 22 -> startTime = value;
+                case 23 -> vsize = value;
+                case 24 -> rssPages = value;
+                case 39 -> processor = (int) value;
+                default -> {
+                }
+            }
+
+            pos = end;
+        }
+
+        return true;
+    }
+
+    /**
+     * Parses the few lines of {@code /proc/PID/status} that {@code stat} does not have.
+     */
+    void parseStatus(ByteBuffer buff) {
+        int limit = buff.limit();
+        int pos = buff.position();
+
+        while (pos < limit) {
+            int end = pos;
+            while (end < limit && buff.get(end) != '\n')
+                end++;
+
+            if (startsWith(buff, pos, end, "Uid:"))
+                uid = parseLong(buff, skipBlank(buff, pos + 4, end), end);
+            else if (startsWith(buff, pos, end, "Gid:"))
+                gid = parseLong(buff, skipBlank(buff, pos + 4, end), end);
+            else if (startsWith(buff, pos, end, "VmRSS:"))
+                vmRssKiB = parseLong(buff, skipBlank(buff, pos + 6, end), end);
+            else if (startsWith(buff, pos, end, "voluntary_ctxt_switches:"))
+                voluntarySwitches = parseLong(buff, skipBlank(buff, pos + 24, end), end);
+            else if (startsWith(buff, pos, end, "nonvoluntary_ctxt_switches:"))
+                involuntarySwitches = parseLong(buff, skipBlank(buff, pos + 27, end), end);
+
+            pos = end + 1;
+        }
+    }
+
+    void setCmdline(ByteBuffer buff) {
+        int length = buff.remaining();
+
+        // without its trailing NUL
+        if (length > 0 && buff.get(buff.position() + length - 1) == 0)
+            length--;
+
+        if (cmdline.length < length)
+            cmdline = new byte[Math.max(length, cmdline.length * 2)];
+
+        buff.get(buff.position(), cmdline, 0, length);
+        cmdlineLength = length;
+    }
+
+    private static boolean startsWith(ByteBuffer buff, int pos, int end, String prefix) {
+        if (end - pos < prefix.length())
+            return false;
+
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buff.get(pos + i) != prefix.charAt(i))
+                return false;
+        }
+
+        return true;
+    }
+
+    private static int skipBlank(ByteBuffer buff, int pos, int end) {
+        while (pos < end && (buff.get(pos) == ' ' || buff.get(pos) == '\t'))
+            pos++;
+
+        return pos;
+    }
+
+    /**
+     * Parses a decimal number that ends at the first byte that is not a digit.
+     */
+    private static long parseLong(ByteBuffer buff, int pos, int end) {
+        boolean negative = pos < end && buff.get(pos) == '-';
+        if (negative)
+            pos++;
+
+        long value = 0;
+        for (; pos < end; pos++) {
+            byte b = buff.get(pos);
+            if (b < '0' || b > '9')
+                break;
+
+            value = value * 10 + (b - '0');
+        }
+
+        return negative ? -value : value;
+    }
+
+}
@@ -0,0 +1,294 @@
+package net.bc100dev.commons.process;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the processes of the system straight from {@code /proc}, as a faster alternative to
+ * {@link ProcessHandle#allProcesses()}, whose {@code info()} reads the files again on every call.
+ * <p>
+ * For every process, the requested files ({@code stat}, {@code status}, {@code cmdline}) are read once into
+ * buffers that are reused for all processes, parsed into a reused {@link ProcEntry} and handed to a visitor,
+ * which can pick out what it needs without the scanner building a list of all of them. Processes that exit
+ * while they are read are skipped. Large process tables can be split between several threads.
+ * <pre>
+ * ProcScanner scanner = new ProcScanner().files(ProcScanner.STAT | ProcScanner.CMDLINE);
+ * scanner.scan(entry -> {
+ *     if (entry.uid() == 0 &amp;&amp; entry.hasCmdline())
+ *         System.out.println(entry.pid() + " " + entry.cmdline());
+ *     return true;
+ * });
+ * </pre>
+ */
+public class ProcScanner {
+
+    public static final int STAT = 1;
+    public static final int STATUS = 2;
+    public static final int CMDLINE = 4;
+
+    private static final int MIN_PIDS_PER_THREAD = 512;
+    private static final int MAX_BUFFER_SIZE = 1 << 21;
+
+    private final Path procRoot;
+    private volatile int files = STAT;
+    private volatile int threads = 1;
+
+    public ProcScanner() {
+        this(Path.of("/proc"));
+    }
+
+    /**
+     * @param procRoot The mount of procfs
+     */
+    public ProcScanner(Path procRoot) {
+        this.procRoot = procRoot;
+    }
+
+    /**
+     * @param files The files to read, a combination of {@link #STAT}, {@link #STATUS} and {@link #CMDLINE}
+     */
+    public ProcScanner files(int files) {
+        if ((files & (STAT | STATUS | CMDLINE)) == 0)
+            throw new IllegalArgumentException("No file to read");
+
+        this.files = files;
+        return this;
+    }
+
+    /**
+     * @param threads The most threads to split the processes between; with more than one, the visitor is
+     *                called from all of them at the same time
+     */
+    public ProcScanner threads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("At least one thread is needed");
+
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Reads all processes and passes them to the visitor, until it returns false.
+     *
+     * @return The number of processes visited
+     * @throws IOException If procfs cannot be listed
+     */
+    public int scan(Visitor visitor) throws IOException {
+        return scan(listPids(), visitor);
+    }
+
+    /**
+     * Reads the given processes and passes the ones that still exist to the visitor, until it returns false.
+     *
+     * @return The number of processes visited
+     */
+    public int scan(long[] pids, Visitor visitor) throws IOException {
+        int workers = Math.max(1, Math.min(threads, pids.length / MIN_PIDS_PER_THREAD));
+        int wanted = files;
+
+        if (workers == 1)
+            return new Worker(wanted, visitor, null).run(pids, 0, pids.length);
+
+        AtomicInteger stop = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(workers, r -> {
+            Thread thread = new Thread(r, "pfc-proc-scanner");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            List<Future<Integer>> futures = new ArrayList<>(workers);
+            int chunk = (pids.length + workers - 1) / workers;
+
+            for (int from = 0; from < pids.length; from += chunk) {
+                int begin = from;
+                int end = Math.min(pids.length, from + chunk);
+                futures.add(executor.submit(() -> new Worker(wanted, visitor, stop).run(pids, begin, end)));
+            }
+
+            int visited = 0;
+            for (Future<Integer> future : futures)
+                visited += future.get();
+
+            return visited;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Process scan interrupted", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException rtEx)
+                throw rtEx;
+
+            throw new IOException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads a single process.
+     *
+     * @return The entry, or null if there is no such process
+     */
+    public ProcEntry read(long pid) {
+        ProcEntry[] found = new ProcEntry[1];
+        new Worker(files, entry -> {
+            found[0] = entry;
+            return false;
+        }, null).run(new long[]{pid}, 0, 1);
+
+        return found[0];
+    }
+
+    /**
+     * @return The PIDs of the processes, in the order of the directory
+     */
+    public long[] listPids() throws IOException {
+        // cheaper than a DirectoryStream, which creates a Path for every entry
+        String[] names = procRoot.toFile().list();
+        if (names == null)
+            throw new IOException("Cannot list " + procRoot);
+
+        long[] pids = new long[names.length];
+        int count = 0;
+
+        for (String name : names) {
+            long pid = parsePid(name);
+            if (pid > 0)
+                pids[count++] = pid;
+        }
+
+        return Arrays.copyOf(pids, count);
+    }
+
+    private static long parsePid(String name) {
+        if (name.isEmpty() || name.length() > 10)
+            return -1;
+
+        long pid = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+
+            pid = pid * 10 + (c - '0');
+        }
+
+        return pid;
+    }
+
+    public interface Visitor {
+
+        /**
+         * @param entry The process, only valid during this call
+         * @return Whether to go on with the next process
+         */
+        boolean visit(ProcEntry entry);
+
+    }
+
+    /**
+     * Reads a range of the processes on one thread, with its own entry and buffer.
+     */
+    private final class Worker {
+
+        private final int files;
+        private final Visitor visitor;
+        private final AtomicInteger stop;
+        private final ProcEntry entry = new ProcEntry();
+        private final StringBuilder path = new StringBuilder(32);
+        private ByteBuffer buff = ByteBuffer.allocateDirect(4096);
+
+        private Worker(int files, Visitor visitor, AtomicInteger stop) {
+            this.files = files;
+            this.visitor = visitor;
+            this.stop = stop;
+        }
+
+        private int run(long[] pids, int from, int to) {
+            int visited = 0;
+
+            for (int i = from; i < to; i++) {
+                if (stop != null && stop.get() != 0)
+                    break;
+
+                if (!readProcess(pids[i]))
+                    continue;
+
+                visited++;
+                if (!visitor.visit(entry)) {
+                    if (stop != null)
+                        stop.set(1);
+
+                    break;
+                }
+            }
+
+            return visited;
+        }
+
+        /**
+         * @return False if the process is gone
+         */
+        private boolean readProcess(long pid) {
+            entry.reset(pid);
+
+            try {
+                if ((files & STAT) != 0 && !entry.parseStat(read(pid, "stat")))
+                    return false;
+
+                if ((files & STATUS) != 0)
+                    entry.parseStatus(read(pid, "status"));
+
+                if ((files & CMDLINE) != 0)
+                    entry.setCmdline(read(pid, "cmdline"));
+            } catch (IOException ex) {
+                // gone since it was listed, or ESRCH from a process that exits while it is read
+                return false;
+            }
+
+            return true;
+        }
+
+        /**
+         * Reads a file of a process into the buffer, growing it until the whole file fits.
+         */
+        private ByteBuffer read(long pid, String file) throws IOException {
+            path.setLength(0);
+            path.append(procRoot).append('/').append(pid).append('/').append(file);
+
+            try (FileChannel channel = FileChannel.open(Path.of(path.toString()))) {
+                buff.clear();
+
+                while (true) {
+                    if (channel.read(buff) < 0)
+                        break;
+
+                    if (!buff.hasRemaining()) {
+                        if (buff.capacity() >= MAX_BUFFER_SIZE)
+                            break;
+
+                        ByteBuffer grown = ByteBuffer.allocateDirect(buff.capacity() * 2);
+                        buff.flip();
+                        grown.put(buff);
+                        buff = grown;
+                    }
+                }
+            }
+
+            buff.flip();
+            return buff;
+        }
+
+    }
+
+}
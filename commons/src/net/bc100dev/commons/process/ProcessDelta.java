@@ -0,0 +1,21 @@
+package net.bc100dev.commons.process;
+
+import java.util.List;
+
+/**
+ * What changed in a {@link ProcessTable} with a refresh.
+ *
+ * @param spawned      The processes seen for the first time
+ * @param exited       The processes that are gone (or whose PID now belongs to another process)
+ * @param changed      The processes that kept running with a different state, CPU time, parent, nice
+ *                     value, thread count or resident size
+ * @param elapsedNanos How long the refresh took
+ */
+public record ProcessDelta(List<TrackedProcess> spawned, List<TrackedProcess> exited, List<TrackedProcess> changed,
+                           long elapsedNanos) {
+
+    public boolean isEmpty() {
+        return spawned.isEmpty() && exited.isEmpty() && changed.isEmpty();
+    }
+
+}
@@ -44,6 +44,14 @@ public class ProcessInvoke {
         ProcessBuilder pb = new ProcessBuilder(executable.getAbsolutePath());
         pb.command(args);
 
+        return invokeProcess(pb, waitTillExit);
+    }
+
+    /**
+     * Starts a process that has been set up by the caller, for when the command, the working directory
+     * or the environment need more than the executable and its arguments.
+     */
+    public static ProcessInvoke invokeProcess(ProcessBuilder pb, boolean waitTillExit) throws IOException {
         Process pc = pb.start();
         int exit = 0;
 
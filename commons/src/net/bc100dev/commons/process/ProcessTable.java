@@ -0,0 +1,236 @@
+package net.bc100dev.commons.process;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A table of the running processes that is refreshed incrementally, as a cheaper alternative to
+ * {@link ProcessData#listProcesses()} for callers that look at the processes over and over.
+ * <p>
+ * Processes are identified by their PID together with their start time, so a PID that is reused by a new
+ * process shows up as the exit of the old one and the spawn of the new one. A refresh only reads the
+ * {@code stat} file of the known processes for their changing attributes; the command line, executable
+ * and user are read for the processes that are new, and the command line and executable again for the
+ * processes whose name changed since the last refresh, which is the sign of an {@code execve}. Every
+ * refresh reports what it found as a {@link ProcessDelta}.
+ * <pre>
+ * ProcessTable table = new ProcessTable();
+ * while (running) {
+ *     ProcessDelta delta = table.refresh();
+ *     for (TrackedProcess process : delta.spawned())
+ *         System.out.println("+ " + process);
+ *     Thread.sleep(100);
+ * }
+ * </pre>
+ */
+public class ProcessTable {
+
+    private final Path procRoot;
+    private final ProcScanner statScanner;
+    private final ProcScanner detailScanner;
+    private final Map<Long, TrackedProcess> processes = new HashMap<>();
+    private final Map<Long, String> userNames = new HashMap<>();
+
+    private long generation;
+    private long[] newPids = new long[256];
+    private int newCount;
+    private long[] execPids = new long[64];
+    private int execCount;
+
+    public ProcessTable() {
+        this(Path.of("/proc"), 1);
+    }
+
+    /**
+     * @param procRoot The mount of procfs
+     * @param threads  The most threads to read the processes on
+     */
+    public ProcessTable(Path procRoot, int threads) {
+        this.procRoot = procRoot;
+        this.statScanner = new ProcScanner(procRoot).files(ProcScanner.STAT).threads(threads);
+        this.detailScanner = new ProcScanner(procRoot).files(ProcScanner.STAT | ProcScanner.CMDLINE).threads(threads);
+    }
+
+    /**
+     * Reads the processes and updates the table.
+     *
+     * @throws IOException If procfs cannot be listed
+     */
+    public synchronized ProcessDelta refresh() throws IOException {
+        long start = System.nanoTime();
+        long gen = ++generation;
+
+        List<TrackedProcess> spawned = new ArrayList<>();
+        List<TrackedProcess> exited = new ArrayList<>();
+        List<TrackedProcess> changed = new ArrayList<>();
+        newCount = 0;
+        execCount = 0;
+
+        // the visitor runs on several threads if the scanners have more than one
+        Object lock = new Object();
+
+        statScanner.scan(entry -> {
+            synchronized (lock) {
+                TrackedProcess process = processes.get(entry.pid());
+
+                if (process != null && process.getStartTime() == entry.startTime()) {
+                    process.seen = gen;
+
+                    // a new name means a new program, whose command line and executable are read below
+                    boolean execed = !entry.commEquals(process.getComm());
+                    if (execed) {
+                        execPids = add(execPids, execCount, entry.pid());
+                        execCount++;
+                    }
+
+                    if (process.update(entry) || execed)
+                        changed.add(process);
+                } else {
+                    newPids = add(newPids, newCount, entry.pid());
+                    newCount++;
+                }
+            }
+
+            return true;
+        });
+
+        detailScanner.scan(Arrays.copyOf(newPids, newCount), entry -> {
+            TrackedProcess process = create(entry);
+
+            synchronized (lock) {
+                process.seen = gen;
+
+                // the PID was reused, and the old process is gone
+                TrackedProcess previous = processes.put(process.getPid(), process);
+                if (previous != null)
+                    exited.add(previous);
+
+                spawned.add(process);
+            }
+
+            return true;
+        });
+
+        if (execCount > 0) {
+            detailScanner.scan(Arrays.copyOf(execPids, execCount), entry -> {
+                TrackedProcess process;
+                synchronized (lock) {
+                    process = processes.get(entry.pid());
+                }
+
+                // replaced by a process that got the same PID, which was already read as a new one
+                if (process == null || process.getStartTime() != entry.startTime())
+                    return true;
+
+                process.exec(entry.comm(), cmdline(entry), args(entry), execFile(procRoot.resolve(Long.toString(entry.pid()))));
+                return true;
+            });
+        }
+
+        Iterator<TrackedProcess> it = processes.values().iterator();
+        while (it.hasNext()) {
+            TrackedProcess process = it.next();
+            if (process.seen != gen) {
+                exited.add(process);
+                it.remove();
+            }
+        }
+
+        return new ProcessDelta(spawned, exited, changed, System.nanoTime() - start);
+    }
+
+    /**
+     * @return The process with the PID as of the last refresh, or null
+     */
+    public synchronized TrackedProcess get(long pid) {
+        return processes.get(pid);
+    }
+
+    /**
+     * @return The processes as of the last refresh
+     */
+    public synchronized List<TrackedProcess> getProcesses() {
+        return new ArrayList<>(processes.values());
+    }
+
+    public synchronized int size() {
+        return processes.size();
+    }
+
+    private static long[] add(long[] pids, int count, long pid) {
+        if (count == pids.length)
+            pids = Arrays.copyOf(pids, count * 2);
+
+        pids[count] = pid;
+        return pids;
+    }
+
+    /**
+     * Reads the attributes of a new process that only a refresh of {@code stat} does not cover.
+     */
+    private TrackedProcess create(ProcEntry entry) {
+        Path dir = procRoot.resolve(Long.toString(entry.pid()));
+
+        long uid = -1;
+        try {
+            uid = ((Number) Files.getAttribute(dir, "unix:uid")).longValue();
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException ignore) {
+            // exited in the meantime
+        }
+
+        TrackedProcess process = new TrackedProcess(entry.pid(), entry.startTime(), entry.comm(), cmdline(entry), args(entry),
+                execFile(dir), uid, userName(uid, dir));
+        process.initialize(entry);
+        return process;
+    }
+
+    private static String cmdline(ProcEntry entry) {
+        return entry.hasCmdline() ? entry.cmdline() : "-";
+    }
+
+    private static String[] args(ProcEntry entry) {
+        return entry.hasCmdline() ? entry.args() : new String[0];
+    }
+
+    private static File execFile(Path dir) {
+        try {
+            return Files.readSymbolicLink(dir.resolve("exe")).toFile();
+        } catch (IOException | UnsupportedOperationException ex) {
+            // kernel threads, or processes of other users
+            return new File("-");
+        }
+    }
+
+    private String userName(long uid, Path dir) {
+        if (uid < 0)
+            return "-";
+
+        synchronized (userNames) {
+            String name = userNames.get(uid);
+            if (name != null)
+                return name;
+        }
+
+        String name;
+        try {
+            name = Files.getOwner(dir).getName();
+        } catch (IOException | UnsupportedOperationException ex) {
+            return Long.toString(uid);
+        }
+
+        synchronized (userNames) {
+            userNames.put(uid, name);
+        }
+
+        return name;
+    }
+
+}
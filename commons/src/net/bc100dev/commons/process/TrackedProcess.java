@@ -0,0 +1,175 @@
+package net.bc100dev.commons.process;
+
+import java.io.File;
+
+/**
+ * A process of a {@link ProcessTable}. The start time and the user are read once when the process is
+ * first seen. The name, command line and executable are read again whenever the name in {@code stat}
+ * changes, which is what an {@code execve} does; the others are updated by every
+ * {@link ProcessTable#refresh()} in which the process is still running, and keep their last values after
+ * it has exited.
+ */
+public final class TrackedProcess {
+
+    private final long pid;
+    private final long startTime;
+    private volatile String comm;
+    private volatile String cmdline;
+    private volatile String[] args;
+    private volatile File execFile;
+    private final long uid;
+    private final String user;
+
+    private volatile long ppid;
+    private volatile char state;
+    private volatile long utime;
+    private volatile long stime;
+    private volatile long nice;
+    private volatile long numThreads;
+    private volatile long rssPages;
+    private volatile long cpuDelta;
+
+    /**
+     * The last refresh that saw the process, kept by the table.
+     */
+    long seen;
+
+    TrackedProcess(long pid, long startTime, String comm, String cmdline, String[] args, File execFile, long uid, String user) {
+        this.pid = pid;
+        this.startTime = startTime;
+        this.comm = comm;
+        this.cmdline = cmdline;
+        this.args = args;
+        this.execFile = execFile;
+        this.uid = uid;
+        this.user = user;
+    }
+
+    public long getPid() {
+        return pid;
+    }
+
+    /**
+     * @return The start time after boot in clock ticks, which tells the process apart from a later one
+     * with the same PID
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public String getComm() {
+        return comm;
+    }
+
+    /**
+     * @return The command line, or "-" for kernel threads and processes whose command line could not be read
+     */
+    public String getCmdline() {
+        return cmdline;
+    }
+
+    public String[] getArgs() {
+        return args.clone();
+    }
+
+    public File getExecFile() {
+        return execFile;
+    }
+
+    public long getUid() {
+        return uid;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public long getParentPid() {
+        return ppid;
+    }
+
+    public char getState() {
+        return state;
+    }
+
+    /**
+     * @return The user CPU time, in clock ticks
+     */
+    public long getUserTime() {
+        return utime;
+    }
+
+    /**
+     * @return The system CPU time, in clock ticks
+     */
+    public long getSystemTime() {
+        return stime;
+    }
+
+    /**
+     * @return The CPU time (user and system) since the previous refresh, in clock ticks
+     */
+    public long getCpuDelta() {
+        return cpuDelta;
+    }
+
+    public long getNice() {
+        return nice;
+    }
+
+    public long getNumThreads() {
+        return numThreads;
+    }
+
+    public long getRssPages() {
+        return rssPages;
+    }
+
+    public ProcessInfo toInfo() {
+        return new ProcessInfo(pid, user, execFile, cmdline, getArgs());
+    }
+
+    /**
+     * Takes the changing attributes of a scan.
+     *
+     * @return Whether any of them changed
+     */
+    boolean update(ProcEntry entry) {
+        long cpu = entry.utime() + entry.stime();
+        long previous = utime + stime;
+
+        boolean changed = entry.ppid() != ppid || entry.state() != state || cpu != previous
+                || entry.nice() != nice || entry.numThreads() != numThreads || entry.rssPages() != rssPages;
+
+        cpuDelta = utime < 0 ? 0 : cpu - previous;
+        ppid = entry.ppid();
+        state = entry.state();
+        utime = entry.utime();
+        stime = entry.stime();
+        nice = entry.nice();
+        numThreads = entry.numThreads();
+        rssPages = entry.rssPages();
+        return changed;
+    }
+
+    /**
+     * Takes the attributes that an {@code execve} replaces.
+     */
+    void exec(String comm, String cmdline, String[] args, File execFile) {
+        this.comm = comm;
+        this.cmdline = cmdline;
+        this.args = args;
+        this.execFile = execFile;
+    }
+
+    void initialize(ProcEntry entry) {
+        utime = -1;
+        update(entry);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d %s (%s) %c", pid, comm, user, state);
+    }
+
+}
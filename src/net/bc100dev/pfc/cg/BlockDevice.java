@@ -0,0 +1,31 @@
+package net.bc100dev.pfc.cg;
+
+/**
+ * A block device as listed in {@code /sys/block}.
+ *
+ * @param name  The kernel name, like "nvme0n1" or "sda2"
+ * @param major The major device number
+ * @param minor The minor device number
+ * @param disk  The name of the whole disk; the same as {@code name} unless this is a partition
+ */
+public record BlockDevice(String name, int major, int minor, String disk) {
+
+    public boolean isPartition() {
+        return !name.equals(disk);
+    }
+
+    /**
+     * @return The device number packed with {@link CgFileParser#device(int, int)}
+     */
+    public long device() {
+        return CgFileParser.device(major, minor);
+    }
+
+    /**
+     * @return The device number as the io controller files take it, like "259:0"
+     */
+    public String id() {
+        return major + ":" + minor;
+    }
+
+}
@@ -0,0 +1,272 @@
+package net.bc100dev.pfc.cg;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps device files, kernel names, device numbers and paths on mounted file systems to the block devices
+ * the io controller takes, without shelling out to {@code lsblk}.
+ * <p>
+ * The devices are read from {@code /sys/block} (including the partitions of every disk), the mounts from
+ * {@code /proc/self/mountinfo}. Both are cached, and so is every resolved name; a lookup that misses
+ * reads the tables again (at most once a second), which picks up hot-plugged disks and new mounts.
+ */
+public class BlockDeviceResolver {
+
+    public static final Path SYS_BLOCK = Path.of("/sys/block");
+    public static final Path MOUNT_INFO = Path.of("/proc/self/mountinfo");
+
+    private static final long REFRESH_INTERVAL_NANOS = 1_000_000_000L;
+
+    private static BlockDeviceResolver instance;
+
+    private final Path sysBlock;
+    private final Path mountInfo;
+    private final Map<String, BlockDevice> resolved = new ConcurrentHashMap<>();
+
+    private volatile Tables tables;
+    private long lastRefresh;
+
+    /**
+     * Resolves against other sysfs and mountinfo files than the ones of this system.
+     *
+     * @param sysBlock  The directory with one directory per disk, like {@link #SYS_BLOCK}
+     * @param mountInfo A mount table in the format of {@link #MOUNT_INFO}
+     */
+    public BlockDeviceResolver(Path sysBlock, Path mountInfo) {
+        this.sysBlock = sysBlock;
+        this.mountInfo = mountInfo;
+    }
+
+    /**
+     * @return The shared resolver of this system
+     */
+    public static synchronized BlockDeviceResolver get() {
+        if (instance == null)
+            instance = new BlockDeviceResolver(SYS_BLOCK, MOUNT_INFO);
+
+        return instance;
+    }
+
+    /**
+     * Drops the cached devices, mounts and resolved names.
+     */
+    public synchronized void invalidate() {
+        tables = null;
+        resolved.clear();
+    }
+
+    /**
+     * @return All whole disks, in the order of {@code /sys/block}
+     */
+    public List<BlockDevice> getDisks() throws IOException {
+        List<BlockDevice> disks = new ArrayList<>();
+        for (BlockDevice device : tables().byName.values()) {
+            if (!device.isPartition())
+                disks.add(device);
+        }
+
+        return Collections.unmodifiableList(disks);
+    }
+
+    /**
+     * @return The device, or null if there is none with that number
+     */
+    public BlockDevice byDevice(int major, int minor) throws IOException {
+        long device = CgFileParser.device(major, minor);
+
+        BlockDevice found = tables().byDevice.get(device);
+        if (found == null && refresh())
+            found = tables().byDevice.get(device);
+
+        return found;
+    }
+
+    /**
+     * Resolves a block device by
+     * <ul>
+     *     <li>its number, like "259:0",</li>
+     *     <li>its device file, like "/dev/nvme0n1" or "/dev/disk/by-label/data",</li>
+     *     <li>its kernel name, like "nvme0n1", or</li>
+     *     <li>any file or directory on a mounted file system, like "/var/lib/postgresql".</li>
+     * </ul>
+     *
+     * @return The device, which may be a partition
+     * @throws IOException If the name does not lead to a block device
+     */
+    public BlockDevice resolve(String spec) throws IOException {
+        BlockDevice device = resolved.get(spec);
+        if (device != null)
+            return device;
+
+        device = lookup(spec);
+        if (device == null && refresh())
+            device = lookup(spec);
+
+        if (device == null)
+            throw new IOException(String.format("\"%s\" is not a known block device", spec));
+
+        resolved.put(spec, device);
+        return device;
+    }
+
+    /**
+     * Resolves like {@link #resolve(String)}, but returns the whole disk of a partition, since the io
+     * controller only takes whole disks.
+     */
+    public BlockDevice resolveDisk(String spec) throws IOException {
+        BlockDevice device = resolve(spec);
+        if (!device.isPartition())
+            return device;
+
+        BlockDevice disk = tables().byName.get(device.disk());
+        if (disk == null)
+            throw new IOException(String.format("The disk of \"%s\" is gone", device.name()));
+
+        return disk;
+    }
+
+    private BlockDevice lookup(String spec) throws IOException {
+        Tables tab = tables();
+
+        int colon = spec.indexOf(':');
+        if (colon > 0 && spec.indexOf('/') == -1) {
+            try {
+                return tab.byDevice.get(CgFileParser.device(Integer.parseInt(spec.substring(0, colon)),
+                        Integer.parseInt(spec.substring(colon + 1))));
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+
+        if (!spec.startsWith("/"))
+            return tab.byName.get(spec);
+
+        Path path = Path.of(spec);
+        if (!Files.exists(path))
+            return null;
+
+        // a device node carries the device number itself
+        long rdev = decode(Files.getAttribute(path, "unix:rdev"));
+        if (rdev != 0) {
+            BlockDevice device = tab.byDevice.get(rdev);
+            return device != null ? device : tab.byName.get(path.toRealPath().getFileName().toString());
+        }
+
+        // anything else is on a file system: find the device it is mounted from
+        long dev = decode(Files.getAttribute(path, "unix:dev"));
+        BlockDevice device = tab.byDevice.get(dev);
+        if (device != null)
+            return device;
+
+        // file systems like btrfs report an anonymous device number, the mount source still names the disk
+        String source = tab.mountSources.get(dev);
+        if (source != null && source.startsWith("/dev/") && !source.equals(spec))
+            return lookup(source);
+
+        return null;
+    }
+
+    /**
+     * Splits a {@code dev_t} as the C library does, into the packed form of {@link CgFileParser#device(int, int)}.
+     */
+    private static long decode(Object attribute) {
+        long dev = (Long) attribute;
+        long major = ((dev >>> 8) & 0xfff) | ((dev >>> 32) & 0xfffff000L);
+        long minor = (dev & 0xff) | ((dev >>> 12) & 0xffffff00L);
+
+        return CgFileParser.device((int) major, (int) minor);
+    }
+
+    private Tables tables() throws IOException {
+        Tables tab = tables;
+        if (tab != null)
+            return tab;
+
+        synchronized (this) {
+            if (tables == null) {
+                tables = read();
+                lastRefresh = System.nanoTime();
+            }
+
+            return tables;
+        }
+    }
+
+    /**
+     * Reads the tables again, unless they were read within the last second.
+     *
+     * @return Whether they were read again
+     */
+    private synchronized boolean refresh() throws IOException {
+        if (tables != null && System.nanoTime() - lastRefresh < REFRESH_INTERVAL_NANOS)
+            return false;
+
+        tables = read();
+        lastRefresh = System.nanoTime();
+        return true;
+    }
+
+    private Tables read() throws IOException {
+        Map<String, BlockDevice> byName = new LinkedHashMap<>();
+        Map<Long, BlockDevice> byDevice = new HashMap<>();
+
+        try (DirectoryStream<Path> disks = Files.newDirectoryStream(sysBlock)) {
+            for (Path diskDir : disks) {
+                String disk = diskDir.getFileName().toString();
+                add(byName, byDevice, diskDir, disk, disk);
+
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(diskDir,
+                        entry -> Files.exists(entry.resolve("partition")))) {
+                    for (Path partDir : entries)
+                        add(byName, byDevice, partDir, partDir.getFileName().toString(), disk);
+                }
+            }
+        }
+
+        Map<Long, String> mountSources = new HashMap<>();
+        for (CgMountResolver.MountEntry entry : CgMountResolver.readMountTable(mountInfo))
+            mountSources.putIfAbsent(entry.device(), entry.source());
+
+        return new Tables(byName, byDevice, mountSources);
+    }
+
+    private static void add(Map<String, BlockDevice> byName, Map<Long, BlockDevice> byDevice, Path dir,
+                            String name, String disk) {
+        String dev;
+        try {
+            dev = Files.readString(dir.resolve("dev")).trim();
+        } catch (IOException ex) {
+            // not a device, or removed while reading
+            return;
+        }
+
+        int colon = dev.indexOf(':');
+        if (colon == -1)
+            return;
+
+        try {
+            BlockDevice device = new BlockDevice(name, Integer.parseInt(dev.substring(0, colon)),
+                    Integer.parseInt(dev.substring(colon + 1)), disk);
+
+            byName.put(name, device);
+            byDevice.put(device.device(), device);
+        } catch (NumberFormatException ignore) {
+            // not a device number
+        }
+    }
+
+    private record Tables(Map<String, BlockDevice> byName, Map<Long, BlockDevice> byDevice,
+                          Map<Long, String> mountSources) {
+    }
+
+}
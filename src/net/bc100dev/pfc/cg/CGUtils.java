@@ -53,43 +53,19 @@ class CGUtils {
         fos.close();
     }
 
-    private static String[] readMountsFile() throws IOException {
-        return readFile(new File("/proc/mounts")).split("\n");
-    }
-
+    /**
+     * Finds the first mounted cgroup hierarchy. The mount table is cached by {@link CgMountResolver}.
+     */
     public static Path findCgMountPath() throws IOException {
-        String[] lines = readMountsFile();
-        for (String line : lines) {
-            String[] splits = line.split(" ", 6);
-            String device = splits[0];
-            Path path = new File(splits[1]).toPath();
-            String fs = splits[2];
-
-            if (fs.contains("cgroup") || device.contains("cgroup"))
-                return path;
-        }
-
-        return null;
+        return CgMountResolver.getFirstMount();
     }
 
+    /**
+     * Finds a mounted cgroup hierarchy. With {@code v2} set, only the unified (cgroup2) mount gets
+     * returned, which also covers hybrid setups that mount v1 controllers next to it.
+     */
     public static Path findCgMountPath(boolean v2) throws IOException {
-        String[] lines = readMountsFile();
-        for (String line : lines) {
-            String[] splits = line.split(" ", 6);
-            String device = splits[0];
-            Path path = new File(splits[1]).toPath();
-            String fs = splits[2];
-
-            if (fs.contains("cgroup") || device.contains("cgroup")) {
-                if (v2) {
-                    if (fs.contains("cgroup2") || device.contains("cgroup2"))
-                        return path;
-                } else
-                    return path;
-            }
-        }
-
-        return null;
+        return v2 ? CgMountResolver.getUnifiedMount() : CgMountResolver.getFirstMount();
     }
 
 }
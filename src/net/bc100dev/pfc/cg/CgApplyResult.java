@@ -0,0 +1,102 @@
+package net.bc100dev.pfc.cg;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * What applying a set of {@link CgProfile}s changed (or, on a dry run, would have changed).
+ */
+public class CgApplyResult {
+
+    private final List<Change> changes;
+    private final Map<String, Exception> errors;
+    private final int reads;
+    private final int writes;
+    private final boolean dryRun;
+    private final long elapsedNanos;
+
+    CgApplyResult(List<Change> changes, Map<String, Exception> errors, int reads, int writes, boolean dryRun, long elapsedNanos) {
+        this.changes = Collections.unmodifiableList(changes);
+        this.errors = Collections.unmodifiableMap(errors);
+        this.reads = reads;
+        this.writes = writes;
+        this.dryRun = dryRun;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return The changed values, grouped by control group; created groups have a null file
+     */
+    public List<Change> getChanges() {
+        return changes;
+    }
+
+    /**
+     * @return The errors by control group; the groups below a failed group are not applied at all
+     */
+    public Map<String, Exception> getErrors() {
+        return errors;
+    }
+
+    public int getReads() {
+        return reads;
+    }
+
+    public int getWrites() {
+        return writes;
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public boolean isUnchanged() {
+        return changes.isEmpty() && errors.isEmpty();
+    }
+
+    /**
+     * Combines the results of applying several batches one after the other.
+     */
+    static CgApplyResult merge(List<CgApplyResult> results) {
+        List<Change> changes = new ArrayList<>();
+        Map<String, Exception> errors = new TreeMap<>();
+        int reads = 0, writes = 0;
+        boolean dryRun = false;
+        long elapsed = 0;
+
+        for (CgApplyResult result : results) {
+            for (Change change : result.changes) {
+                // on a dry run, every batch would create the same missing groups
+                if (change.file() != null || !changes.contains(change))
+                    changes.add(change);
+            }
+
+            errors.putAll(result.errors);
+            reads += result.reads;
+            writes += result.writes;
+            dryRun |= result.dryRun;
+            elapsed += result.elapsedNanos;
+        }
+
+        return new CgApplyResult(changes, errors, reads, writes, dryRun, elapsed);
+    }
+
+    /**
+     * A single changed control file.
+     *
+     * @param cgroup   The control group
+     * @param file     The control file, or null if the group was created
+     * @param oldValue The value before, or null if the group was created
+     * @param newValue The value written
+     */
+    public record Change(String cgroup, String file, String oldValue, String newValue) {
+    }
+
+}
@@ -0,0 +1,517 @@
+package net.bc100dev.pfc.cg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only, write-ahead journal of the changes made to control files, which proves what value was
+ * in force at any moment.
+ * <p>
+ * While a journal is active ({@link ControlGroup2#setJournal(CgAuditJournal)}), every write through
+ * {@link ControlGroup2} first appends a compact binary record (timestamp, group, file, old and new value)
+ * and waits until it is durable, and records a failure entry if the write then fails. The records go into
+ * memory-mapped segment files of a fixed size; a full segment is closed and a new one started, and the
+ * oldest segments are deleted once all of them take more than the retention size.
+ * <p>
+ * Appending only copies the record into the mapped segment under a short lock. Making it durable is
+ * shared through group commit: the first writer that needs its record on disk forces everything appended
+ * so far, and all writers whose records were part of that range return without forcing on their own.
+ * <p>
+ * A record is laid out as {@code length, crc32c} followed by the body {@code seq, ref, micros, kind,
+ * cgroup, file, old, new}, the strings with a length prefix (-1 for null). A length of 0 marks the end of
+ * the records of a segment; a torn record at the end is detected by its checksum and overwritten.
+ */
+public class CgAuditJournal implements AutoCloseable {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 16L << 20;
+    public static final long DEFAULT_RETENTION = 256L << 20;
+
+    private static final int MAGIC = 0x50464A31; // "PFJ1"
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER = 8;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".pfj";
+
+    private final Path dir;
+    private final int segmentSize;
+    private final long retention;
+
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final CRC32C crc = new CRC32C();
+    private final Deque<Path> segments = new ArrayDeque<>();
+    private MappedByteBuffer active;
+    private long nextSeq = 1;
+    private long appendedSeq;
+    private int forcedPosition;
+    private boolean closed;
+
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final Condition committed = commitLock.newCondition();
+    private long durableSeq;
+    private boolean flushing;
+
+    private CgAuditJournal(Path dir, long segmentSize, long retention) {
+        if (segmentSize < 4096 || segmentSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Segment size must be between 4 KiB and 2 GiB");
+
+        if (retention < segmentSize)
+            throw new IllegalArgumentException("Retention must hold at least one segment");
+
+        this.dir = dir;
+        this.segmentSize = (int) segmentSize;
+        this.retention = retention;
+    }
+
+    public static CgAuditJournal open(Path dir) throws IOException {
+        return open(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_RETENTION);
+    }
+
+    /**
+     * Opens a journal directory, creating it if needed, and continues after the last valid record.
+     *
+     * @param segmentSize The size of every segment file in bytes
+     * @param retention   The most bytes all segments together may take before the oldest ones are deleted
+     */
+    public static CgAuditJournal open(Path dir, long segmentSize, long retention) throws IOException {
+        CgAuditJournal journal = new CgAuditJournal(dir, segmentSize, retention);
+        journal.recover();
+        return journal;
+    }
+
+    public Path getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Appends a change without waiting for it to become durable.
+     *
+     * @return The sequence number of the record, to pass to {@link #commit(long)}
+     */
+    public long append(String cgroup, String file, String oldValue, String newValue) throws IOException {
+        return append(CgAuditRecord.Kind.CHANGE, 0, cgroup, file, oldValue, newValue);
+    }
+
+    /**
+     * Appends the failure of a change without waiting for it to become durable.
+     *
+     * @param ref The sequence number of the change that failed
+     */
+    public long appendFailure(long ref, String cgroup, String file, String newValue) throws IOException {
+        return append(CgAuditRecord.Kind.FAILED, ref, cgroup, file, null, newValue);
+    }
+
+    /**
+     * Waits until the record with the sequence number (and all before it) is on disk, forcing the
+     * appended records if no other thread is doing so already.
+     */
+    public void commit(long seq) throws IOException {
+        commitLock.lock();
+        try {
+            while (durableSeq < seq) {
+                if (flushing) {
+                    committed.awaitUninterruptibly();
+                    continue;
+                }
+
+                flushing = true;
+                long flushed = -1;
+                commitLock.unlock();
+
+                try {
+                    flushed = force();
+                } finally {
+                    commitLock.lock();
+                    flushing = false;
+
+                    if (flushed > durableSeq)
+                        durableSeq = flushed;
+
+                    committed.signalAll();
+                }
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Forces the records appended to the active segment since the last force.
+     *
+     * @return The sequence number of the last record that is durable now
+     */
+    private long force() throws IOException {
+        MappedByteBuffer segment;
+        int from, to;
+        long seq;
+
+        appendLock.lock();
+        try {
+            if (closed)
+                throw new IOException("The journal is closed");
+
+            segment = active;
+            from = forcedPosition;
+            to = active.position();
+            seq = appendedSeq;
+        } finally {
+            appendLock.unlock();
+        }
+
+        if (to > from)
+            segment.force(from, to - from);
+
+        appendLock.lock();
+        try {
+            // the segment may have been rolled (and forced as a whole) in the meantime
+            if (segment == active && to > forcedPosition)
+                forcedPosition = to;
+        } finally {
+            appendLock.unlock();
+        }
+
+        return seq;
+    }
+
+    private long append(CgAuditRecord.Kind kind, long ref, String cgroup, String file, String oldValue,
+                        String newValue) throws IOException {
+        byte[] cg = cgroup.getBytes(StandardCharsets.UTF_8);
+        byte[] fl = file.getBytes(StandardCharsets.UTF_8);
+        byte[] old = oldValue == null ? null : oldValue.getBytes(StandardCharsets.UTF_8);
+        byte[] nw = newValue == null ? null : newValue.getBytes(StandardCharsets.UTF_8);
+
+        int body = 8 + 8 + 8 + 1 + 4 + cg.length + 4 + fl.length + 4 + (old == null ? 0 : old.length)
+                + 4 + (nw == null ? 0 : nw.length);
+        int size = RECORD_HEADER + body;
+
+        if (HEADER_SIZE + size + 4 > segmentSize)
+            throw new IOException(String.format("A record of %d bytes does not fit into a segment", size));
+
+        Instant now = Instant.now();
+        long micros = now.getEpochSecond() * 1_000_000 + now.getNano() / 1000;
+
+        appendLock.lock();
+        try {
+            if (closed)
+                throw new IOException("The journal is closed");
+
+            // keep room for the end marker behind the record
+            if (active.position() + size + 4 > segmentSize)
+                roll();
+
+            long seq = nextSeq++;
+            int start = active.position();
+
+            active.position(start + RECORD_HEADER);
+            active.putLong(seq);
+            active.putLong(ref);
+            active.putLong(micros);
+            active.put((byte) kind.ordinal());
+            putBytes(active, cg);
+            putBytes(active, fl);
+            putBytes(active, old);
+            putBytes(active, nw);
+
+            crc.reset();
+            crc.update(active.slice(start + RECORD_HEADER, body));
+
+            active.putInt(start, size);
+            active.putInt(start + 4, (int) crc.getValue());
+            active.putInt(active.position(), 0);
+
+            appendedSeq = seq;
+            return seq;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private static void putBytes(ByteBuffer buff, byte[] bytes) {
+        if (bytes == null) {
+            buff.putInt(-1);
+            return;
+        }
+
+        buff.putInt(bytes.length);
+        buff.put(bytes);
+    }
+
+    /**
+     * Closes the active segment with everything in it forced to disk and starts a new one, then applies
+     * the retention.
+     */
+    private void roll() throws IOException {
+        active.force();
+        startSegment(nextSeq);
+
+        long total = (long) segments.size() * segmentSize;
+        while (segments.size() > 1 && total > retention) {
+            Files.deleteIfExists(segments.removeFirst());
+            total -= segmentSize;
+        }
+    }
+
+    private void startSegment(long firstSeq) throws IOException {
+        Path path = dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSeq, SEGMENT_SUFFIX));
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            active = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+
+        active.putInt(0, MAGIC);
+        active.putInt(4, segmentSize);
+        active.position(HEADER_SIZE);
+        active.force(0, HEADER_SIZE);
+
+        forcedPosition = HEADER_SIZE;
+        segments.addLast(path);
+    }
+
+    /**
+     * Finds the segments and the end of the last one, or starts the first segment.
+     */
+    private void recover() throws IOException {
+        Files.createDirectories(dir);
+        segments.addAll(listSegments(dir));
+
+        if (segments.isEmpty()) {
+            startSegment(1);
+            return;
+        }
+
+        Path last = segments.getLast();
+        long firstSeq;
+        try {
+            firstSeq = Long.parseLong(name(last).substring(SEGMENT_PREFIX.length()));
+        } catch (NumberFormatException ex) {
+            throw new IOException("Invalid segment name: " + last, ex);
+        }
+
+        long[] lastSeq = {0};
+        Predicate<CgAuditRecord> tracker = record -> {
+            lastSeq[0] = record.seq();
+            return true;
+        };
+
+        try (FileChannel channel = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+
+            if (size != segmentSize) {
+                // written with another segment size: leave it as it is and continue in a new one
+                readSegment(last, tracker);
+                nextSeq = Math.max(firstSeq + 1, lastSeq[0] + 1);
+                appendedSeq = durableSeq = nextSeq - 1;
+                startSegment(nextSeq);
+                return;
+            }
+
+            MappedByteBuffer buff = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (buff.getInt(0) != MAGIC)
+                throw new IOException("Not a journal segment: " + last);
+
+            int end = scan(buff, tracker, null);
+
+            // cut off a torn record, if any
+            active = buff;
+            active.position(end);
+            active.putInt(end, 0);
+            forcedPosition = end;
+
+            nextSeq = Math.max(firstSeq, lastSeq[0] + 1);
+            appendedSeq = durableSeq = nextSeq - 1;
+        }
+    }
+
+    /**
+     * Forces the active segment and stops appending. Writes through {@link ControlGroup2} fail until
+     * the journal is replaced.
+     */
+    @Override
+    public void close() throws IOException {
+        appendLock.lock();
+        try {
+            if (closed)
+                return;
+
+            active.force();
+            closed = true;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Reads all records of a journal directory, oldest first, passing them to the visitor until it
+     * returns false. The journal may be open for appending at the same time.
+     */
+    public static void read(Path dir, Predicate<CgAuditRecord> visitor) throws IOException {
+        for (Path segment : listSegments(dir)) {
+            if (!readSegment(segment, visitor))
+                return;
+        }
+    }
+
+    /**
+     * @param cgroup      The group (including its descendants), or null for all
+     * @param file        The control file, or null for all
+     * @param fromMicros  The earliest time, in microseconds since the epoch
+     * @param toMicros    The latest time
+     * @return The matching records, oldest first
+     */
+    public static List<CgAuditRecord> query(Path dir, String cgroup, String file, long fromMicros, long toMicros) throws IOException {
+        List<CgAuditRecord> list = new ArrayList<>();
+
+        read(dir, record -> {
+            if (record.timestampMicros() > toMicros)
+                return false;
+
+            if (record.timestampMicros() >= fromMicros && matches(record, cgroup, file))
+                list.add(record);
+
+            return true;
+        });
+
+        return list;
+    }
+
+    /**
+     * Tells which value of a control file was in force at a moment, from the last change before it that
+     * did not fail.
+     *
+     * @return The value, or null if the journal has no (successful) change of the file before the moment
+     */
+    public static String valueAt(Path dir, String cgroup, String file, long atMicros) throws IOException {
+        List<CgAuditRecord> changes = query(dir, cgroup, file, Long.MIN_VALUE, atMicros);
+
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            CgAuditRecord change = changes.get(i);
+            if (change.kind() != CgAuditRecord.Kind.CHANGE || !change.cgroup().equals(cgroup))
+                continue;
+
+            boolean failed = false;
+            for (int j = i + 1; j < changes.size() && !failed; j++)
+                failed = changes.get(j).kind() == CgAuditRecord.Kind.FAILED && changes.get(j).ref() == change.seq();
+
+            if (!failed)
+                return change.newValue();
+        }
+
+        return null;
+    }
+
+    private static boolean matches(CgAuditRecord record, String cgroup, String file) {
+        if (file != null && !record.file().equals(file))
+            return false;
+
+        return cgroup == null || record.cgroup().equals(cgroup) || record.cgroup().startsWith(cgroup + "/");
+    }
+
+    private static List<Path> listSegments(Path dir) throws IOException {
+        List<Path> list = new ArrayList<>();
+        if (!Files.isDirectory(dir))
+            return list;
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream)
+                list.add(path);
+        }
+
+        // the zero-padded first sequence number sorts them in order
+        list.sort((a, b) -> name(a).compareTo(name(b)));
+        return list;
+    }
+
+    private static String name(Path segment) {
+        String name = segment.getFileName().toString();
+        return name.substring(0, name.length() - SEGMENT_SUFFIX.length());
+    }
+
+    /**
+     * @return False if the visitor asked to stop
+     */
+    private static boolean readSegment(Path segment, Predicate<CgAuditRecord> visitor) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE)
+                return true;
+
+            MappedByteBuffer buff = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buff.getInt(0) != MAGIC)
+                return true;
+
+            boolean[] stopped = {false};
+            scan(buff, visitor, stopped);
+            return !stopped[0];
+        }
+    }
+
+    /**
+     * Walks the valid records of a segment.
+     *
+     * @return The position behind the last valid record
+     */
+    private static int scan(ByteBuffer buff, Predicate<CgAuditRecord> visitor, boolean[] stopped) {
+        CRC32C check = new CRC32C();
+        int pos = HEADER_SIZE;
+        int limit = buff.capacity();
+
+        while (pos + RECORD_HEADER <= limit) {
+            int size = buff.getInt(pos);
+            if (size <= RECORD_HEADER || pos + size > limit)
+                break;
+
+            check.reset();
+            check.update(buff.slice(pos + RECORD_HEADER, size - RECORD_HEADER));
+            if ((int) check.getValue() != buff.getInt(pos + 4))
+                break; // torn by a crash
+
+            ByteBuffer body = buff.slice(pos + RECORD_HEADER, size - RECORD_HEADER);
+            long seq = body.getLong();
+            long ref = body.getLong();
+            long micros = body.getLong();
+            int kind = body.get();
+
+            CgAuditRecord record = new CgAuditRecord(seq, ref, micros,
+                    kind == 1 ? CgAuditRecord.Kind.FAILED : CgAuditRecord.Kind.CHANGE,
+                    getString(body), getString(body), getString(body), getString(body));
+
+            pos += size;
+
+            if (!visitor.test(record)) {
+                if (stopped != null)
+                    stopped[0] = true;
+
+                break;
+            }
+        }
+
+        return pos;
+    }
+
+    private static String getString(ByteBuffer buff) {
+        int length = buff.getInt();
+        if (length < 0)
+            return null;
+
+        byte[] bytes = new byte[length];
+        buff.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
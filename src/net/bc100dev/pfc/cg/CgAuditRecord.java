@@ -0,0 +1,39 @@
+package net.bc100dev.pfc.cg;
+
+import java.time.Instant;
+
+/**
+ * A single entry of the {@link CgAuditJournal}.
+ *
+ * @param seq             The sequence number of the entry, increasing by one with every entry
+ * @param ref             For {@link Kind#FAILED}, the sequence number of the change that failed; otherwise 0
+ * @param timestampMicros The time of the entry, in microseconds since the epoch
+ * @param kind            Whether this is a change or the failure of one
+ * @param cgroup          The name of the control group
+ * @param file            The control file
+ * @param oldValue        The value before the change, or null if it could not be read
+ * @param newValue        The value written
+ */
+public record CgAuditRecord(long seq, long ref, long timestampMicros, Kind kind, String cgroup, String file,
+                            String oldValue, String newValue) {
+
+    public Instant timestamp() {
+        return Instant.ofEpochSecond(timestampMicros / 1_000_000, (timestampMicros % 1_000_000) * 1000);
+    }
+
+    public enum Kind {
+
+        /**
+         * A value about to be written. It is journaled before the write, so a change without a following
+         * {@link #FAILED} entry has been applied.
+         */
+        CHANGE,
+
+        /**
+         * The write of the change {@link #ref()} failed, so the old value stayed in force.
+         */
+        FAILED
+
+    }
+
+}
@@ -0,0 +1,37 @@
+package net.bc100dev.pfc.cg;
+
+import java.io.IOException;
+
+/**
+ * The base of the typed controller views, which read and write the interface files of one controller
+ * of a {@link ControlGroup2}.
+ */
+abstract class CgController {
+
+    protected final ControlGroup2 cg;
+
+    protected CgController(ControlGroup2 cg) {
+        if (cg == null)
+            throw new NullPointerException("Control group is null");
+
+        this.cg = cg;
+    }
+
+    public ControlGroup2 getControlGroup() {
+        return cg;
+    }
+
+    /**
+     * @return The name of the controller, as listed in {@code cgroup.controllers}
+     */
+    public abstract String getName();
+
+    protected long readSingle(String label) throws IOException {
+        return CgFileParser.parseSingle(cg.readBuffer(label));
+    }
+
+    protected void writeSingle(String label, long value) throws IOException {
+        cg.setValue(label, CgFileParser.format(value));
+    }
+
+}
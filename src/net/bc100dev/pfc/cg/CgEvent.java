@@ -0,0 +1,46 @@
+package net.bc100dev.pfc.cg;
+
+/**
+ * A change in one of the {@code *.events} files of a control group, reported by the {@link CgEventWatcher}.
+ *
+ * @param cgroup         The name of the control group, relative to the cgroup2 mount point
+ * @param type           What happened
+ * @param value          The new state (0 or 1) for state changes, the new counter value for counters
+ * @param delta          By how much a counter went up since the last read; 0 for state changes
+ * @param timestampNanos When the change was read, from {@link System#nanoTime()}
+ */
+public record CgEvent(String cgroup, Type type, long value, long delta, long timestampNanos) {
+
+    public enum Type {
+
+        /**
+         * {@code cgroup.events}: the group (or a descendant) got its first process
+         */
+        POPULATED,
+
+        /**
+         * {@code cgroup.events}: the last process of the group and its descendants exited
+         */
+        EMPTIED,
+
+        FROZEN,
+        THAWED,
+
+        /**
+         * {@code memory.events} counters
+         */
+        MEMORY_LOW,
+        MEMORY_HIGH,
+        MEMORY_MAX,
+        OOM,
+        OOM_KILL,
+        OOM_GROUP_KILL,
+
+        /**
+         * {@code pids.events}: a fork was refused because of {@code pids.max}
+         */
+        PIDS_MAX
+
+    }
+
+}
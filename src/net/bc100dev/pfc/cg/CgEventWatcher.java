@@ -0,0 +1,337 @@
+package net.bc100dev.pfc.cg;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+/**
+ * Watches the {@code cgroup.events}, {@code memory.events} and {@code pids.events} files of a whole
+ * control group subtree through inotify, and reports the changes as typed {@link CgEvent}s.
+ * <p>
+ * The kernel only notifies a directory watch about a modified control file while the inode of that file
+ * is cached, so the watcher keeps a descriptor to every watched file open (which is also used to re-read
+ * it). When a file changes, only that file is read again and its counters are compared to the last state.
+ * While nothing happens, the watcher thread is blocked and does not use any CPU.
+ */
+public class CgEventWatcher implements Closeable {
+
+    private final Path root;
+    private final Path mount;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+    private final Map<Path, WatchedFile> files = new HashMap<>();
+    private final ByteBuffer buff = ByteBuffer.allocateDirect(4096);
+
+    private WatchService watchService;
+    private Thread thread;
+
+    public CgEventWatcher(ControlGroup2 root) throws IOException {
+        this(root.getPath());
+    }
+
+    public CgEventWatcher(Path root) throws IOException {
+        this.root = root;
+
+        Path unified = CgMountResolver.getUnifiedMount();
+        this.mount = unified != null && root.startsWith(unified) ? unified : root;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Registers the whole subtree, reads the current state of every events file (without reporting it)
+     * and starts the watcher thread.
+     *
+     * @throws IOException If the subtree could not be registered
+     */
+    public synchronized void start() throws IOException {
+        if (thread != null)
+            throw new IllegalStateException("Event watcher is already running");
+
+        watchService = FileSystems.getDefault().newWatchService();
+        synchronized (files) {
+            registerTree(root);
+        }
+
+        thread = new Thread(this::run, "pfc-cg-events");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (watchService == null)
+            return;
+
+        try {
+            watchService.close();
+        } catch (IOException ignore) {
+        }
+
+        if (thread != null)
+            thread.interrupt();
+
+        synchronized (files) {
+            for (WatchedFile file : files.values())
+                file.close();
+
+            files.clear();
+            directories.clear();
+        }
+
+        watchService = null;
+        thread = null;
+    }
+
+    /**
+     * @return The number of events files that are being watched
+     */
+    public int getWatchedFiles() {
+        synchronized (files) {
+            return files.size();
+        }
+    }
+
+    private void run() {
+        WatchService ws = watchService;
+
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = ws.take();
+
+                synchronized (files) {
+                    Path dir = directories.get(key);
+                    if (dir != null)
+                        handle(dir, key);
+
+                    if (!key.reset()) {
+                        directories.remove(key);
+                        if (dir != null)
+                            dropTree(dir);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ignore) {
+        }
+    }
+
+    private void handle(Path dir, WatchKey key) {
+        for (WatchEvent<?> event : key.pollEvents()) {
+            WatchEvent.Kind<?> kind = event.kind();
+
+            if (kind == StandardWatchEventKinds.OVERFLOW) {
+                // events were lost, so every file has to be compared again
+                for (WatchedFile file : files.values())
+                    refresh(file);
+
+                continue;
+            }
+
+            Path child = dir.resolve((Path) event.context());
+
+            if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+                WatchedFile file = files.get(child);
+                if (file != null)
+                    refresh(file);
+            } else if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+                if (Files.isDirectory(child)) {
+                    try {
+                        registerTree(child);
+                    } catch (IOException ignore) {
+                        // removed again before it could be registered
+                    }
+                }
+            } else if (kind == StandardWatchEventKinds.ENTRY_DELETE)
+                dropTree(child);
+        }
+    }
+
+    private void registerTree(Path start) throws IOException {
+        try (Stream<Path> stream = Files.walk(start)) {
+            Iterator<Path> it = stream.filter(Files::isDirectory).iterator();
+
+            while (it.hasNext()) {
+                Path dir = it.next();
+                WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+                directories.put(key, dir);
+
+                for (EventFile kind : EventFile.values()) {
+                    Path path = dir.resolve(kind.file);
+                    if (files.containsKey(path) || !Files.exists(path))
+                        continue;
+
+                    try {
+                        WatchedFile file = new WatchedFile(name(dir), kind,
+                                FileChannel.open(path, StandardOpenOption.READ));
+                        files.put(path, file);
+                        refresh(file);
+                    } catch (IOException ignore) {
+                        // the controller is not enabled here, or the group just went away
+                    }
+                }
+            }
+        }
+    }
+
+    private void dropTree(Path dir) {
+        Iterator<Map.Entry<Path, WatchedFile>> it = files.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, WatchedFile> entry = it.next();
+
+            if (entry.getKey().startsWith(dir)) {
+                entry.getValue().close();
+                it.remove();
+            }
+        }
+
+        Iterator<Map.Entry<WatchKey, Path>> keys = directories.entrySet().iterator();
+        while (keys.hasNext()) {
+            Map.Entry<WatchKey, Path> entry = keys.next();
+
+            if (entry.getValue().startsWith(dir)) {
+                entry.getKey().cancel();
+                keys.remove();
+            }
+        }
+    }
+
+    /**
+     * Re-reads an events file and reports what changed. The first read of a file only records its state.
+     */
+    private void refresh(WatchedFile file) {
+        long now;
+        long[] current = file.current;
+
+        try {
+            buff.clear();
+            file.channel.read(buff, 0);
+            buff.flip();
+            now = System.nanoTime();
+
+            System.arraycopy(file.last, 0, current, 0, current.length);
+            CgFileParser.parseFlatKeyed(buff, file.kind.keys, current, 0);
+        } catch (IOException ex) {
+            return;
+        }
+
+        if (!file.fresh) {
+            for (int i = 0; i < current.length; i++) {
+                long old = file.last[i];
+                long value = current[i];
+
+                if (value == old)
+                    continue;
+
+                CgEvent.Type type = file.kind.typeOf(i, value);
+                long delta = file.kind == EventFile.CGROUP ? 0 : value - old;
+                CgEvent event = new CgEvent(file.cgroup, type, value, delta, now);
+
+                for (Listener listener : listeners) {
+                    try {
+                        listener.onEvent(event);
+                    } catch (RuntimeException ex) {
+                        // a broken listener must not end the watcher thread or leave the file half updated
+                        Thread thread = Thread.currentThread();
+                        thread.getUncaughtExceptionHandler().uncaughtException(thread, ex);
+                    }
+                }
+            }
+        }
+
+        System.arraycopy(current, 0, file.last, 0, current.length);
+        file.fresh = false;
+    }
+
+    private String name(Path dir) {
+        return mount.relativize(dir).toString();
+    }
+
+    public interface Listener {
+
+        void onEvent(CgEvent event);
+
+    }
+
+    private enum EventFile {
+
+        CGROUP("cgroup.events", "populated", "frozen"),
+        MEMORY("memory.events", "low", "high", "max", "oom", "oom_kill", "oom_group_kill"),
+        PIDS("pids.events", "max");
+
+        private final String file;
+        private final byte[][] keys;
+
+        EventFile(String file, String... keys) {
+            this.file = file;
+            this.keys = CgFileParser.keys(keys);
+        }
+
+        private CgEvent.Type typeOf(int key, long value) {
+            return switch (this) {
+                case CGROUP -> key == 0 ? (value != 0 ? CgEvent.Type.POPULATED : CgEvent.Type.EMPTIED)
+                        : (value != 0 ? CgEvent.Type.FROZEN : CgEvent.Type.THAWED);
+                case MEMORY -> switch (key) {
+                    case 0 -> CgEvent.Type.MEMORY_LOW;
+                    case 1 -> CgEvent.Type.MEMORY_HIGH;
+                    case 2 -> CgEvent.Type.MEMORY_MAX;
+                    case 3 -> CgEvent.Type.OOM;
+                    case 4 -> CgEvent.Type.OOM_KILL;
+                    default -> CgEvent.Type.OOM_GROUP_KILL;
+                };
+                case PIDS -> CgEvent.Type.PIDS_MAX;
+            };
+        }
+
+    }
+
+    private static final class WatchedFile {
+
+        private final String cgroup;
+        private final EventFile kind;
+        private final FileChannel channel;
+        private final long[] last;
+        private final long[] current;
+        private boolean fresh = true;
+
+        private WatchedFile(String cgroup, EventFile kind, FileChannel channel) {
+            this.cgroup = cgroup;
+            this.kind = kind;
+            this.channel = channel;
+            this.last = new long[kind.keys.length];
+            this.current = new long[kind.keys.length];
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+            }
+        }
+
+    }
+
+}
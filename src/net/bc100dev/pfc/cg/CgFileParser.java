@@ -0,0 +1,440 @@
+package net.bc100dev.pfc.cg;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parsers for the cgroup2 interface file formats, which read straight from the bytes of a buffer
+ * into primitive values. None of them split, substring or otherwise allocate.
+ * <p>
+ * The formats are described in the kernel's cgroup-v2 documentation:
+ * <ul>
+ *     <li>single value: {@code 524288} or {@code max}</li>
+ *     <li>flat keyed: {@code usage_usec 1234} per line</li>
+ *     <li>nested keyed: {@code 8:0 rbytes=1 wbytes=2} per line</li>
+ *     <li>pressure (PSI): {@code some avg10=0.12 avg60=0.00 avg300=0.00 total=1234} per line</li>
+ * </ul>
+ * A value of {@code max} is parsed as {@link Long#MAX_VALUE}. All methods read the bytes between the
+ * position and the limit of the buffer and leave both untouched.
+ */
+public class CgFileParser {
+
+    public static final long MAX = Long.MAX_VALUE;
+
+    /**
+     * The number of values that {@link #parsePressure(ByteBuffer, long[], int)} stores.
+     */
+    public static final int PRESSURE_FIELDS = 8;
+
+    private static final byte[][] PRESSURE_LINES = keys("some", "full");
+    private static final byte[][] PRESSURE_KEYS = keys("avg10", "avg60", "avg300", "total");
+
+    /**
+     * Encodes the keys to look up, once, so that parsing can compare them against the raw bytes.
+     */
+    public static byte[][] keys(String... keys) {
+        byte[][] arr = new byte[keys.length][];
+
+        for (int i = 0; i < keys.length; i++)
+            arr[i] = keys[i].getBytes(StandardCharsets.US_ASCII);
+
+        return arr;
+    }
+
+    /**
+     * Parses a single value file like {@code memory.current} or {@code pids.max}.
+     *
+     * @return The value, {@link #MAX} for "max", or -1 if the file is empty
+     */
+    public static long parseSingle(ByteBuffer buff) {
+        int pos = skipSpaces(buff, buff.position(), buff.limit());
+        if (pos >= buff.limit())
+            return -1;
+
+        return parseValue(buff, pos, buff.limit());
+    }
+
+    /**
+     * Parses a file with two values in one line, like {@code cpu.max} ("max 100000" or "50000 100000").
+     * The first value goes into {@code dst[offset]}, the second one into {@code dst[offset + 1]}.
+     *
+     * @return The number of values that were found
+     */
+    public static int parsePair(ByteBuffer buff, long[] dst, int offset) {
+        int limit = buff.limit();
+        int pos = skipSpaces(buff, buff.position(), limit);
+        int found = 0;
+
+        while (pos < limit && found < 2) {
+            dst[offset + found++] = parseValue(buff, pos, limit);
+
+            pos = skipToken(buff, pos, limit);
+            pos = skipSpaces(buff, pos, limit);
+        }
+
+        return found;
+    }
+
+    /**
+     * Parses a flat keyed file like {@code cpu.stat} or {@code memory.events}. The value of {@code keys[i]}
+     * is stored at {@code dst[offset + i]}; entries for keys that are not in the file are left untouched.
+     *
+     * @return The number of keys that were found
+     */
+    public static int parseFlatKeyed(ByteBuffer buff, byte[][] keys, long[] dst, int offset) {
+        int limit = buff.limit();
+        int pos = buff.position();
+        int found = 0;
+
+        while (pos < limit) {
+            int lineEnd = lineEnd(buff, pos, limit);
+            int keyEnd = skipToken(buff, pos, lineEnd);
+
+            int index = indexOf(buff, pos, keyEnd, keys);
+            if (index != -1) {
+                int valuePos = skipSpaces(buff, keyEnd, lineEnd);
+                dst[offset + index] = parseValue(buff, valuePos, lineEnd);
+                found++;
+            }
+
+            pos = lineEnd + 1;
+        }
+
+        return found;
+    }
+
+    /**
+     * Parses a nested keyed file like {@code io.stat} and sums every key over all lines (devices). The
+     * sum of {@code keys[i]} is stored at {@code dst[offset + i]}; the entries are reset to 0 first.
+     *
+     * @return The number of lines (devices) that were found
+     */
+    public static int parseNestedKeyedSum(ByteBuffer buff, byte[][] keys, long[] dst, int offset) {
+        for (int i = 0; i < keys.length; i++)
+            dst[offset + i] = 0;
+
+        int limit = buff.limit();
+        int pos = buff.position();
+        int lines = 0;
+
+        while (pos < limit) {
+            int lineEnd = lineEnd(buff, pos, limit);
+            int tokenPos = skipToken(buff, pos, lineEnd);
+
+            if (tokenPos > pos)
+                lines++;
+
+            while (tokenPos < lineEnd) {
+                tokenPos = skipSpaces(buff, tokenPos, lineEnd);
+                int tokenEnd = skipToken(buff, tokenPos, lineEnd);
+                int eq = indexOf(buff, tokenPos, tokenEnd, (byte) '=');
+
+                if (eq != -1) {
+                    int index = indexOf(buff, tokenPos, eq, keys);
+
+                    if (index != -1) {
+                        long value = parseValue(buff, eq + 1, tokenEnd);
+                        long sum = dst[offset + index];
+                        dst[offset + index] = (value == MAX || sum == MAX) ? MAX : sum + value;
+                    }
+                }
+
+                tokenPos = tokenEnd;
+            }
+
+            pos = lineEnd + 1;
+        }
+
+        return lines;
+    }
+
+    /**
+     * Counts the non-empty lines of a file, e.g. the devices of a nested keyed file.
+     */
+    public static int countLines(ByteBuffer buff) {
+        int limit = buff.limit();
+        int pos = buff.position();
+        int lines = 0;
+
+        while (pos < limit) {
+            int lineEnd = lineEnd(buff, pos, limit);
+            if (lineEnd > pos)
+                lines++;
+
+            pos = lineEnd + 1;
+        }
+
+        return lines;
+    }
+
+    /**
+     * Parses a nested keyed file like {@code io.stat} or {@code io.max} line by line (device by device).
+     * The device of line {@code n} is stored in {@code devices[n]} (see {@link #device(int, int)}), the value
+     * of {@code keys[k]} in {@code dst[n * keys.length + k]}. Keys that are missing on a line are set to -1.
+     * Lines beyond the capacity of the arrays are skipped; {@link #countLines(ByteBuffer)} tells how many
+     * there are.
+     *
+     * @return The number of lines that were stored
+     */
+    public static int parseNestedKeyed(ByteBuffer buff, byte[][] keys, long[] devices, long[] dst) {
+        int limit = buff.limit();
+        int pos = buff.position();
+        int line = 0;
+        int capacity = Math.min(devices.length, dst.length / Math.max(1, keys.length));
+
+        while (pos < limit && line < capacity) {
+            int lineEnd = lineEnd(buff, pos, limit);
+            int tokenPos = skipToken(buff, pos, lineEnd);
+
+            if (tokenPos == pos) {
+                pos = lineEnd + 1;
+                continue;
+            }
+
+            int colon = indexOf(buff, pos, tokenPos, (byte) ':');
+            long major = parseValue(buff, pos, colon == -1 ? tokenPos : colon);
+            long minor = colon == -1 ? 0 : parseValue(buff, colon + 1, tokenPos);
+            devices[line] = device((int) major, (int) minor);
+
+            int base = line * keys.length;
+            for (int k = 0; k < keys.length; k++)
+                dst[base + k] = -1;
+
+            while (tokenPos < lineEnd) {
+                tokenPos = skipSpaces(buff, tokenPos, lineEnd);
+                int tokenEnd = skipToken(buff, tokenPos, lineEnd);
+                int eq = indexOf(buff, tokenPos, tokenEnd, (byte) '=');
+
+                if (eq != -1) {
+                    int index = indexOf(buff, tokenPos, eq, keys);
+                    if (index != -1)
+                        dst[base + index] = parseValue(buff, eq + 1, tokenEnd);
+                }
+
+                tokenPos = tokenEnd;
+            }
+
+            line++;
+            pos = lineEnd + 1;
+        }
+
+        return line;
+    }
+
+    /**
+     * Packs a device number into a single long, as used by {@link #parseNestedKeyed(ByteBuffer, byte[][], long[], long[])}.
+     */
+    public static long device(int major, int minor) {
+        return ((long) major << 32) | (minor & 0xFFFFFFFFL);
+    }
+
+    public static int major(long device) {
+        return (int) (device >>> 32);
+    }
+
+    public static int minor(long device) {
+        return (int) device;
+    }
+
+    /**
+     * Formats a limit for writing it to a control file, {@link #MAX} (or any negative value) as "max".
+     */
+    public static String format(long value) {
+        return value == MAX || value < 0 ? "max" : Long.toString(value);
+    }
+
+    /**
+     * Parses a size like the kernel does for memory limits, with an optional K, M, G or T suffix.
+     *
+     * @return The size, {@link #MAX} for "max", or -1 if it is not a size
+     */
+    public static long parseSize(String str) {
+        if (str.isEmpty())
+            return -1;
+
+        if (str.equals("max"))
+            return MAX;
+
+        int shift = switch (Character.toUpperCase(str.charAt(str.length() - 1))) {
+            case 'K' -> 10;
+            case 'M' -> 20;
+            case 'G' -> 30;
+            case 'T' -> 40;
+            default -> 0;
+        };
+
+        try {
+            return Long.parseLong(shift == 0 ? str : str.substring(0, str.length() - 1)) << shift;
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses a pressure stall information file like {@code memory.pressure} or {@code /proc/pressure/io}.
+     * The "some" line goes into {@code dst[offset]} to {@code dst[offset + 3]} as avg10, avg60, avg300 and
+     * total, the "full" line into {@code dst[offset + 4]} to {@code dst[offset + 7]}. The averages are
+     * stored in hundredths of a percent (e.g. 12.34% as 1234), the totals in microseconds.
+     *
+     * @return The number of lines ("some", "full") that were found
+     */
+    public static int parsePressure(ByteBuffer buff, long[] dst, int offset) {
+        int limit = buff.limit();
+        int pos = buff.position();
+        int lines = 0;
+
+        while (pos < limit) {
+            int lineEnd = lineEnd(buff, pos, limit);
+            int tokenPos = skipToken(buff, pos, lineEnd);
+            int line = indexOf(buff, pos, tokenPos, PRESSURE_LINES);
+
+            if (line != -1) {
+                lines++;
+
+                while (tokenPos < lineEnd) {
+                    tokenPos = skipSpaces(buff, tokenPos, lineEnd);
+                    int tokenEnd = skipToken(buff, tokenPos, lineEnd);
+                    int eq = indexOf(buff, tokenPos, tokenEnd, (byte) '=');
+
+                    if (eq != -1) {
+                        int key = indexOf(buff, tokenPos, eq, PRESSURE_KEYS);
+
+                        if (key == 3)
+                            dst[offset + line * 4 + key] = parseValue(buff, eq + 1, tokenEnd);
+                        else if (key != -1)
+                            dst[offset + line * 4 + key] = parseFixed2(buff, eq + 1, tokenEnd);
+                    }
+
+                    tokenPos = tokenEnd;
+                }
+            }
+
+            pos = lineEnd + 1;
+        }
+
+        return lines;
+    }
+
+    /**
+     * Parses a decimal number with two fractional digits (e.g. "12.34") into hundredths (1234).
+     */
+    static long parseFixed2(ByteBuffer buff, int pos, int limit) {
+        long value = 0;
+        int fraction = -1;
+
+        while (pos < limit && fraction < 2) {
+            byte b = buff.get(pos++);
+
+            if (b == '.') {
+                fraction = 0;
+                continue;
+            }
+
+            if (b < '0' || b > '9')
+                break;
+
+            value = value * 10 + (b - '0');
+            if (fraction >= 0)
+                fraction++;
+        }
+
+        if (fraction < 0)
+            fraction = 0;
+
+        for (; fraction < 2; fraction++)
+            value *= 10;
+
+        return value;
+    }
+
+    /**
+     * Parses a decimal number (or "max") that starts at {@code pos} and ends at the next non-digit.
+     */
+    static long parseValue(ByteBuffer buff, int pos, int limit) {
+        if (pos >= limit)
+            return 0;
+
+        byte first = buff.get(pos);
+        if (first == 'm' && pos + 2 < limit && buff.get(pos + 1) == 'a' && buff.get(pos + 2) == 'x')
+            return MAX;
+
+        boolean negative = first == '-';
+        if (negative)
+            pos++;
+
+        long value = 0;
+        while (pos < limit) {
+            byte b = buff.get(pos);
+            if (b < '0' || b > '9')
+                break;
+
+            value = value * 10 + (b - '0');
+            pos++;
+        }
+
+        return negative ? -value : value;
+    }
+
+    static int lineEnd(ByteBuffer buff, int pos, int limit) {
+        while (pos < limit && buff.get(pos) != '\n')
+            pos++;
+
+        return pos;
+    }
+
+    static int skipSpaces(ByteBuffer buff, int pos, int limit) {
+        while (pos < limit) {
+            byte b = buff.get(pos);
+            if (b != ' ' && b != '\t')
+                break;
+
+            pos++;
+        }
+
+        return pos;
+    }
+
+    static int skipToken(ByteBuffer buff, int pos, int limit) {
+        while (pos < limit) {
+            byte b = buff.get(pos);
+            if (b == ' ' || b == '\t' || b == '\n')
+                break;
+
+            pos++;
+        }
+
+        return pos;
+    }
+
+    static int indexOf(ByteBuffer buff, int pos, int limit, byte value) {
+        for (int i = pos; i < limit; i++) {
+            if (buff.get(i) == value)
+                return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Finds the key that equals the bytes between {@code from} and {@code to}.
+     */
+    static int indexOf(ByteBuffer buff, int from, int to, byte[][] keys) {
+        int len = to - from;
+
+        for (int k = 0; k < keys.length; k++) {
+            byte[] key = keys[k];
+            if (key.length != len)
+                continue;
+
+            int i = 0;
+            while (i < len && buff.get(from + i) == key[i])
+                i++;
+
+            if (i == len)
+                return k;
+        }
+
+        return -1;
+    }
+
+}
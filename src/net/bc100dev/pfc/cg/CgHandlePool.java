@@ -0,0 +1,385 @@
+package net.bc100dev.pfc.cg;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps {@link FileChannel}s to cgroup control files open, so that reading or writing a control file
+ * costs a single positional read or write instead of an open, a few checks, the I/O and a close.
+ * <p>
+ * The data goes through direct buffers that are owned by the calling thread and reused for every call.
+ * Handles that have not been used for a while are closed lazily on a later access, and all handles that
+ * belong to a control group can be released when the group gets removed.
+ */
+class CgHandlePool {
+
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    private final Map<Path, Handle> readHandles = new ConcurrentHashMap<>();
+    private final Map<Path, Handle> writeHandles = new ConcurrentHashMap<>();
+
+    private final ThreadLocal<ByteBuffer> readBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE));
+    private final ThreadLocal<ByteBuffer> writeBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE));
+
+    private final long idleNanos;
+    private final int maxHandles;
+
+    private volatile long lastSweep = System.nanoTime();
+
+    CgHandlePool(long idleMillis, int maxHandles) {
+        this.idleNanos = idleMillis * 1_000_000L;
+        this.maxHandles = maxHandles;
+    }
+
+    /**
+     * Reads the whole control file into the buffer of the calling thread. The returned buffer is flipped
+     * (position 0, limit at the end of the data) and stays valid until the next read on the same thread.
+     */
+    ByteBuffer read(Path file) throws IOException {
+        sweepIfDue();
+
+        try {
+            return readOnce(file);
+        } catch (ClosedChannelException ex) {
+            // closed by an idle sweep on another thread; a fresh handle will do
+            return readOnce(file);
+        } catch (FileNotFoundException | FileSystemException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            // a removed cgroup leaves its descriptors behind with ENODEV; drop and retry on a new one,
+            // which reports a proper "not found" in case the file is really gone
+            close(readHandles.remove(file));
+            return readOnce(file);
+        }
+    }
+
+    /**
+     * Reads a file into the buffer of the calling thread like {@link #read(Path)}, but without keeping
+     * the handle open. Meant for one-off reads of many files, which would only push hot handles out.
+     */
+    ByteBuffer readUnpooled(Path file) throws IOException {
+        try (FileChannel channel = open(file, false)) {
+            return readFully(channel);
+        }
+    }
+
+    String readString(Path file) throws IOException {
+        ByteBuffer buff = read(file);
+        byte[] data = new byte[buff.remaining()];
+        buff.get(data);
+
+        return new String(data);
+    }
+
+    /**
+     * Writes the remaining bytes of {@code src} to the control file with a single positional write.
+     * The write is repeated on a fresh handle only if the pooled one turned out to be unusable; an error
+     * the kernel reports for the value itself is passed on as it is.
+     */
+    void write(Path file, ByteBuffer src) throws IOException {
+        sweepIfDue();
+
+        int position = src.position();
+        try {
+            writeOnce(file, src);
+        } catch (StaleHandleException ex) {
+            src.position(position);
+
+            try {
+                writeOnce(file, src);
+            } catch (StaleHandleException again) {
+                throw (IOException) again.getCause();
+            }
+        }
+    }
+
+    void write(Path file, CharSequence value) throws IOException {
+        write(file, encode(value));
+    }
+
+    /**
+     * Writes a value to the control file like {@link #write(Path, CharSequence)}, but on a handle of its own
+     * and without repeating the write under any circumstances. Meant for files whose writes are not
+     * idempotent, like {@code memory.reclaim}, where a repeated write would do the work twice.
+     */
+    void writeUnpooled(Path file, CharSequence value) throws IOException {
+        ByteBuffer buff = encode(value);
+
+        try (FileChannel channel = open(file, true)) {
+            channel.write(buff, 0);
+        }
+    }
+
+    private ByteBuffer encode(CharSequence value) {
+        ByteBuffer buff = writeBuffer(value.length());
+
+        // control file values are plain ASCII, so there is no need for an encoder or a byte[] copy
+        for (int i = 0; i < value.length(); i++)
+            buff.put((byte) value.charAt(i));
+
+        buff.flip();
+        return buff;
+    }
+
+    /**
+     * Returns the cleared write buffer of the calling thread, large enough to hold {@code capacity} bytes.
+     */
+    ByteBuffer writeBuffer(int capacity) {
+        ByteBuffer buff = writeBuffers.get();
+        if (buff.capacity() < capacity) {
+            buff = ByteBuffer.allocateDirect(Math.max(capacity, buff.capacity() * 2));
+            writeBuffers.set(buff);
+        }
+
+        buff.clear();
+        return buff;
+    }
+
+    /**
+     * Closes every handle that points into the given control group directory (including sub-groups).
+     */
+    void release(Path cgPath) {
+        release(readHandles, cgPath);
+        release(writeHandles, cgPath);
+    }
+
+    /**
+     * Closes all handles which have not been used within the idle timeout.
+     */
+    void evictIdle() {
+        long now = System.nanoTime();
+        lastSweep = now;
+
+        evictIdle(readHandles, now, idleNanos);
+        evictIdle(writeHandles, now, idleNanos);
+    }
+
+    void closeAll() {
+        release(readHandles, null);
+        release(writeHandles, null);
+    }
+
+    int openHandles() {
+        return readHandles.size() + writeHandles.size();
+    }
+
+    private ByteBuffer readOnce(Path file) throws IOException {
+        Handle handle = acquire(readHandles, file, false);
+
+        try {
+            return readFully(handle.channel);
+        } finally {
+            handle.done();
+        }
+    }
+
+    /**
+     * Reads from the start of the file until the end into the buffer of the calling thread. seq_file based
+     * files like {@code cgroup.procs} or {@code io.stat} hand out about a page per read(2), so a short read
+     * does not mean that there is nothing more.
+     */
+    private ByteBuffer readFully(FileChannel channel) throws IOException {
+        ByteBuffer buff = readBuffers.get();
+        buff.clear();
+
+        long position = 0;
+        while (true) {
+            if (!buff.hasRemaining()) {
+                ByteBuffer grown = ByteBuffer.allocateDirect(buff.capacity() * 2);
+                buff.flip();
+                grown.put(buff);
+                buff = grown;
+                readBuffers.set(buff);
+            }
+
+            int len = channel.read(buff, position);
+            if (len <= 0)
+                break;
+
+            position += len;
+        }
+
+        buff.flip();
+        return buff;
+    }
+
+    private void writeOnce(Path file, ByteBuffer src) throws IOException {
+        Handle handle = acquire(writeHandles, file, true);
+        boolean pooled = handle.used;
+
+        try {
+            // the kernel takes a control file value in one write(2); the offset is ignored by kernfs
+            handle.channel.write(src, 0);
+        } catch (ClosedChannelException ex) {
+            // closed by an idle sweep or an eviction on another thread
+            throw new StaleHandleException(ex);
+        } catch (IOException ex) {
+            // only a descriptor that has worked before can have gone stale; on a fresh one it is the kernel's answer
+            if (!pooled || !isStale(ex))
+                throw ex;
+
+            // the descriptor of a removed group, which may have been created again since
+            writeHandles.remove(file, handle);
+            close(handle);
+            throw new StaleHandleException(ex);
+        } finally {
+            handle.done();
+        }
+    }
+
+    private Handle acquire(Map<Path, Handle> handles, Path file, boolean write) throws IOException {
+        Handle handle = handles.get(file);
+        if (handle != null && handle.channel.isOpen()) {
+            handle.touch();
+            return handle;
+        }
+
+        if (handles.size() >= maxHandles)
+            evictLeastRecent(handles, maxHandles * 3 / 4);
+
+        Handle opened = new Handle(open(file, write));
+        handle = handles.merge(file, opened, (old, fresh) -> old.channel.isOpen() ? old : fresh);
+
+        if (handle != opened)
+            close(opened);
+
+        handle.touch();
+        return handle;
+    }
+
+    /**
+     * Tells whether an I/O error comes from the descriptor rather than from the file: ENODEV for the files of
+     * a removed group, EBADF for a descriptor that is no longer valid.
+     */
+    private static boolean isStale(IOException ex) {
+        String message = ex.getMessage();
+        return message != null && (message.contains("No such device") || message.contains("Bad file descriptor"));
+    }
+
+    private static FileChannel open(Path file, boolean write) throws IOException {
+        try {
+            return write ? FileChannel.open(file, StandardOpenOption.WRITE) : FileChannel.open(file, StandardOpenOption.READ);
+        } catch (NoSuchFileException ex) {
+            throw new FileNotFoundException(String.format("File at \"%s\" does not exist", file));
+        }
+    }
+
+    private void sweepIfDue() {
+        if (System.nanoTime() - lastSweep >= idleNanos)
+            evictIdle();
+    }
+
+    private static void evictIdle(Map<Path, Handle> handles, long now, long idleNanos) {
+        Iterator<Map.Entry<Path, Handle>> it = handles.entrySet().iterator();
+        while (it.hasNext()) {
+            Handle handle = it.next().getValue();
+
+            if (handle.users == 0 && now - handle.lastUsed >= idleNanos) {
+                it.remove();
+                close(handle);
+            }
+        }
+    }
+
+    /**
+     * Closes the least recently used handles that are not in use, until at most {@code lowWater} are left.
+     * Going below the limit by a margin spreads the cost of the sort over many opens.
+     */
+    private static void evictLeastRecent(Map<Path, Handle> handles, int lowWater) {
+        int excess = handles.size() - lowWater;
+        if (excess <= 0)
+            return;
+
+        long[] lastUsed = new long[handles.size()];
+        int count = 0;
+        for (Handle handle : handles.values()) {
+            if (count == lastUsed.length)
+                break;
+
+            lastUsed[count++] = handle.lastUsed;
+        }
+
+        Arrays.sort(lastUsed, 0, count);
+        long cutoff = lastUsed[Math.min(excess, count) - 1];
+
+        Iterator<Handle> it = handles.values().iterator();
+        while (it.hasNext() && excess > 0) {
+            Handle handle = it.next();
+
+            if (handle.users == 0 && handle.lastUsed - cutoff <= 0) {
+                it.remove();
+                close(handle);
+                excess--;
+            }
+        }
+    }
+
+    private static void release(Map<Path, Handle> handles, Path cgPath) {
+        Iterator<Map.Entry<Path, Handle>> it = handles.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Handle> entry = it.next();
+
+            if (cgPath == null || entry.getKey().startsWith(cgPath)) {
+                it.remove();
+                close(entry.getValue());
+            }
+        }
+    }
+
+    private static void close(Handle handle) {
+        if (handle == null)
+            return;
+
+        try {
+            handle.channel.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    /**
+     * A write that failed on a pooled handle which could no longer be used, before the value reached the kernel.
+     */
+    private static final class StaleHandleException extends IOException {
+
+        private StaleHandleException(IOException cause) {
+            super(cause);
+        }
+
+    }
+
+    private static final class Handle {
+
+        private final FileChannel channel;
+        private volatile long lastUsed;
+        private volatile int users;
+        private volatile boolean used;
+
+        private Handle(FileChannel channel) {
+            this.channel = channel;
+            this.lastUsed = System.nanoTime();
+        }
+
+        private synchronized void touch() {
+            users++;
+            lastUsed = System.nanoTime();
+        }
+
+        private synchronized void done() {
+            users--;
+            used = true;
+        }
+
+    }
+
+}
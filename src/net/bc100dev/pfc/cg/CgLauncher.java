@@ -0,0 +1,232 @@
+package net.bc100dev.pfc.cg;
+
+import net.bc100dev.commons.process.ProcessInvoke;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Starts processes that are inside a control group from their first instruction, instead of starting
+ * them and moving them with {@link ControlGroup2#addProcess(long...)}, which leaves a window in which
+ * the process runs (and may fork) outside of the group.
+ * <p>
+ * The process is started through a small shell trampoline that writes its own PID into
+ * {@code cgroup.procs} and only then execs the command, so the command never runs outside the group and
+ * everything it forks is inside it. If the trampoline cannot join the group, it exits with
+ * {@link #JOIN_FAILED} before the command ever runs. The trampoline runs in {@code /bin/bash} where there
+ * is one, whose {@code exec -a} passes the program name of the arguments on as {@code argv[0]}; plain
+ * {@code /bin/sh} (dash, for one) cannot set it, so there the program sees its absolute path instead.
+ * <p>
+ * Without limits, processes go where {@link ControlGroup2#addProcess(long...)} puts them. With limits,
+ * every launch gets a group of its own below the target ({@code launch-N}), with the limits written
+ * before the process starts; it is removed once the process has exited, if nothing is left in it.
+ * <pre>
+ * ProcessInvoke proc = new CgLauncher(ControlGroup2.load("jobs"))
+ *         .limit("memory.max", "512M")
+ *         .limit("pids.max", "64")
+ *         .launch(new File("/usr/bin/make"), false, "make", "-j4");
+ * </pre>
+ */
+public class CgLauncher {
+
+    /**
+     * The exit code of a process that could not join the group.
+     */
+    public static final int JOIN_FAILED = 125;
+
+    private static final String BASH = "/bin/bash";
+    private static final String SHELL = "/bin/sh";
+
+    // $0 is cgroup.procs; with bash, $1 is the program name and the command follows
+    private static final String BASH_TRAMPOLINE = "echo $$ > \"$0\" || exit " + JOIN_FAILED + "; name=$1; shift; exec -a \"$name\" \"$@\"";
+    private static final String TRAMPOLINE = "echo $$ > \"$0\" || exit " + JOIN_FAILED + "; exec \"$@\"";
+    private static final boolean HAS_BASH = Files.isExecutable(Path.of(BASH));
+    private static final AtomicLong LAUNCH_IDS = new AtomicLong();
+
+    private final ControlGroup2 cg;
+    private final Map<String, String> limits = new LinkedHashMap<>();
+    private final Map<String, String> environment = new LinkedHashMap<>();
+    private File directory;
+    private boolean removeOnExit = true;
+    private boolean inheritIO;
+
+    public CgLauncher(ControlGroup2 cg) {
+        this.cg = cg;
+    }
+
+    /**
+     * Sets a control file of the group every launch gets of its own.
+     */
+    public synchronized CgLauncher limit(String file, String value) {
+        if (file.indexOf('/') != -1 || file.startsWith("cgroup."))
+            throw new IllegalArgumentException(String.format("\"%s\" cannot be set as a launch limit", file));
+
+        limits.put(file, value);
+        return this;
+    }
+
+    public synchronized CgLauncher directory(File directory) {
+        this.directory = directory;
+        return this;
+    }
+
+    public synchronized CgLauncher environment(String key, String value) {
+        environment.put(key, value);
+        return this;
+    }
+
+    /**
+     * @param inheritIO Whether the process uses the streams of this process instead of pipes
+     */
+    public synchronized CgLauncher inheritIO(boolean inheritIO) {
+        this.inheritIO = inheritIO;
+        return this;
+    }
+
+    /**
+     * @param removeOnExit Whether the group of a launch with limits is removed once its process has exited
+     */
+    public synchronized CgLauncher removeOnExit(boolean removeOnExit) {
+        this.removeOnExit = removeOnExit;
+        return this;
+    }
+
+    /**
+     * Starts a process inside the group.
+     *
+     * @param executable   The executable
+     * @param waitTillExit Whether to wait until the process has exited
+     * @param args         The arguments, starting with the name of the program ({@code argv[0]} where bash is available)
+     * @return The streams and the PID of the process
+     * @throws IOException If the group of the launch could not be set up or the process could not be started
+     */
+    public ProcessInvoke launch(File executable, boolean waitTillExit, String... args) throws IOException {
+        Map<String, String> launchLimits;
+        Map<String, String> launchEnvironment;
+        File launchDirectory;
+        boolean remove, inherit;
+
+        synchronized (this) {
+            launchLimits = new LinkedHashMap<>(limits);
+            launchEnvironment = new LinkedHashMap<>(environment);
+            launchDirectory = directory;
+            remove = removeOnExit;
+            inherit = inheritIO;
+        }
+
+        Path group = launchLimits.isEmpty() ? null : createLaunchGroup(launchLimits);
+        Path procs = group == null ? cg.getPath().resolve("tasks").resolve("cgroup.procs") : group.resolve("cgroup.procs");
+
+        if (!Files.exists(procs)) {
+            removeGroup(group);
+            throw new FileNotFoundException("No cgroup.procs to launch into at " + procs.getParent());
+        }
+
+        List<String> command = new ArrayList<>(args.length + 5);
+        command.add(HAS_BASH ? BASH : SHELL);
+        command.add("-c");
+        command.add(HAS_BASH ? BASH_TRAMPOLINE : TRAMPOLINE);
+        command.add(procs.toString());
+
+        // the first argument is the program name; without bash, exec takes it from the path
+        if (HAS_BASH)
+            command.add(args.length > 0 ? args[0] : executable.getName());
+
+        command.add(executable.getAbsolutePath());
+
+        if (args.length > 1)
+            command.addAll(Arrays.asList(args).subList(1, args.length));
+
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.directory(launchDirectory);
+        pb.environment().putAll(launchEnvironment);
+        if (inherit)
+            pb.inheritIO();
+
+        ProcessInvoke invoke;
+        try {
+            invoke = ProcessInvoke.invokeProcess(pb, waitTillExit);
+        } catch (IOException ex) {
+            removeGroup(group);
+            throw ex;
+        }
+
+        // the trampoline joins the group before running anything else
+        ControlGroup2.notifyMigrated(invoke.getProcessID(), procs.getParent());
+
+        if (group != null && remove) {
+            if (waitTillExit)
+                removeGroup(group);
+            else
+                ProcessHandle.of(invoke.getProcessID()).ifPresentOrElse(
+                        handle -> handle.onExit().thenRun(() -> removeGroup(group)),
+                        () -> removeGroup(group));
+        }
+
+        return invoke;
+    }
+
+    /**
+     * Creates the group of a launch, enabling the controllers of the limits for the children of the
+     * target group, and writes the limits.
+     */
+    private Path createLaunchGroup(Map<String, String> launchLimits) throws IOException {
+        Set<String> controllers = new LinkedHashSet<>();
+        for (String file : launchLimits.keySet())
+            controllers.add(file.substring(0, Math.max(0, file.indexOf('.'))));
+
+        controllers.remove("");
+        Set<String> enabled = Set.of(cg.getValue("cgroup.subtree_control").trim().split("\\s+"));
+        for (String controller : controllers) {
+            if (!enabled.contains(controller))
+                cg.setValue("cgroup.subtree_control", "+" + controller);
+        }
+
+        Path group;
+        while (true) {
+            String name = "launch-" + LAUNCH_IDS.incrementAndGet();
+            try {
+                group = Files.createDirectory(cg.getPath().resolve(name));
+                break;
+            } catch (FileAlreadyExistsException ignore) {
+                // left behind by an earlier run
+            }
+        }
+
+        ControlGroup2 launchCg = new ControlGroup2(cg.getName() + "/" + group.getFileName(), group);
+        try {
+            for (Map.Entry<String, String> limit : launchLimits.entrySet())
+                launchCg.setValue(limit.getKey(), limit.getValue());
+        } catch (IOException ex) {
+            removeGroup(group);
+            throw ex;
+        }
+
+        return group;
+    }
+
+    private static void removeGroup(Path group) {
+        if (group == null)
+            return;
+
+        ControlGroup2.HANDLES.release(group);
+        try {
+            Files.deleteIfExists(group);
+        } catch (IOException ignore) {
+            // still has processes forked by the launched one; left for the caller to tear down
+        }
+    }
+
+}
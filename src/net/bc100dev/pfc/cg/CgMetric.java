@@ -0,0 +1,76 @@
+package net.bc100dev.pfc.cg;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The cgroup statistics that can be sampled, along with the control file and the fields they are read from.
+ */
+public enum CgMetric {
+
+    CPU_STAT("cpu.stat", Format.FLAT_KEYED,
+            "usage_usec", "user_usec", "system_usec", "nr_periods", "nr_throttled", "throttled_usec"),
+
+    MEMORY_CURRENT("memory.current", Format.SINGLE, "current"),
+
+    MEMORY_STAT("memory.stat", Format.FLAT_KEYED,
+            "anon", "file", "kernel", "shmem", "file_dirty", "file_writeback",
+            "active_anon", "inactive_anon", "active_file", "inactive_file",
+            "workingset_refault_anon", "workingset_refault_file", "pgfault", "pgmajfault"),
+
+    IO_STAT("io.stat", Format.NESTED_KEYED_SUM,
+            "rbytes", "wbytes", "rios", "wios", "dbytes", "dios");
+
+    private final String file;
+    private final Format format;
+    private final String[] fields;
+    private final byte[][] keys;
+
+    CgMetric(String file, Format format, String... fields) {
+        this.file = file;
+        this.format = format;
+        this.fields = fields;
+        this.keys = CgFileParser.keys(fields);
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public int fieldCount() {
+        return fields.length;
+    }
+
+    public String getField(int index) {
+        return fields[index];
+    }
+
+    /**
+     * @return The index of the named field, or -1 if this metric does not have it
+     */
+    public int fieldIndex(String field) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].equals(field))
+                return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Parses the contents of the control file into {@code dst}, starting at {@code offset}.
+     */
+    void parse(ByteBuffer buff, long[] dst, int offset) {
+        switch (format) {
+            case SINGLE -> dst[offset] = CgFileParser.parseSingle(buff);
+            case FLAT_KEYED -> CgFileParser.parseFlatKeyed(buff, keys, dst, offset);
+            case NESTED_KEYED_SUM -> CgFileParser.parseNestedKeyedSum(buff, keys, dst, offset);
+        }
+    }
+
+    private enum Format {
+        SINGLE,
+        FLAT_KEYED,
+        NESTED_KEYED_SUM
+    }
+
+}
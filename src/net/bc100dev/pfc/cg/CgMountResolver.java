@@ -0,0 +1,274 @@
+package net.bc100dev.pfc.cg;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Resolves the cgroup mount points from {@code /proc/self/mountinfo}. The mount table is parsed once
+ * and kept as an immutable snapshot; later lookups only re-stat the cached cgroup2 mount point to
+ * notice an unmount or remount, and the table is re-parsed when that check fails, when the snapshot
+ * had no cgroup2 mount yet, or after {@link #invalidate()}.
+ */
+public class CgMountResolver {
+
+    private static final Path MOUNT_INFO = Path.of("/proc/self/mountinfo");
+
+    /**
+     * How often the cached mount point gets re-validated with a single stat call.
+     */
+    private static final long REVALIDATE_INTERVAL_NANOS = 1_000_000_000L;
+
+    private static final Object LOCK = new Object();
+
+    private static volatile Snapshot snapshot;
+    private static volatile long lastValidated;
+
+    /**
+     * Returns the unified (cgroup2) mount point. In hybrid setups, where the v1 controllers are
+     * mounted next to a cgroup2 hierarchy (usually at {@code /sys/fs/cgroup/unified}), the cgroup2
+     * mount is the one being returned.
+     *
+     * @return The cgroup2 mount point, or null if no cgroup2 file system is mounted
+     * @throws IOException On errors reading the mount table
+     */
+    public static Path getUnifiedMount() throws IOException {
+        return current().unified;
+    }
+
+    /**
+     * Returns the first mount that belongs to any cgroup hierarchy (v1 or v2), in mount table order.
+     *
+     * @return The first cgroup mount point, or null if none is mounted
+     * @throws IOException On errors reading the mount table
+     */
+    public static Path getFirstMount() throws IOException {
+        Snapshot snap = current();
+        return snap.cgroupMounts.isEmpty() ? null : snap.cgroupMounts.get(0);
+    }
+
+    /**
+     * Lists all cgroup mounts (v1 and v2), in mount table order.
+     *
+     * @return An unmodifiable list of the cgroup mount points
+     * @throws IOException On errors reading the mount table
+     */
+    public static List<Path> getAllMounts() throws IOException {
+        return current().cgroupMounts;
+    }
+
+    /**
+     * Resolves a control group name (relative to the cgroup2 mount point) to its directory.
+     *
+     * @param cgName The name of the control group, like "workers" or "jobs/batch-1"
+     * @return The absolute path to the control group directory
+     * @throws IOException When no cgroup2 file system is mounted
+     */
+    public static Path resolve(String cgName) throws IOException {
+        Objects.requireNonNull(cgName, "cgroup name");
+
+        Snapshot snap = current();
+        if (snap.unified == null)
+            throw new IOException("Cgroup mount path not found. Get cgroups mounted first.");
+
+        String relative = cgName;
+        while (relative.startsWith("/"))
+            relative = relative.substring(1);
+
+        return relative.isEmpty() ? snap.unified : snap.unified.resolve(relative);
+    }
+
+    /**
+     * Drops the cached mount table, forcing the next lookup to re-read {@code /proc/self/mountinfo}.
+     */
+    public static void invalidate() {
+        synchronized (LOCK) {
+            snapshot = null;
+        }
+    }
+
+    private static Snapshot current() throws IOException {
+        Snapshot snap = snapshot;
+        long now = System.nanoTime();
+
+        if (snap != null && now - lastValidated < REVALIDATE_INTERVAL_NANOS)
+            return snap;
+
+        synchronized (LOCK) {
+            snap = snapshot;
+            if (snap != null && now - lastValidated < REVALIDATE_INTERVAL_NANOS)
+                return snap;
+
+            if (snap == null || !snap.isValid())
+                snap = load();
+
+            snapshot = snap;
+            lastValidated = System.nanoTime();
+            return snap;
+        }
+    }
+
+    /**
+     * Reads and parses the mount table of this process, skipping malformed lines.
+     */
+    static List<MountEntry> readMountTable() throws IOException {
+        return readMountTable(MOUNT_INFO);
+    }
+
+    static List<MountEntry> readMountTable(Path mountInfo) throws IOException {
+        List<String> lines = Files.readAllLines(mountInfo, StandardCharsets.UTF_8);
+        List<MountEntry> entries = new ArrayList<>(lines.size());
+
+        for (String line : lines) {
+            MountEntry entry = MountEntry.parse(line);
+            if (entry != null)
+                entries.add(entry);
+        }
+
+        return entries;
+    }
+
+    private static Snapshot load() throws IOException {
+
+        List<Path> cgroupMounts = new ArrayList<>();
+        Path unified = null;
+        boolean unifiedIsRoot = false;
+
+        for (MountEntry entry : readMountTable()) {
+            boolean v2 = entry.fsType.equals("cgroup2");
+            boolean cgroup = v2 || entry.fsType.contains("cgroup") || entry.source.contains("cgroup");
+            if (!cgroup)
+                continue;
+
+            cgroupMounts.add(entry.mountPoint);
+
+            if (!v2)
+                continue;
+
+            // bind mounts of a sub-hierarchy carry a root other than "/" and only show part of the tree
+            boolean isRoot = entry.root.equals("/");
+            if (unified == null || (isRoot && !unifiedIsRoot)) {
+                unified = entry.mountPoint;
+                unifiedIsRoot = isRoot;
+            }
+        }
+
+        return new Snapshot(unified, Collections.unmodifiableList(cgroupMounts), deviceOf(unified));
+    }
+
+    private static Object deviceOf(Path path) {
+        if (path == null)
+            return null;
+
+        try {
+            return Files.getAttribute(path, "unix:dev", LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException ignore) {
+            return null;
+        }
+    }
+
+    private static final class Snapshot {
+
+        private final Path unified;
+        private final List<Path> cgroupMounts;
+        private final Object unifiedDevice;
+
+        private Snapshot(Path unified, List<Path> cgroupMounts, Object unifiedDevice) {
+            this.unified = unified;
+            this.cgroupMounts = cgroupMounts;
+            this.unifiedDevice = unifiedDevice;
+        }
+
+        private boolean isValid() {
+            // nothing mounted yet, so a re-read is the only way to notice a new mount
+            if (unified == null || unifiedDevice == null)
+                return false;
+
+            return unifiedDevice.equals(deviceOf(unified));
+        }
+
+    }
+
+    /**
+     * A line of the mount table.
+     *
+     * @param device The device number of the mounted file system, packed with {@link CgFileParser#device(int, int)}
+     */
+    record MountEntry(String root, Path mountPoint, String fsType, String source, long device) {
+
+        /**
+         * Parses a single line of the mountinfo format:
+         * {@code 36 35 98:0 /mnt1 /mnt2 rw,noatime master:1 - ext3 /dev/root rw,errors=continue}
+         */
+        static MountEntry parse(String line) {
+            String[] fields = line.split(" ");
+            if (fields.length < 10)
+                return null;
+
+            int separator = -1;
+            for (int i = 6; i < fields.length; i++) {
+                if (fields[i].equals("-")) {
+                    separator = i;
+                    break;
+                }
+            }
+
+            if (separator == -1 || separator + 2 >= fields.length)
+                return null;
+
+            int colon = fields[2].indexOf(':');
+            long device;
+            try {
+                device = colon == -1 ? -1 : CgFileParser.device(Integer.parseInt(fields[2].substring(0, colon)),
+                        Integer.parseInt(fields[2].substring(colon + 1)));
+            } catch (NumberFormatException ex) {
+                device = -1;
+            }
+
+            return new MountEntry(unescape(fields[3]), Path.of(unescape(fields[4])),
+                    fields[separator + 1], fields[separator + 2], device);
+        }
+
+        /**
+         * The kernel escapes spaces, tabs, newlines and backslashes in paths as octal sequences (e.g. "\040").
+         */
+        private static String unescape(String field) {
+            if (field.indexOf('\\') == -1)
+                return field;
+
+            StringBuilder str = new StringBuilder(field.length());
+            for (int i = 0; i < field.length(); i++) {
+                char c = field.charAt(i);
+
+                if (c == '\\' && isOctal(field, i + 1)) {
+                    str.append((char) Integer.parseInt(field.substring(i + 1, i + 4), 8));
+                    i += 3;
+                } else
+                    str.append(c);
+            }
+
+            return str.toString();
+        }
+
+        private static boolean isOctal(String field, int start) {
+            if (start + 3 > field.length())
+                return false;
+
+            for (int i = start; i < start + 3; i++) {
+                char c = field.charAt(i);
+                if (c < '0' || c > '7')
+                    return false;
+            }
+
+            return true;
+        }
+
+    }
+
+}
@@ -0,0 +1,17 @@
+package net.bc100dev.pfc.cg;
+
+/**
+ * The outcome of an operation on one control group out of a batch, like freezing or tearing down.
+ *
+ * @param cgroup       The name of the control group
+ * @param completed    Whether the operation finished within its timeout
+ * @param elapsedNanos How long the operation took (or ran until it timed out or failed)
+ * @param error        The error that stopped the operation, or null
+ */
+public record CgOperationResult(String cgroup, boolean completed, long elapsedNanos, Exception error) {
+
+    public double elapsedMillis() {
+        return elapsedNanos / 1_000_000.0;
+    }
+
+}
@@ -0,0 +1,602 @@
+package net.bc100dev.pfc.cg;
+
+import net.bc100dev.commons.process.ProcessDelta;
+import net.bc100dev.commons.process.ProcessTable;
+import net.bc100dev.commons.process.TrackedProcess;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * An index from PIDs to the control groups they are in and back, to answer either question without
+ * reading {@code /proc/PID/cgroup} or {@code cgroup.procs}.
+ * <p>
+ * Groups are identified by their cgroup ID, which is the inode number of their directory (the ID the
+ * kernel reports in its own events, too). The index is filled by {@link #reconcile()}, which reads the
+ * {@code cgroup.procs} of every group of the hierarchy on several threads, and kept current in between
+ * from the spawn and exit of processes ({@link #spawned}, {@link #exited}, or the deltas of a
+ * {@link ProcessTable} through {@link #update(ProcessDelta)}) and from the migrations done
+ * through {@link ControlGroup2}, which it listens to. What those miss, like migrations by other tools, is
+ * corrected by the next reconciliation, which {@link #start(long)} runs periodically.
+ * <p>
+ * The maps are open-addressing tables of primitive longs. Lookups take an optimistic read stamp and only
+ * fall back to a read lock if a writer got in between, so they are O(1) and do not allocate.
+ * <pre>
+ * CgPidIndex index = new CgPidIndex();
+ * index.start(30_000);
+ * long cgId = index.cgroupOf(pid);
+ * int count = index.pidsOf(cgId, pidBuffer);
+ * </pre>
+ */
+public class CgPidIndex implements ControlGroup2.MigrationListener {
+
+    private static final int MIN_GROUPS_PER_THREAD = 32;
+
+    private final Path root;
+    private final StampedLock lock = new StampedLock();
+
+    private final LongLongMap pidToCgroup = new LongLongMap(4096);
+    private final LongLongMap cgroupToSlot = new LongLongMap(256);
+    private final Map<String, Long> nameToCgroup = new ConcurrentHashMap<>();
+    private LongSet[] sets = new LongSet[64];
+    private String[] names = new String[64];
+    private long[] slotIds = new long[64];
+    private int[] freeSlots = new int[64];
+    private int freeCount;
+    private int slotCount;
+
+    private int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private long corrections;
+    private long lastScanNanos;
+    private boolean built;
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * Indexes the whole hierarchy of the unified mount.
+     */
+    public CgPidIndex() throws IOException {
+        this(CgMountResolver.getUnifiedMount());
+    }
+
+    /**
+     * @param root The group whose hierarchy to index
+     */
+    public CgPidIndex(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * @param threads The most threads a reconciliation reads the groups on
+     */
+    public synchronized CgPidIndex threads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("At least one thread is needed");
+
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @return The cgroup ID of the group the process is in, or -1 if the index does not know the process
+     */
+    public long cgroupOf(long pid) {
+        long stamp = lock.tryOptimisticRead();
+        long cgId = pidToCgroup.get(pid, -1);
+        if (lock.validate(stamp))
+            return cgId;
+
+        stamp = lock.readLock();
+        try {
+            return pidToCgroup.get(pid, -1);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return The number of processes in the group, 0 if it is unknown
+     */
+    public int count(long cgId) {
+        long stamp = lock.tryOptimisticRead();
+        int count = countUnlocked(cgId);
+        if (lock.validate(stamp))
+            return count;
+
+        stamp = lock.readLock();
+        try {
+            return countUnlocked(cgId);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Copies the PIDs of the processes in a group into an array, in no particular order.
+     *
+     * @return The number of PIDs copied, which is less than {@link #count(long)} if the array is too small
+     */
+    public int pidsOf(long cgId, long[] out) {
+        long stamp = lock.tryOptimisticRead();
+        int count = copyUnlocked(cgId, out);
+        if (lock.validate(stamp))
+            return count;
+
+        stamp = lock.readLock();
+        try {
+            return copyUnlocked(cgId, out);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @param cgName The name of the group, relative to the root of the index
+     * @return Its cgroup ID, or -1 if the index has not seen it
+     */
+    public long idOf(String cgName) {
+        Long cgId = nameToCgroup.get(cgName);
+        return cgId == null ? -1 : cgId;
+    }
+
+    /**
+     * @return The name of a group relative to the root of the index, or null if the index has not seen it
+     */
+    public String nameOf(long cgId) {
+        long stamp = lock.readLock();
+        try {
+            int slot = (int) cgroupToSlot.get(cgId, -1);
+            return slot < 0 ? null : names[slot];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return The number of processes in the index
+     */
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return pidToCgroup.size();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Records a new process in the group of its parent, where the kernel puts it.
+     */
+    public void spawned(long pid, long parentPid) {
+        long stamp = lock.writeLock();
+        try {
+            long cgId = pidToCgroup.get(parentPid, -1);
+            if (cgId > 0)
+                place(pid, cgId);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public void exited(long pid) {
+        long stamp = lock.writeLock();
+        try {
+            long cgId = pidToCgroup.remove(pid, -1);
+            if (cgId > 0)
+                sets[(int) cgroupToSlot.get(cgId, -1)].remove(pid);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Records the exits and spawns found by a refresh of a {@link ProcessTable}.
+     */
+    public void update(ProcessDelta delta) {
+        long stamp = lock.writeLock();
+        try {
+            // a reused PID is in both lists, so the exits go first
+            for (TrackedProcess process : delta.exited()) {
+                long cgId = pidToCgroup.remove(process.getPid(), -1);
+                if (cgId > 0)
+                    sets[(int) cgroupToSlot.get(cgId, -1)].remove(process.getPid());
+            }
+
+            for (TrackedProcess process : delta.spawned()) {
+                long cgId = pidToCgroup.get(process.getParentPid(), -1);
+                if (cgId > 0)
+                    place(process.getPid(), cgId);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Records that a process was moved into a group the index knows.
+     */
+    public void migrated(long pid, long cgId) {
+        long stamp = lock.writeLock();
+        try {
+            if (cgroupToSlot.get(cgId, -1) >= 0)
+                place(pid, cgId);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Records that a process was moved into the group of a directory, which is added to the index if
+     * it is new.
+     */
+    @Override
+    public void onMigrated(long pid, Path cgPath) {
+        if (!cgPath.startsWith(root))
+            return;
+
+        long cgId;
+        try {
+            cgId = (Long) Files.getAttribute(cgPath, "unix:ino");
+        } catch (IOException | UnsupportedOperationException ex) {
+            // gone already; the next reconciliation drops the process
+            return;
+        }
+
+        String name = root.relativize(cgPath).toString();
+        long stamp = lock.writeLock();
+        try {
+            if (cgroupToSlot.get(cgId, -1) < 0)
+                addGroup(cgId, name);
+
+            place(pid, cgId);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Reads the processes of every group of the hierarchy and replaces the contents of the index with
+     * them. Changes recorded while the groups are read may be lost, but are picked up by the next one.
+     */
+    public void reconcile() throws IOException {
+        long start = System.nanoTime();
+
+        List<Path> dirs = new ArrayList<>();
+        dirs.add(root);
+        for (int i = 0; i < dirs.size(); i++)
+            listChildren(dirs.get(i), dirs);
+
+        int workers;
+        synchronized (this) {
+            workers = Math.max(1, Math.min(threads, dirs.size() / MIN_GROUPS_PER_THREAD));
+        }
+
+        Scan[] scans = new Scan[workers];
+        int chunk = (dirs.size() + workers - 1) / workers;
+        for (int i = 0; i < workers; i++)
+            scans[i] = new Scan(dirs, i * chunk, Math.min(dirs.size(), (i + 1) * chunk));
+
+        if (workers == 1)
+            scans[0].run();
+        else
+            scanParallel(scans);
+
+        long stamp = lock.writeLock();
+        try {
+            merge(scans);
+            lastScanNanos = System.nanoTime() - start;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return How many processes the reconciliations found somewhere else than the index had them, or
+     * had not been in the index at all, or were gone; all of it missed by the incremental updates
+     */
+    public long getCorrections() {
+        long stamp = lock.readLock();
+        try {
+            return corrections;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public long getLastScanNanos() {
+        long stamp = lock.readLock();
+        try {
+            return lastScanNanos;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Reconciles right away and then periodically on a daemon thread, and follows the migrations done
+     * through {@link ControlGroup2} until {@link #stop()}.
+     */
+    public synchronized void start(long intervalMillis) {
+        if (executor != null)
+            throw new IllegalStateException("Index is already running");
+
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pfc-pid-index");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        ControlGroup2.addMigrationListener(this);
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                reconcile();
+            } catch (IOException ignore) {
+                // the root is gone; the lookups keep answering from the last state
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        ScheduledExecutorService exec;
+        synchronized (this) {
+            exec = executor;
+            executor = null;
+        }
+
+        if (exec != null) {
+            ControlGroup2.removeMigrationListener(this);
+            exec.shutdownNow();
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return executor != null;
+    }
+
+    private int countUnlocked(long cgId) {
+        LongSet[] setArray = sets;
+        int slot = (int) cgroupToSlot.get(cgId, -1);
+        if (slot < 0 || slot >= setArray.length || setArray[slot] == null)
+            return 0;
+
+        return setArray[slot].size();
+    }
+
+    private int copyUnlocked(long cgId, long[] out) {
+        LongSet[] setArray = sets;
+        int slot = (int) cgroupToSlot.get(cgId, -1);
+        if (slot < 0 || slot >= setArray.length || setArray[slot] == null)
+            return 0;
+
+        return setArray[slot].copyTo(out);
+    }
+
+    /**
+     * Moves a process into a known group. Needs the write lock.
+     */
+    private void place(long pid, long cgId) {
+        long previous = pidToCgroup.put(pid, cgId, -1);
+        if (previous == cgId)
+            return;
+
+        if (previous > 0)
+            sets[(int) cgroupToSlot.get(previous, -1)].remove(pid);
+
+        sets[(int) cgroupToSlot.get(cgId, -1)].add(pid);
+    }
+
+    /**
+     * Needs the write lock.
+     */
+    private int addGroup(long cgId, String name) {
+        int slot;
+        if (freeCount > 0)
+            slot = freeSlots[--freeCount];
+        else {
+            if (slotCount == sets.length) {
+                int length = sets.length * 2;
+                sets = Arrays.copyOf(sets, length);
+                names = Arrays.copyOf(names, length);
+                slotIds = Arrays.copyOf(slotIds, length);
+            }
+
+            slot = slotCount++;
+        }
+
+        if (sets[slot] == null)
+            sets[slot] = new LongSet(16);
+
+        names[slot] = name;
+        slotIds[slot] = cgId;
+        cgroupToSlot.put(cgId, slot, -1);
+        nameToCgroup.put(name, cgId);
+        return slot;
+    }
+
+    /**
+     * Needs the write lock.
+     */
+    private void removeGroup(int slot) {
+        cgroupToSlot.remove(slotIds[slot], -1);
+        nameToCgroup.remove(names[slot], slotIds[slot]);
+        sets[slot].clear();
+        names[slot] = null;
+        slotIds[slot] = 0;
+
+        if (freeCount == freeSlots.length)
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+
+        freeSlots[freeCount++] = slot;
+    }
+
+    /**
+     * Replaces the contents of the index with the scanned ones, counting the differences. Needs the
+     * write lock.
+     */
+    private void merge(Scan[] scans) {
+        long scanned = 0;
+        long matching = 0;
+        long previousSize = pidToCgroup.size();
+
+        for (Scan scan : scans) {
+            for (int i = 0; i < scan.pidCount; i++) {
+                if (pidToCgroup.get(scan.pids[i], -1) == scan.ids[scan.pidGroups[i]])
+                    matching++;
+            }
+
+            scanned += scan.pidCount;
+        }
+
+        // the first scan fills the index, there is nothing to correct yet
+        if (built)
+            corrections += (scanned - matching) + (previousSize - matching);
+
+        built = true;
+
+        // groups that are gone free their slots, the others keep theirs and start empty
+        boolean[] seen = new boolean[slotCount];
+        for (Scan scan : scans) {
+            for (int g = 0; g < scan.groupCount; g++) {
+                int slot = (int) cgroupToSlot.get(scan.ids[g], -1);
+                if (slot < 0)
+                    slot = addGroup(scan.ids[g], scan.names[g]);
+                else if (!scan.names[g].equals(names[slot])) {
+                    nameToCgroup.remove(names[slot], scan.ids[g]);
+                    names[slot] = scan.names[g];
+                    nameToCgroup.put(scan.names[g], scan.ids[g]);
+                }
+
+                if (slot < seen.length)
+                    seen[slot] = true;
+
+                sets[slot].clear();
+            }
+        }
+
+        for (int slot = 0; slot < seen.length; slot++) {
+            if (!seen[slot] && slotIds[slot] != 0)
+                removeGroup(slot);
+        }
+
+        pidToCgroup.clear();
+        for (Scan scan : scans) {
+            for (int i = 0; i < scan.pidCount; i++) {
+                long cgId = scan.ids[scan.pidGroups[i]];
+                pidToCgroup.put(scan.pids[i], cgId, -1);
+                sets[(int) cgroupToSlot.get(cgId, -1)].add(scan.pids[i]);
+            }
+        }
+    }
+
+    private static void scanParallel(Scan[] scans) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(scans.length);
+
+        try {
+            List<Future<?>> futures = new ArrayList<>(scans.length);
+            for (Scan scan : scans)
+                futures.add(executor.submit(scan));
+
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("PID index scan interrupted", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void listChildren(Path dir, List<Path> dirs) {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, Files::isDirectory)) {
+            for (Path child : stream)
+                dirs.add(child);
+        } catch (IOException ignore) {
+            // removed while listing
+        }
+    }
+
+    /**
+     * The groups of a part of the hierarchy and their processes, read on one thread.
+     */
+    private final class Scan implements Runnable {
+
+        private final List<Path> dirs;
+        private final int from, to;
+
+        private final long[] ids;
+        private final String[] names;
+        private int groupCount;
+
+        private long[] pids = new long[256];
+        private int[] pidGroups = new int[256];
+        private int pidCount;
+
+        private Scan(List<Path> dirs, int from, int to) {
+            this.dirs = dirs;
+            this.from = from;
+            this.to = to;
+            this.ids = new long[to - from];
+            this.names = new String[to - from];
+        }
+
+        @Override
+        public void run() {
+            for (int i = from; i < to; i++) {
+                Path dir = dirs.get(i);
+                ByteBuffer buff;
+                long cgId;
+
+                try {
+                    cgId = (Long) Files.getAttribute(dir, "unix:ino");
+                    // read to the end, cgroup.procs comes a page at a time; a reconcile touches every group
+                    // once, so the handles are not kept around to push the hot ones out of the pool
+                    buff = ControlGroup2.HANDLES.readUnpooled(dir.resolve("cgroup.procs"));
+                } catch (IOException ex) {
+                    // removed since it was listed
+                    continue;
+                }
+
+                int group = groupCount++;
+                ids[group] = cgId;
+                names[group] = root.relativize(dir).toString();
+
+                int limit = buff.limit();
+                int pos = buff.position();
+                while (pos < limit) {
+                    int lineEnd = CgFileParser.lineEnd(buff, pos, limit);
+
+                    if (lineEnd > pos) {
+                        if (pidCount == pids.length) {
+                            pids = Arrays.copyOf(pids, pidCount * 2);
+                            pidGroups = Arrays.copyOf(pidGroups, pidCount * 2);
+                        }
+
+                        pids[pidCount] = CgFileParser.parseValue(buff, pos, lineEnd);
+                        pidGroups[pidCount++] = group;
+                    }
+
+                    pos = lineEnd + 1;
+                }
+            }
+        }
+
+    }
+
+}
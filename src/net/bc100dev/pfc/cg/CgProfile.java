@@ -0,0 +1,183 @@
+package net.bc100dev.pfc.cg;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A declarative description of a control group: where it lives, which controllers it needs and which
+ * values its control files should have. Profiles are applied with {@link CgProfileApplier}.
+ * <p>
+ * Profiles are kept in JSON files:
+ * <pre>
+ * {
+ *     "version": 1,
+ *     "label": "Web services",
+ *     "profiles": [
+ *         {
+ *             "cgroup": "services/web",
+ *             "controllers": ["cpu", "memory"],
+ *             "subtree_controllers": ["cpu"],
+ *             "limits": {
+ *                 "cpu.max": "50000 100000",
+ *                 "memory.high": "512M",
+ *                 "pids.max": 256
+ *             }
+ *         }
+ *     ]
+ * }
+ * </pre>
+ * The controllers a limit file belongs to (like {@code memory} for {@code memory.high}) are needed
+ * implicitly and do not have to be listed.
+ */
+public class CgProfile {
+
+    private final String cgroup;
+    private final List<String> controllers;
+    private final List<String> subtreeControllers;
+    private final Map<String, String> limits;
+
+    /**
+     * @param cgroup             The name of the group, relative to the cgroup2 mount
+     * @param controllers        The controllers the group needs, enabled in the parent groups
+     * @param subtreeControllers The controllers to enable for the children of the group
+     * @param limits             The control files and the values they should have
+     */
+    public CgProfile(String cgroup, List<String> controllers, List<String> subtreeControllers, Map<String, String> limits) {
+        this.cgroup = trimSlashes(cgroup);
+        if (this.cgroup.isEmpty())
+            throw new IllegalArgumentException("A profile cannot describe the root group");
+
+        // the files are written in sorted order, which happens to write "cpuset.cpus" before "cpuset.cpus.partition"
+        this.limits = Collections.unmodifiableMap(new TreeMap<>(limits));
+
+        Set<String> needed = new LinkedHashSet<>(controllers);
+        for (String file : this.limits.keySet()) {
+            if (file.indexOf('/') != -1 || file.equals("cgroup.subtree_control") || file.equals("cgroup.procs"))
+                throw new IllegalArgumentException(String.format("\"%s\" cannot be set through a profile", file));
+
+            int dot = file.indexOf('.');
+            if (dot > 0 && !file.startsWith("cgroup."))
+                needed.add(file.substring(0, dot));
+        }
+
+        this.controllers = List.copyOf(needed);
+        this.subtreeControllers = List.copyOf(subtreeControllers);
+    }
+
+    public String getCgroup() {
+        return cgroup;
+    }
+
+    public List<String> getControllers() {
+        return controllers;
+    }
+
+    public List<String> getSubtreeControllers() {
+        return subtreeControllers;
+    }
+
+    public Map<String, String> getLimits() {
+        return limits;
+    }
+
+    /**
+     * Parses the profiles of a profile file.
+     *
+     * @param contents The JSON contents
+     * @return The profiles, in the order of the file
+     * @throws IOException If the contents are not a valid profile file
+     */
+    public static List<CgProfile> parse(String contents) throws IOException {
+        try {
+            JSONObject obj = new JSONObject(contents);
+
+            if (!obj.has("version"))
+                throw new IOException("\"version\" key not found");
+
+            if (!obj.has("profiles"))
+                throw new IOException("\"profiles\" key not found");
+
+            JSONArray arr = obj.getJSONArray("profiles");
+            List<CgProfile> profiles = new ArrayList<>(arr.length());
+
+            for (int i = 0; i < arr.length(); i++) {
+                JSONObject profObj = arr.getJSONObject(i);
+
+                if (!profObj.has("cgroup"))
+                    throw new IOException(String.format("\"%s\" key at entry %d not found", "cgroup", i + 1));
+
+                Map<String, String> limits = new TreeMap<>();
+                JSONObject limitsObj = profObj.optJSONObject("limits");
+                if (limitsObj != null) {
+                    for (String file : limitsObj.keySet())
+                        limits.put(file, String.valueOf(limitsObj.get(file)));
+                }
+
+                try {
+                    profiles.add(new CgProfile(profObj.getString("cgroup"), strings(profObj.optJSONArray("controllers")),
+                            strings(profObj.optJSONArray("subtree_controllers")), limits));
+                } catch (IllegalArgumentException ex) {
+                    throw new IOException(String.format("Entry %d: %s", i + 1, ex.getMessage()));
+                }
+            }
+
+            return profiles;
+        } catch (JSONException ex) {
+            throw new IOException("JSON Parse (" + ex.getMessage() + ")", ex);
+        }
+    }
+
+    public static List<CgProfile> load(File file) throws IOException {
+        if (!file.exists())
+            throw new FileNotFoundException("File at \"" + file.getAbsolutePath() + "\" not found");
+
+        if (!file.canRead())
+            throw new AccessDeniedException("The current user cannot read the file at \"" + file.getAbsolutePath() + "\"");
+
+        FileInputStream fis = new FileInputStream(file);
+        byte[] buff = fis.readAllBytes();
+        fis.close();
+
+        return parse(new String(buff).trim());
+    }
+
+    private static List<String> strings(JSONArray arr) {
+        if (arr == null)
+            return List.of();
+
+        List<String> list = new ArrayList<>(arr.length());
+        for (int i = 0; i < arr.length(); i++) {
+            if (arr.get(i) instanceof String str && !list.contains(str))
+                list.add(str);
+        }
+
+        return list;
+    }
+
+    private static String trimSlashes(String name) {
+        int start = 0, end = name.length();
+
+        while (start < end && name.charAt(start) == '/')
+            start++;
+
+        while (end > start && name.charAt(end - 1) == '/')
+            end--;
+
+        return name.substring(start, end);
+    }
+
+}
@@ -0,0 +1,328 @@
+package net.bc100dev.pfc.cg;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Applies {@link CgProfile}s to the hierarchy, writing only the values that differ from what the kernel
+ * reports, so re-applying unchanged profiles only costs reads.
+ * <p>
+ * The controllers are enabled first, one level of the hierarchy at a time, as a group can only enable
+ * what its parent enabled for it: every ancestor of a profile gets the controllers in its
+ * {@code cgroup.subtree_control}, missing groups are created on the way. Then the limits of all profiles
+ * are compared and written in parallel.
+ * <pre>
+ * CgApplyResult result = new CgProfileApplier()
+ *         .parallelism(8)
+ *         .dryRun(true)
+ *         .apply(CgProfile.load(new File("services.json")));
+ * </pre>
+ */
+public class CgProfileApplier {
+
+    /**
+     * The kernel rounds the memory limits down to whole pages, and the hugetlb limits to whole huge pages.
+     */
+    private static final long PAGE_SIZE = 4096;
+
+    private int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private boolean dryRun;
+
+    public CgProfileApplier parallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism needs to be at least 1");
+
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Only reads the current state and reports what would be changed.
+     */
+    public CgProfileApplier dryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+        return this;
+    }
+
+    public CgApplyResult apply(List<CgProfile> profiles) {
+        long start = System.nanoTime();
+        Run run = new Run();
+
+        // the controllers every group needs to enable for its children, by level
+        List<Map<String, Set<String>>> levels = new ArrayList<>();
+        for (CgProfile profile : profiles) {
+            String name = profile.getCgroup();
+            String[] parts = name.split("/");
+
+            String ancestor = "";
+            for (int depth = 0; depth <= parts.length; depth++) {
+                List<String> enable = depth < parts.length ? profile.getControllers() : profile.getSubtreeControllers();
+                while (levels.size() <= depth)
+                    levels.add(new TreeMap<>());
+
+                levels.get(depth).computeIfAbsent(ancestor, k -> new LinkedHashSet<>()).addAll(enable);
+
+                if (depth < parts.length)
+                    ancestor = ancestor.isEmpty() ? parts[depth] : ancestor + "/" + parts[depth];
+            }
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            for (Map<String, Set<String>> level : levels) {
+                List<ForkJoinTask<?>> tasks = new ArrayList<>(level.size());
+                for (Map.Entry<String, Set<String>> entry : level.entrySet())
+                    tasks.add(pool.submit(() -> run.prepare(entry.getKey(), entry.getValue())));
+
+                for (ForkJoinTask<?> task : tasks)
+                    task.join();
+            }
+
+            List<ForkJoinTask<?>> tasks = new ArrayList<>(profiles.size());
+            for (CgProfile profile : profiles)
+                tasks.add(pool.submit(() -> run.applyLimits(profile)));
+
+            for (ForkJoinTask<?> task : tasks)
+                task.join();
+        } finally {
+            pool.shutdown();
+        }
+
+        // group the changes by control group, parents before their children
+        List<CgApplyResult.Change> changes = new ArrayList<>();
+        for (Map<String, Set<String>> level : levels) {
+            for (String name : level.keySet()) {
+                List<CgApplyResult.Change> list = run.changes.remove(name);
+                if (list != null)
+                    changes.addAll(list);
+            }
+        }
+
+        return new CgApplyResult(changes, new TreeMap<>(run.errors), run.reads.get(), run.writes.get(),
+                dryRun, System.nanoTime() - start);
+    }
+
+    /**
+     * Compares a value as written in a profile to the value the kernel reports. The kernel normalizes
+     * what it is given: sizes with a suffix are reported in bytes and rounded down to pages, a lone
+     * {@code cpu.max} quota keeps the period, and {@code io.max} style files report all keys of a device.
+     */
+    static boolean sameValue(String file, String desired, String current) {
+        String[] want = tokens(desired);
+        String[] have = tokens(current);
+
+        if (Arrays.equals(want, have))
+            return true;
+
+        if (want.length == 0)
+            return false;
+
+        // nested keyed: "8:0 rbps=1000" against one line per device
+        if (want[0].indexOf(':') > 0) {
+            for (String line : current.split("\n")) {
+                String[] lineTokens = tokens(line);
+                if (lineTokens.length == 0 || !lineTokens[0].equals(want[0]))
+                    continue;
+
+                for (int i = 1; i < want.length; i++) {
+                    if (!Arrays.asList(lineTokens).contains(want[i]))
+                        return false;
+                }
+
+                return true;
+            }
+
+            // a device that has no limits left is not listed anymore
+            for (int i = 1; i < want.length; i++) {
+                if (!want[i].endsWith("=max"))
+                    return false;
+            }
+
+            return true;
+        }
+
+        if (want.length > have.length)
+            return false;
+
+        long granularity = granularity(file);
+        for (int i = 0; i < want.length; i++) {
+            if (want[i].equals(have[i]))
+                continue;
+
+            long wanted = CgFileParser.parseSize(want[i]);
+            long actual = CgFileParser.parseSize(have[i]);
+            if (wanted < 0 || actual < 0)
+                return false;
+
+            if (wanted != CgFileParser.MAX)
+                wanted = wanted / granularity * granularity;
+
+            if (wanted != actual)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return The unit the kernel rounds the values of the file down to
+     */
+    private static long granularity(String file) {
+        if (file.startsWith("memory."))
+            return PAGE_SIZE;
+
+        // hugetlb.<size>.max and friends, the size being like "2MB" or "1GB"
+        if (file.startsWith("hugetlb.")) {
+            int end = file.indexOf('.', 8);
+            if (end > 9 && file.charAt(end - 1) == 'B') {
+                long size = CgFileParser.parseSize(file.substring(8, end - 1));
+                if (size > 0)
+                    return size;
+            }
+        }
+
+        return 1;
+    }
+
+    private static String[] tokens(String value) {
+        String trimmed = value.trim();
+        return trimmed.isEmpty() ? new String[0] : trimmed.split("\\s+");
+    }
+
+    /**
+     * The state of one {@link #apply(List)} call, shared by its tasks.
+     */
+    private final class Run {
+
+        private final Map<String, List<CgApplyResult.Change>> changes = new ConcurrentHashMap<>();
+        private final Map<String, Exception> errors = new ConcurrentHashMap<>();
+        private final Set<String> created = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger reads = new AtomicInteger();
+        private final AtomicInteger writes = new AtomicInteger();
+
+        /**
+         * Creates the group if it is missing and enables the controllers for its children.
+         */
+        private void prepare(String name, Set<String> enable) {
+            if (failedAbove(name))
+                return;
+
+            try {
+                Path path = CgMountResolver.resolve(name);
+                ControlGroup2 cg = new ControlGroup2(name, path);
+
+                if (!Files.isDirectory(path)) {
+                    change(name, null, null, null);
+
+                    if (dryRun) {
+                        created.add(name);
+                    } else {
+                        Files.createDirectory(path);
+                        writes.incrementAndGet();
+                    }
+                }
+
+                if (enable.isEmpty())
+                    return;
+
+                List<String> current = created.contains(name) ? List.of() : tokensOf(read(cg, "cgroup.subtree_control"));
+
+                StringBuilder missing = new StringBuilder();
+                for (String controller : enable) {
+                    if (current.contains(controller))
+                        continue;
+
+                    if (!missing.isEmpty())
+                        missing.append(' ');
+
+                    missing.append('+').append(controller);
+                }
+
+                if (missing.isEmpty())
+                    return;
+
+                change(name, "cgroup.subtree_control", String.join(" ", current), missing.toString());
+                if (!dryRun) {
+                    cg.setValue("cgroup.subtree_control", missing.toString());
+                    writes.incrementAndGet();
+                }
+            } catch (IOException ex) {
+                errors.put(name, ex);
+            }
+        }
+
+        private void applyLimits(CgProfile profile) {
+            String name = profile.getCgroup();
+            if (failedAbove(name) || errors.containsKey(name))
+                return;
+
+            ControlGroup2 cg;
+            try {
+                cg = new ControlGroup2(name, CgMountResolver.resolve(name));
+            } catch (IOException ex) {
+                errors.put(name, ex);
+                return;
+            }
+
+            boolean fresh = created.contains(name);
+
+            for (Map.Entry<String, String> limit : profile.getLimits().entrySet()) {
+                String file = limit.getKey();
+                String desired = limit.getValue();
+
+                try {
+                    // a group created on a dry run does not exist to be read
+                    String current = fresh ? null : read(cg, file).trim();
+                    if (current != null && sameValue(file, desired, current))
+                        continue;
+
+                    change(name, file, current, desired);
+                    if (!dryRun) {
+                        cg.setValue(file, desired);
+                        writes.incrementAndGet();
+                    }
+                } catch (IOException ex) {
+                    errors.put(name, new IOException(file + ": " + ex.getMessage(), ex));
+                    return;
+                }
+            }
+        }
+
+        private String read(ControlGroup2 cg, String file) throws IOException {
+            reads.incrementAndGet();
+            return ControlGroup2.HANDLES.readString(cg.getPath().resolve(file));
+        }
+
+        private void change(String name, String file, String oldValue, String newValue) {
+            changes.computeIfAbsent(name, k -> new ArrayList<>())
+                    .add(new CgApplyResult.Change(name, file, oldValue, newValue));
+        }
+
+        private boolean failedAbove(String name) {
+            for (String failed : errors.keySet()) {
+                if (failed.isEmpty() || name.startsWith(failed + "/"))
+                    return true;
+            }
+
+            return false;
+        }
+
+        private List<String> tokensOf(String str) {
+            return Arrays.asList(tokens(str));
+        }
+
+    }
+
+}
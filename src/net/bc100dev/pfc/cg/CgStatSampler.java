@@ -0,0 +1,205 @@
+package net.bc100dev.pfc.cg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples statistics of a set of control groups at a fixed interval. The control files are read through
+ * the shared handle pool and parsed straight into primitive arrays, and the last N samples per group and
+ * metric are kept in preallocated {@link SampleRing}s, so a sampling pass does not produce garbage.
+ */
+public class CgStatSampler {
+
+    /**
+     * A control file that is missing (e.g. {@code io.stat} with the io controller disabled) is only
+     * retried every this many passes, as every failed open costs an exception.
+     */
+    private static final int MISSING_RETRY_PASSES = 64;
+
+    private final int history;
+    private final CgMetric[] metrics;
+    private final long[] scratch;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile Entry[] entryArray = new Entry[0];
+
+    private ScheduledExecutorService executor;
+    private volatile long passes;
+    private volatile long lastPassNanos;
+
+    /**
+     * @param history The number of samples kept per group and metric
+     * @param metrics The metrics to sample
+     */
+    public CgStatSampler(int history, CgMetric... metrics) {
+        if (metrics == null || metrics.length == 0)
+            throw new IllegalArgumentException("No metrics to sample");
+
+        this.history = history;
+        this.metrics = metrics.clone();
+
+        int maxFields = 0;
+        for (CgMetric metric : metrics)
+            maxFields = Math.max(maxFields, metric.fieldCount());
+
+        this.scratch = new long[maxFields];
+    }
+
+    public void add(ControlGroup2 cg) {
+        entries.computeIfAbsent(cg.getName(), name -> new Entry(cg, metrics, history));
+        rebuildArray();
+    }
+
+    public void remove(String cgName) {
+        if (entries.remove(cgName) != null)
+            rebuildArray();
+    }
+
+    public Set<String> getGroups() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    /**
+     * @return The samples of a metric for a group, or null if the group or the metric is not sampled
+     */
+    public SampleRing getRing(String cgName, CgMetric metric) {
+        Entry entry = entries.get(cgName);
+        if (entry == null)
+            return null;
+
+        for (int i = 0; i < metrics.length; i++) {
+            if (metrics[i] == metric)
+                return entry.rings[i];
+        }
+
+        return null;
+    }
+
+    /**
+     * @return The change of a field between the latest two samples, or 0 if not enough samples are available
+     */
+    public long delta(String cgName, CgMetric metric, String field) {
+        SampleRing ring = getRing(cgName, metric);
+        int index = metric.fieldIndex(field);
+        if (ring == null || index == -1)
+            return 0;
+
+        return ring.delta(index);
+    }
+
+    /**
+     * @return The change of a field per second between the latest two samples
+     */
+    public double rate(String cgName, CgMetric metric, String field) {
+        SampleRing ring = getRing(cgName, metric);
+        int index = metric.fieldIndex(field);
+        if (ring == null || index == -1)
+            return 0;
+
+        return ring.rate(index);
+    }
+
+    public long getPasses() {
+        return passes;
+    }
+
+    /**
+     * @return How long the last sampling pass took, in nanoseconds
+     */
+    public long getLastPassNanos() {
+        return lastPassNanos;
+    }
+
+    /**
+     * Samples all groups once, on the calling thread.
+     */
+    public synchronized void sampleOnce() {
+        long start = System.nanoTime();
+        Entry[] arr = entryArray;
+
+        for (Entry entry : arr)
+            sample(entry);
+
+        lastPassNanos = System.nanoTime() - start;
+        passes++;
+    }
+
+    public synchronized void start(long intervalMillis) {
+        if (executor != null)
+            throw new IllegalStateException("Sampler is already running");
+
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pfc-cg-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        executor.scheduleAtFixedRate(this::sampleOnce, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (executor == null)
+            return;
+
+        executor.shutdownNow();
+        executor = null;
+    }
+
+    public synchronized boolean isRunning() {
+        return executor != null;
+    }
+
+    private void sample(Entry entry) {
+        for (int i = 0; i < metrics.length; i++) {
+            if (entry.skip[i] > 0) {
+                entry.skip[i]--;
+                continue;
+            }
+
+            CgMetric metric = metrics[i];
+            try {
+                ByteBuffer buff = entry.cg.readBuffer(metric.getFile());
+                long now = System.nanoTime();
+
+                for (int f = 0; f < metric.fieldCount(); f++)
+                    scratch[f] = 0;
+
+                metric.parse(buff, scratch, 0);
+                entry.rings[i].record(now, scratch, 0);
+            } catch (IOException ex) {
+                entry.skip[i] = MISSING_RETRY_PASSES;
+            }
+        }
+    }
+
+    private void rebuildArray() {
+        synchronized (entries) {
+            entryArray = entries.values().toArray(new Entry[0]);
+        }
+    }
+
+    private static final class Entry {
+
+        private final ControlGroup2 cg;
+        private final SampleRing[] rings;
+        private final int[] skip;
+
+        private Entry(ControlGroup2 cg, CgMetric[] metrics, int history) {
+            this.cg = cg;
+            this.rings = new SampleRing[metrics.length];
+            this.skip = new int[metrics.length];
+
+            for (int i = 0; i < metrics.length; i++)
+                rings[i] = new SampleRing(history, metrics[i].fieldCount());
+        }
+
+    }
+
+}
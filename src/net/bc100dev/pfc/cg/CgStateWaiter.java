@@ -0,0 +1,176 @@
+package net.bc100dev.pfc.cg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Waits for a state in {@code cgroup.events} ({@code populated} or {@code frozen}) without polling.
+ * A single watch service and thread serve all waiters; a group directory is only watched while somebody
+ * waits on it. Like {@link CgEventWatcher}, the events file is kept open while it is watched, as the
+ * kernel only notifies about files with a cached inode.
+ */
+class CgStateWaiter {
+
+    static final int POPULATED = 0;
+    static final int FROZEN = 1;
+
+    private static final byte[][] KEYS = CgFileParser.keys("populated", "frozen");
+
+    private static CgStateWaiter instance;
+
+    private final WatchService watchService;
+    private final Map<Path, Watch> watches = new HashMap<>();
+    private final Map<WatchKey, Watch> keys = new HashMap<>();
+    private final ByteBuffer buff = ByteBuffer.allocateDirect(256);
+    private final long[] values = new long[KEYS.length];
+
+    private CgStateWaiter() throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+
+        Thread thread = new Thread(this::run, "pfc-cg-state-waiter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static synchronized CgStateWaiter get() throws IOException {
+        if (instance == null)
+            instance = new CgStateWaiter();
+
+        return instance;
+    }
+
+    /**
+     * Returns a future that completes once the key (see {@link #POPULATED}, {@link #FROZEN}) of the
+     * group's {@code cgroup.events} has the expected value. It completes right away if it has it already.
+     * Cancelling the future stops watching.
+     */
+    CompletableFuture<Void> await(Path cgPath, int key, long expected) throws IOException {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        Waiter waiter = new Waiter(key, expected, future);
+
+        synchronized (this) {
+            Watch watch = watches.get(cgPath);
+            if (watch == null) {
+                FileChannel channel = FileChannel.open(cgPath.resolve("cgroup.events"), StandardOpenOption.READ);
+
+                try {
+                    WatchKey watchKey = cgPath.register(watchService, StandardWatchEventKinds.ENTRY_MODIFY);
+                    watch = new Watch(cgPath, watchKey, channel);
+                } catch (IOException ex) {
+                    channel.close();
+                    throw ex;
+                }
+
+                watches.put(cgPath, watch);
+                keys.put(watch.key, watch);
+            }
+
+            watch.waiters.add(waiter);
+
+            // registered before reading, so a change in between is not lost
+            check(watch);
+        }
+
+        future.whenComplete((v, ex) -> remove(cgPath, waiter));
+        return future;
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+
+                synchronized (this) {
+                    Watch watch = keys.get(key);
+                    boolean changed = false;
+
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW || "cgroup.events".equals(event.context().toString()))
+                            changed = true;
+                    }
+
+                    if (watch != null && changed)
+                        check(watch);
+
+                    if (!key.reset() && watch != null) {
+                        // the group is gone, nobody will see the awaited state anymore
+                        for (Waiter waiter : new ArrayList<>(watch.waiters))
+                            waiter.future.completeExceptionally(new IOException("Control group \"" + watch.path + "\" was removed"));
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ignore) {
+        }
+    }
+
+    private void check(Watch watch) {
+        try {
+            buff.clear();
+            watch.channel.read(buff, 0);
+            buff.flip();
+
+            values[POPULATED] = -1;
+            values[FROZEN] = -1;
+            CgFileParser.parseFlatKeyed(buff, KEYS, values, 0);
+        } catch (IOException ex) {
+            return;
+        }
+
+        for (Waiter waiter : new ArrayList<>(watch.waiters)) {
+            if (values[waiter.key] == waiter.expected)
+                waiter.future.complete(null);
+        }
+    }
+
+    private synchronized void remove(Path cgPath, Waiter waiter) {
+        Watch watch = watches.get(cgPath);
+        if (watch == null)
+            return;
+
+        watch.waiters.remove(waiter);
+        if (!watch.waiters.isEmpty())
+            return;
+
+        watches.remove(cgPath);
+        keys.remove(watch.key);
+        watch.key.cancel();
+
+        try {
+            watch.channel.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    private record Waiter(int key, long expected, CompletableFuture<Void> future) {
+    }
+
+    private static final class Watch {
+
+        private final Path path;
+        private final WatchKey key;
+        private final FileChannel channel;
+        private final List<Waiter> waiters = new ArrayList<>();
+
+        private Watch(Path path, WatchKey key, FileChannel channel) {
+            this.path = path;
+            this.key = key;
+            this.channel = channel;
+        }
+
+    }
+
+}
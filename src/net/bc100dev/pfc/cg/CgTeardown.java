@@ -0,0 +1,250 @@
+package net.bc100dev.pfc.cg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Kills every process of a set of control groups and removes the groups along with their descendants.
+ * <p>
+ * Where the kernel has {@code cgroup.kill} (5.14 and newer), a single write kills the whole subtree.
+ * Otherwise the groups are frozen, so that nothing can fork while the PIDs are collected, every process
+ * gets a SIGKILL and the groups are thawed again to let them exit. Instead of polling, the teardown waits
+ * for {@code cgroup.events} to report {@code populated 0}, and then removes the directories depth-first,
+ * with the siblings of a level removed in parallel.
+ */
+class CgTeardown {
+
+    static List<CgOperationResult> teardown(List<ControlGroup2> groups, long timeoutMillis, int parallelism) {
+        int size = groups.size();
+        long[] starts = new long[size];
+        long[] ends = new long[size];
+        Exception[] errors = new Exception[size];
+        List<CompletableFuture<Void>> futures = new ArrayList<>(size);
+        List<ControlGroup2> fallback = new ArrayList<>();
+
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+
+        for (int i = 0; i < size; i++) {
+            ControlGroup2 cg = groups.get(i);
+            starts[i] = System.nanoTime();
+
+            try {
+                CompletableFuture<Void> future = CgStateWaiter.get().await(cg.getPath(), CgStateWaiter.POPULATED, 0);
+                futures.add(future);
+
+                if (future.isDone())
+                    continue;
+
+                if (Files.exists(cg.getPath().resolve("cgroup.kill")))
+                    cg.setValue("cgroup.kill", "1");
+                else
+                    fallback.add(cg);
+            } catch (IOException ex) {
+                errors[i] = ex;
+                ends[i] = System.nanoTime();
+
+                if (futures.size() > i)
+                    futures.get(i).cancel(false);
+                else
+                    futures.add(null);
+            }
+        }
+
+        if (!fallback.isEmpty())
+            killFrozen(fallback, timeoutMillis);
+
+        for (int i = 0; i < size; i++) {
+            CompletableFuture<Void> future = futures.get(i);
+            if (future == null || errors[i] != null)
+                continue;
+
+            try {
+                future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException ex) {
+                future.cancel(false);
+                ends[i] = System.nanoTime();
+                futures.set(i, null);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                future.cancel(false);
+                errors[i] = ex;
+                ends[i] = System.nanoTime();
+            } catch (ExecutionException ex) {
+                errors[i] = ex.getCause() instanceof Exception cause ? cause : ex;
+                ends[i] = System.nanoTime();
+            }
+        }
+
+        // every group that is empty now is removed, all of them on the same pool
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<RemoveTask> tasks = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                if (futures.get(i) == null || errors[i] != null) {
+                    tasks.add(null);
+                    continue;
+                }
+
+                tasks.add((RemoveTask) pool.submit(new RemoveTask(groups.get(i).getPath())));
+            }
+
+            for (int i = 0; i < size; i++) {
+                RemoveTask task = tasks.get(i);
+                if (task == null)
+                    continue;
+
+                task.join();
+                ends[i] = task.finished;
+                errors[i] = task.error;
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        List<CgOperationResult> results = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            boolean completed = futures.get(i) != null && errors[i] == null;
+            results.add(new CgOperationResult(groups.get(i).getName(), completed, ends[i] - starts[i], errors[i]));
+        }
+
+        return results;
+    }
+
+    /**
+     * The fallback for kernels without {@code cgroup.kill}: freeze, SIGKILL every process of the subtree,
+     * thaw. A frozen task cannot fork, so no process escapes between listing and signalling.
+     */
+    private static void killFrozen(List<ControlGroup2> groups, long timeoutMillis) {
+        ControlGroup2.freezeAll(groups, true, timeoutMillis);
+
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+        for (ControlGroup2 cg : groups)
+            signalTree(cg.getPath(), deadline);
+
+        ControlGroup2.freezeAll(groups, false, timeoutMillis);
+    }
+
+    /**
+     * Kills the processes of a group until its {@code cgroup.procs} is empty (or the deadline passes),
+     * then goes on with the sub-groups. A killed process stays listed until it has exited, so the list is
+     * read again until it is empty rather than trusting a single pass.
+     */
+    private static void signalTree(Path dir, long deadline) {
+        while (signalProcs(dir) > 0 && System.nanoTime() - deadline < 0) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir,
+                entry -> Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS))) {
+            for (Path child : stream)
+                signalTree(child, deadline);
+        } catch (IOException ignore) {
+        }
+    }
+
+    /**
+     * Sends SIGKILL to every process listed in {@code cgroup.procs}, which is read to its end.
+     *
+     * @return The number of processes listed
+     */
+    private static int signalProcs(Path dir) {
+        ByteBuffer buff;
+        try {
+            buff = ControlGroup2.HANDLES.readUnpooled(dir.resolve("cgroup.procs"));
+        } catch (IOException ignore) {
+            // already gone
+            return 0;
+        }
+
+        int count = 0;
+        long pid = 0;
+        boolean digits = false;
+        while (buff.hasRemaining()) {
+            byte b = buff.get();
+
+            if (b >= '0' && b <= '9') {
+                pid = pid * 10 + (b - '0');
+                digits = true;
+            } else if (digits) {
+                ProcessHandle.of(pid).ifPresent(ProcessHandle::destroyForcibly);
+                count++;
+                pid = 0;
+                digits = false;
+            }
+        }
+
+        if (digits) {
+            ProcessHandle.of(pid).ifPresent(ProcessHandle::destroyForcibly);
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Removes a group after its children, forking one task per child.
+     */
+    private static final class RemoveTask extends RecursiveAction {
+
+        private final Path path;
+        private long finished;
+        private IOException error;
+
+        private RemoveTask(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        protected void compute() {
+            List<RemoveTask> tasks = new ArrayList<>();
+
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path,
+                    entry -> Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS))) {
+                for (Path child : stream) {
+                    RemoveTask task = new RemoveTask(child);
+                    task.fork();
+                    tasks.add(task);
+                }
+            } catch (IOException ex) {
+                error = ex;
+            }
+
+            for (RemoveTask task : tasks) {
+                task.join();
+                if (error == null)
+                    error = task.error;
+            }
+
+            if (error == null) {
+                ControlGroup2.HANDLES.release(path);
+
+                try {
+                    Files.delete(path);
+                } catch (IOException ex) {
+                    error = ex;
+                }
+            }
+
+            finished = System.nanoTime();
+        }
+
+    }
+
+}
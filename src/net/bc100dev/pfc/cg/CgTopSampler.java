@@ -0,0 +1,346 @@
+package net.bc100dev.pfc.cg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Samples CPU, memory and I/O usage of a whole control group hierarchy for a live top-like view.
+ * <p>
+ * {@code cpu.stat} and {@code io.stat} count the usage of a group including its descendants, so a
+ * subtree whose root did not change at all (no CPU time, no I/O, same memory usage) is not read any
+ * further, and its groups are reported as idle with their last memory usage. On a node with thousands
+ * of mostly idle groups, a sample only reads the few busy branches. In the same way, directories are only
+ * listed again below the groups whose {@code cgroup.stat} reports a different number of descendants.
+ */
+public class CgTopSampler {
+
+    private static final byte[][] CPU_KEYS = CgFileParser.keys("usage_usec");
+    private static final byte[][] IO_KEYS = CgFileParser.keys("rbytes", "wbytes");
+    private static final byte[][] STAT_KEYS = CgFileParser.keys("nr_descendants", "nr_dying_descendants");
+
+    /**
+     * Lists the whole tree again after this many samples, even if the descendant counts did not change.
+     */
+    private static final int RESCAN_SAMPLES = 300;
+
+    private final String rootName;
+    private final int maxDepth;
+    private final long[] values = new long[2];
+
+    private Node root;
+    private long lastSample;
+    private int samplesSinceScan;
+    private int size;
+    private int reads;
+
+    /**
+     * @param rootName The group to sample, relative to the mount point ("" for the whole hierarchy)
+     * @param maxDepth How deep below the root groups are sampled
+     */
+    public CgTopSampler(String rootName, int maxDepth) {
+        this.rootName = rootName;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Takes a sample. The rates of the first sample are all 0.
+     *
+     * @throws IOException If the root group does not exist
+     */
+    public synchronized void sample() throws IOException {
+        Path rootPath = CgMountResolver.resolve(rootName);
+
+        if (root == null || !root.path.equals(rootPath)) {
+            root = new Node(rootPath, rootName);
+            samplesSinceScan = 0;
+        } else if (++samplesSinceScan >= RESCAN_SAMPLES) {
+            // a group replaced by another one does not change the counts
+            forget(root);
+            samplesSinceScan = 0;
+        }
+
+        reads = 0;
+        if (scan(root, 0)) {
+            size = 0;
+            count(root);
+        }
+
+        long now = System.nanoTime();
+        long elapsed = lastSample == 0 ? 0 : now - lastSample;
+        lastSample = now;
+
+        visit(root, elapsed);
+    }
+
+    /**
+     * @return The number of groups in the sampled tree
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return The number of files read by the last sample
+     */
+    public synchronized int getReads() {
+        return reads;
+    }
+
+    /**
+     * Picks the groups with the highest values in a column, keeping only {@code k} candidates on a
+     * bounded heap instead of sorting the whole tree.
+     *
+     * @return Up to {@code k} entries, highest first
+     */
+    public synchronized List<Entry> top(int k, Column column) {
+        Comparator<Node> order = Comparator.comparingDouble(n -> n.value(column));
+        PriorityQueue<Node> heap = new PriorityQueue<>(k + 1, order);
+
+        if (root != null && k > 0)
+            collect(root, heap, k, column, order);
+
+        List<Entry> entries = new ArrayList<>(heap.size());
+        while (!heap.isEmpty()) {
+            Node node = heap.poll();
+            entries.add(new Entry(node.name, node.cpuRate / 10_000.0, node.memory, node.readRate, node.writeRate));
+        }
+
+        // the heap hands out the lowest first
+        Collections.reverse(entries);
+        return entries;
+    }
+
+    private void collect(Node node, PriorityQueue<Node> heap, int k, Column column, Comparator<Node> order) {
+        if (heap.size() < k)
+            heap.add(node);
+        else if (order.compare(node, heap.peek()) > 0) {
+            heap.poll();
+            heap.add(node);
+        }
+
+        for (Node child : node.children)
+            collect(child, heap, k, column, order);
+    }
+
+    private void visit(Node node, long elapsed) {
+        boolean changed = read(node, elapsed);
+
+        if (changed) {
+            for (Node child : node.children)
+                visit(child, elapsed);
+        } else {
+            for (Node child : node.children)
+                idle(child, elapsed);
+        }
+    }
+
+    private void idle(Node node, long elapsed) {
+        // groups that appeared since the last scan still need their first values
+        if (!node.sampled) {
+            visit(node, elapsed);
+            return;
+        }
+
+        node.cpuRate = 0;
+        node.readRate = 0;
+        node.writeRate = 0;
+
+        for (Node child : node.children)
+            idle(child, elapsed);
+    }
+
+    /**
+     * Reads the usage of a group and updates its rates.
+     *
+     * @return Whether anything changed since the last sample (or if this is the first one)
+     */
+    private boolean read(Node node, long elapsed) {
+        boolean first = !node.sampled;
+        boolean changed = first;
+        node.sampled = true;
+
+        // without a previous value there is no rate yet
+        if (first)
+            elapsed = 0;
+
+        try {
+            values[0] = node.cpuUsage;
+            CgFileParser.parseFlatKeyed(ControlGroup2.HANDLES.read(node.path.resolve("cpu.stat")), CPU_KEYS, values, 0);
+            reads++;
+
+            long delta = values[0] - node.cpuUsage;
+            node.cpuRate = elapsed == 0 ? 0 : (long) (delta * 1e9 / elapsed);
+            node.cpuUsage = values[0];
+            changed |= delta != 0;
+
+            if (node.hasMemory) {
+                long memory = CgFileParser.parseSingle(ControlGroup2.HANDLES.read(node.path.resolve("memory.current")));
+                reads++;
+
+                changed |= memory != node.memory;
+                node.memory = memory;
+            }
+
+            if (node.hasIo) {
+                CgFileParser.parseNestedKeyedSum(ControlGroup2.HANDLES.read(node.path.resolve("io.stat")), IO_KEYS, values, 0);
+                reads++;
+
+                long read = values[0] - node.readBytes;
+                long written = values[1] - node.writeBytes;
+                node.readRate = elapsed == 0 ? 0 : (long) (read * 1e9 / elapsed);
+                node.writeRate = elapsed == 0 ? 0 : (long) (written * 1e9 / elapsed);
+                node.readBytes = values[0];
+                node.writeBytes = values[1];
+                changed |= read != 0 || written != 0;
+            }
+        } catch (IOException ex) {
+            // removed since the last scan; the next sample notices the different descendant count
+            idle(node, 0);
+            return false;
+        }
+
+        return changed;
+    }
+
+    /**
+     * Brings the children of a group up to date, but only lists the directories of the subtrees whose
+     * number of descendants changed since the last scan.
+     *
+     * @return Whether anything was listed
+     */
+    private boolean scan(Node node, int depth) {
+        long descendants = readDescendants(node);
+        if (descendants >= 0 && descendants == node.descendants)
+            return false;
+
+        node.descendants = descendants;
+        if (depth >= maxDepth)
+            return false;
+
+        Map<String, Node> known = new HashMap<>();
+        for (Node child : node.children)
+            known.put(child.name, child);
+
+        node.children.clear();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(node.path,
+                entry -> Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS))) {
+            for (Path childPath : stream) {
+                String childName = node.name.isEmpty() ? childPath.getFileName().toString() : node.name + "/" + childPath.getFileName();
+
+                Node child = known.get(childName);
+                if (child == null)
+                    child = new Node(childPath, childName);
+
+                node.children.add(child);
+            }
+        } catch (IOException ignore) {
+            // removed while walking
+        }
+
+        for (Node child : node.children)
+            scan(child, depth + 1);
+
+        return true;
+    }
+
+    private static void forget(Node node) {
+        node.descendants = -1;
+
+        for (Node child : node.children)
+            forget(child);
+    }
+
+    private void count(Node node) {
+        size++;
+
+        for (Node child : node.children)
+            count(child);
+    }
+
+    private long readDescendants(Node node) {
+        try {
+            // the root is read on every sample, the rest only when their parent changed
+            Path file = node.path.resolve("cgroup.stat");
+            ByteBuffer buff = node == root ? ControlGroup2.HANDLES.read(file) : ControlGroup2.HANDLES.readUnpooled(file);
+            reads++;
+
+            CgFileParser.parseFlatKeyed(buff, STAT_KEYS, values, 0);
+            return values[0] + values[1];
+        } catch (IOException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * The columns the top entries can be sorted by.
+     */
+    public enum Column {
+        CPU,
+        MEMORY,
+        IO_READ,
+        IO_WRITE,
+        IO
+    }
+
+    /**
+     * @param cgroup        The name of the group
+     * @param cpuPercent    CPU usage in percent of one CPU
+     * @param memory        Memory usage in bytes, or -1 without the memory controller
+     * @param readBytesSec  Bytes read per second
+     * @param writeBytesSec Bytes written per second
+     */
+    public record Entry(String cgroup, double cpuPercent, long memory, long readBytesSec, long writeBytesSec) {
+    }
+
+    private static final class Node {
+
+        private final Path path;
+        private final String name;
+        private final List<Node> children = new ArrayList<>();
+
+        private final boolean hasMemory;
+        private final boolean hasIo;
+        private boolean sampled;
+        private long descendants = -1;
+
+        private long cpuUsage;
+        private long readBytes;
+        private long writeBytes;
+
+        private long cpuRate;
+        private long memory = -1;
+        private long readRate;
+        private long writeRate;
+
+        private Node(Path path, String name) {
+            this.path = path;
+            this.name = name;
+            this.hasMemory = Files.exists(path.resolve("memory.current"));
+            this.hasIo = Files.exists(path.resolve("io.stat"));
+        }
+
+        private double value(Column column) {
+            return switch (column) {
+                case CPU -> cpuRate;
+                case MEMORY -> memory;
+                case IO_READ -> readRate;
+                case IO_WRITE -> writeRate;
+                case IO -> readRate + writeRate;
+            };
+        }
+
+    }
+
+}
@@ -0,0 +1,58 @@
+package net.bc100dev.pfc.cg;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * An immutable node of a {@link CgTreeSnapshot}. Limits and statistics are kept as primitives; a value
+ * that is not available (because the controller is not enabled for the group) is -1, and a limit of
+ * "max" is {@link CgFileParser#MAX}.
+ *
+ * @param name           The name of the control group, relative to the cgroup2 mount point ("" for the root)
+ * @param depth          The depth below the snapshot root
+ * @param controllers    The controllers available in the group ({@code cgroup.controllers})
+ * @param populated      Whether the group or one of its descendants has processes
+ * @param cpuMaxQuota    The quota of {@code cpu.max}, in microseconds
+ * @param cpuMaxPeriod   The period of {@code cpu.max}, in microseconds
+ * @param cpuWeight      {@code cpu.weight}
+ * @param memoryHigh     {@code memory.high}, in bytes
+ * @param memoryMax      {@code memory.max}, in bytes
+ * @param pidsMax        {@code pids.max}
+ * @param cpuUsageUsec   The {@code usage_usec} of {@code cpu.stat}
+ * @param memoryCurrent  {@code memory.current}, in bytes
+ * @param pidsCurrent    {@code pids.current}
+ * @param children       The sub-groups that passed the snapshot filters
+ */
+public record CgTreeNode(String name, int depth, List<String> controllers, boolean populated,
+                         long cpuMaxQuota, long cpuMaxPeriod, long cpuWeight,
+                         long memoryHigh, long memoryMax, long pidsMax,
+                         long cpuUsageUsec, long memoryCurrent, long pidsCurrent,
+                         List<CgTreeNode> children) {
+
+    public boolean hasController(String controller) {
+        return controllers.contains(controller);
+    }
+
+    /**
+     * @return The number of nodes in this subtree, including this node
+     */
+    public int size() {
+        int size = 1;
+
+        for (CgTreeNode child : children)
+            size += child.size();
+
+        return size;
+    }
+
+    /**
+     * Visits this node and all of its descendants, parents before their children.
+     */
+    public void forEach(Consumer<CgTreeNode> consumer) {
+        consumer.accept(this);
+
+        for (CgTreeNode child : children)
+            child.forEach(consumer);
+    }
+
+}
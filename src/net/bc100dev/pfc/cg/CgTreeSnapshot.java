@@ -0,0 +1,241 @@
+package net.bc100dev.pfc.cg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Takes a snapshot of the cgroup2 hierarchy, walking the directories in parallel on a ForkJoin pool.
+ * For every group the available controllers, the configured limits and a few key statistics are read
+ * into an immutable {@link CgTreeNode}.
+ * <pre>
+ * CgTreeNode root = new CgTreeSnapshot()
+ *         .maxDepth(4)
+ *         .pathPrefix("kubepods.slice")
+ *         .controller("memory")
+ *         .parallelism(4)
+ *         .take();
+ * </pre>
+ */
+public class CgTreeSnapshot {
+
+    private static final byte[][] CPU_STAT_KEYS = CgFileParser.keys("usage_usec");
+    private static final byte[][] EVENTS_KEYS = CgFileParser.keys("populated");
+
+    private String rootName = "";
+    private int maxDepth = Integer.MAX_VALUE;
+    private String pathPrefix;
+    private String controller;
+    private int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    /**
+     * Starts the walk at the given group instead of the mount point.
+     */
+    public CgTreeSnapshot root(String cgName) {
+        this.rootName = cgName == null ? "" : trimSlashes(cgName);
+        return this;
+    }
+
+    /**
+     * Limits how deep below the root the walk descends; 0 only takes the root itself.
+     */
+    public CgTreeSnapshot maxDepth(int maxDepth) {
+        if (maxDepth < 0)
+            throw new IllegalArgumentException("Depth cannot be negative");
+
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    /**
+     * Only keeps the groups whose name (relative to the mount point) starts with the prefix, along with
+     * their ancestors, so that the tree stays connected.
+     */
+    public CgTreeSnapshot pathPrefix(String pathPrefix) {
+        this.pathPrefix = pathPrefix == null ? null : trimSlashes(pathPrefix);
+        return this;
+    }
+
+    /**
+     * Only keeps the groups that have the controller available. As a group can only have the controllers
+     * of its parent, whole subtrees without it are skipped.
+     */
+    public CgTreeSnapshot controller(String controller) {
+        this.controller = controller;
+        return this;
+    }
+
+    /**
+     * Caps the number of threads that walk the hierarchy.
+     */
+    public CgTreeSnapshot parallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism needs to be at least 1");
+
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Walks the hierarchy and returns its root node.
+     *
+     * @return The root of the snapshot, or null if the root itself was filtered out
+     * @throws IOException If the cgroup2 mount or the root group could not be found
+     */
+    public CgTreeNode take() throws IOException {
+        Path rootPath = CgMountResolver.resolve(rootName);
+        if (!Files.isDirectory(rootPath))
+            throw new IOException(String.format("Control group \"%s\" not found", rootName));
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return pool.invoke(new NodeTask(rootPath, rootName, 0));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private boolean matchesPrefix(String name) {
+        if (pathPrefix == null || pathPrefix.isEmpty())
+            return true;
+
+        // either matching the prefix, or an ancestor on the way to it
+        return name.startsWith(pathPrefix) || name.isEmpty() || pathPrefix.startsWith(name + "/");
+    }
+
+    private static String trimSlashes(String name) {
+        int start = 0, end = name.length();
+
+        while (start < end && name.charAt(start) == '/')
+            start++;
+
+        while (end > start && name.charAt(end - 1) == '/')
+            end--;
+
+        return name.substring(start, end);
+    }
+
+    private final class NodeTask extends RecursiveTask<CgTreeNode> {
+
+        private final Path path;
+        private final String name;
+        private final int depth;
+
+        private NodeTask(Path path, String name, int depth) {
+            this.path = path;
+            this.name = name;
+            this.depth = depth;
+        }
+
+        @Override
+        protected CgTreeNode compute() {
+            List<String> controllers = readControllers(path);
+            if (controller != null && !controllers.contains(controller))
+                return null;
+
+            List<NodeTask> tasks = new ArrayList<>();
+            if (depth < maxDepth) {
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(path,
+                        entry -> Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS))) {
+                    for (Path child : stream) {
+                        String childName = name.isEmpty() ? child.getFileName().toString() : name + "/" + child.getFileName();
+                        if (!matchesPrefix(childName))
+                            continue;
+
+                        NodeTask task = new NodeTask(child, childName, depth + 1);
+                        task.fork();
+                        tasks.add(task);
+                    }
+                } catch (IOException ignore) {
+                    // removed while walking
+                }
+            }
+
+            long[] values = new long[2];
+
+            boolean cpu = controllers.contains("cpu");
+            boolean memory = controllers.contains("memory");
+            boolean pids = controllers.contains("pids");
+
+            long cpuQuota = -1, cpuPeriod = -1;
+            if (cpu && read(path.resolve("cpu.max"), values, 2)) {
+                cpuQuota = values[0];
+                cpuPeriod = values[1];
+            }
+
+            long cpuWeight = cpu ? readSingle(path.resolve("cpu.weight")) : -1;
+            long memoryHigh = memory ? readSingle(path.resolve("memory.high")) : -1;
+            long memoryMax = memory ? readSingle(path.resolve("memory.max")) : -1;
+            long memoryCurrent = memory ? readSingle(path.resolve("memory.current")) : -1;
+            long pidsMax = pids ? readSingle(path.resolve("pids.max")) : -1;
+            long pidsCurrent = pids ? readSingle(path.resolve("pids.current")) : -1;
+
+            long usage = readKeyed(path.resolve("cpu.stat"), CPU_STAT_KEYS, values);
+            long populated = readKeyed(path.resolve("cgroup.events"), EVENTS_KEYS, values);
+
+            List<CgTreeNode> children = new ArrayList<>(tasks.size());
+            for (NodeTask task : tasks) {
+                CgTreeNode child = task.join();
+                if (child != null)
+                    children.add(child);
+            }
+
+            children.sort((a, b) -> a.name().compareTo(b.name()));
+
+            return new CgTreeNode(name, depth, controllers, populated > 0,
+                    cpuQuota, cpuPeriod, cpuWeight, memoryHigh, memoryMax, pidsMax,
+                    usage, memoryCurrent, pidsCurrent, Collections.unmodifiableList(children));
+        }
+
+        private List<String> readControllers(Path dir) {
+            try {
+                ByteBuffer buff = ControlGroup2.HANDLES.readUnpooled(dir.resolve("cgroup.controllers"));
+                byte[] data = new byte[buff.remaining()];
+                buff.get(data);
+
+                String str = new String(data).trim();
+                return str.isEmpty() ? List.of() : Arrays.asList(str.split(" "));
+            } catch (IOException ex) {
+                return List.of();
+            }
+        }
+
+        private boolean read(Path file, long[] dst, int count) {
+            try {
+                ByteBuffer buff = ControlGroup2.HANDLES.readUnpooled(file);
+                return CgFileParser.parsePair(buff, dst, 0) == count;
+            } catch (IOException ex) {
+                return false;
+            }
+        }
+
+        private long readSingle(Path file) {
+            try {
+                return CgFileParser.parseSingle(ControlGroup2.HANDLES.readUnpooled(file));
+            } catch (IOException ex) {
+                return -1;
+            }
+        }
+
+        private long readKeyed(Path file, byte[][] keys, long[] dst) {
+            try {
+                dst[0] = -1;
+                CgFileParser.parseFlatKeyed(ControlGroup2.HANDLES.readUnpooled(file), keys, dst, 0);
+                return dst[0];
+            } catch (IOException ex) {
+                return -1;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,305 @@
+package net.bc100dev.pfc.cg;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Owns the writes to control files of several threads: writes to the same file within a short window
+ * are coalesced so that only the last value is written, all writes share a global rate limit, and every
+ * write returns a future that completes once its value (or a newer one) has been applied.
+ * <p>
+ * The files are spread over a fixed number of lock stripes by their path. A stripe lock guards the
+ * pending writes of its files and is held while one of them is written, so writes to one file are
+ * applied in order and never interleave, while writes to files of different stripes run in parallel on
+ * the writer threads.
+ * <pre>
+ * CgWriteManager writes = new CgWriteManager(4)
+ *         .coalesceWindow(5)
+ *         .rateLimit(2000);
+ * writes.write(cg, "cpu.weight", "200").join();
+ * </pre>
+ */
+public class CgWriteManager {
+
+    private static final int STRIPES = 64;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final ScheduledThreadPoolExecutor executor;
+    private final AtomicLong nextSlot = new AtomicLong(System.nanoTime());
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private volatile long windowNanos = 2_000_000;
+    private volatile long slotNanos;
+
+    /**
+     * @param threads The number of writer threads
+     */
+    public CgWriteManager(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("At least one writer thread is needed");
+
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe();
+
+        AtomicInteger counter = new AtomicInteger();
+        executor = new ScheduledThreadPoolExecutor(threads, r -> {
+            Thread thread = new Thread(r, "pfc-cg-writer-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @param windowMillis How long a write waits for newer values of the same file; 0 writes right away
+     */
+    public CgWriteManager coalesceWindow(long windowMillis) {
+        if (windowMillis < 0)
+            throw new IllegalArgumentException("Window cannot be negative");
+
+        this.windowNanos = windowMillis * 1_000_000;
+        return this;
+    }
+
+    /**
+     * @param writesPerSecond The most writes per second over all files, or 0 for no limit
+     */
+    public CgWriteManager rateLimit(long writesPerSecond) {
+        if (writesPerSecond < 0)
+            throw new IllegalArgumentException("Rate limit cannot be negative");
+
+        this.slotNanos = writesPerSecond == 0 ? 0 : 1_000_000_000L / writesPerSecond;
+        return this;
+    }
+
+    /**
+     * Writes a value to a control file of a group once the coalescing window has passed.
+     *
+     * @return A future that completes when this value or a newer one for the same file has been written,
+     * or exceptionally if writing it (or the newer one that replaced it) failed
+     */
+    public CompletableFuture<Void> write(ControlGroup2 cg, String file, String value) {
+        if (executor.isShutdown())
+            return CompletableFuture.failedFuture(shutDown());
+
+        Path path = cg.getPath().resolve(file);
+        Stripe stripe = stripes[(path.hashCode() & 0x7FFFFFFF) % STRIPES];
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        boolean rejected = false;
+
+        stripe.lock.lock();
+        try {
+            Pending pending = stripe.pending.get(path);
+            if (pending != null) {
+                // the last value wins, and its write completes all waiting futures
+                pending.value = value;
+                pending.futures.add(future);
+                coalesced.incrementAndGet();
+                return future;
+            }
+
+            pending = new Pending(cg, file, path, value, stripe.nextGeneration++);
+            pending.futures.add(future);
+            stripe.pending.put(path, pending);
+            stripe.files.computeIfAbsent(path, p -> new FileState()).inFlight++;
+
+            Pending scheduled = pending;
+            try {
+                executor.schedule(() -> flush(stripe, scheduled), windowNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException ex) {
+                // shut down since the check above; nothing will flush it, so it is taken back
+                pending.finished = true;
+                stripe.pending.remove(path);
+                if (--stripe.files.get(path).inFlight == 0)
+                    stripe.files.remove(path);
+
+                rejected = true;
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+
+        if (rejected)
+            future.completeExceptionally(shutDown());
+
+        return future;
+    }
+
+    /**
+     * @return The number of writes issued to the kernel
+     */
+    public long getIssued() {
+        return issued.get();
+    }
+
+    /**
+     * @return The number of writes that were merged into a pending write of the same file
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * Writes everything that is pending (without waiting for the window) and stops the writer threads.
+     * Writes submitted afterwards fail.
+     */
+    public void shutdown() {
+        executor.shutdown();
+
+        for (Stripe stripe : stripes) {
+            List<Pending> pending;
+            stripe.lock.lock();
+            try {
+                pending = new ArrayList<>(stripe.pending.values());
+            } finally {
+                stripe.lock.unlock();
+            }
+
+            for (Pending p : pending)
+                apply(stripe, p);
+        }
+    }
+
+    /**
+     * Closes the window of a pending write and applies it once the rate limit allows.
+     */
+    private void flush(Stripe stripe, Pending pending) {
+        stripe.lock.lock();
+        try {
+            // newer writes to the file start a new window from here on
+            if (stripe.pending.get(pending.path) == pending)
+                stripe.pending.remove(pending.path);
+        } finally {
+            stripe.lock.unlock();
+        }
+
+        long delay = reserveSlot();
+        if (delay > 0 && !executor.isShutdown()) {
+            try {
+                executor.schedule(() -> apply(stripe, pending), delay, TimeUnit.NANOSECONDS);
+                return;
+            } catch (RejectedExecutionException ex) {
+                // shut down in the meantime; it is no longer in the pending map, so it is written right here
+            }
+        }
+
+        apply(stripe, pending);
+    }
+
+    /**
+     * @return How long to wait until the reserved write slot
+     */
+    private long reserveSlot() {
+        long slot = slotNanos;
+        if (slot == 0)
+            return 0;
+
+        long now = System.nanoTime();
+        while (true) {
+            long next = nextSlot.get();
+            long start = next - now > 0 ? next : now;
+
+            if (nextSlot.compareAndSet(next, start + slot))
+                return start - now;
+        }
+    }
+
+    private void apply(Stripe stripe, Pending pending) {
+        Exception error = null;
+
+        stripe.lock.lock();
+        try {
+            // shutting down may apply it before its scheduled task does
+            if (pending.finished)
+                return;
+
+            pending.finished = true;
+            stripe.pending.remove(pending.path, pending);
+
+            FileState state = stripe.files.get(pending.path);
+            if (state.applied < pending.generation) {
+                try {
+                    pending.cg.setValue(pending.file, pending.value);
+                    issued.incrementAndGet();
+                } catch (IOException ex) {
+                    error = ex;
+                }
+
+                // an older write that is still in flight must not overwrite this value anymore,
+                // and shares its outcome instead
+                state.applied = pending.generation;
+                state.error = error;
+            } else
+                error = state.error;
+
+            if (--state.inFlight == 0)
+                stripe.files.remove(pending.path);
+        } finally {
+            stripe.lock.unlock();
+        }
+
+        for (CompletableFuture<Void> future : pending.futures) {
+            if (error == null)
+                future.complete(null);
+            else
+                future.completeExceptionally(error);
+        }
+    }
+
+    private static IOException shutDown() {
+        return new IOException("The write manager has been shut down");
+    }
+
+    private static final class Stripe {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Map<Path, Pending> pending = new HashMap<>();
+        private final Map<Path, FileState> files = new HashMap<>();
+        private long nextGeneration;
+
+    }
+
+    /**
+     * The writes to a file that were submitted but not applied yet, and the newest one that was.
+     */
+    private static final class FileState {
+
+        private int inFlight;
+        private long applied = -1;
+        private Exception error;
+
+    }
+
+    private static final class Pending {
+
+        private final ControlGroup2 cg;
+        private final String file;
+        private final Path path;
+        private final long generation;
+        private final List<CompletableFuture<Void>> futures = new ArrayList<>(1);
+        private String value;
+        private boolean finished;
+
+        private Pending(ControlGroup2 cg, String file, Path path, String value, long generation) {
+            this.cg = cg;
+            this.file = file;
+            this.path = path;
+            this.value = value;
+            this.generation = generation;
+        }
+
+    }
+
+}
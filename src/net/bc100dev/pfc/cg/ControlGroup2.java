@@ -3,19 +3,45 @@ package net.bc100dev.pfc.cg;
 import net.bc100dev.commons.utils.io.FileUtil;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class ControlGroup2 {
 
+    /**
+     * Open handles to the control files, shared by all control groups. Handles idle for 30 seconds get closed.
+     */
+    static final CgHandlePool HANDLES = new CgHandlePool(30_000, 16_384);
+
+    private static final byte[][] FROZEN_KEY = CgFileParser.keys("frozen");
+
+    private static volatile CgAuditJournal journal;
+    private static final List<MigrationListener> migrationListeners = new CopyOnWriteArrayList<>();
+
     private final String cgName;
     private final Path cgPath;
 
     private final List<String> cgControlTypes = new ArrayList<>();
 
+    private final Map<String, Path> labelPaths = new ConcurrentHashMap<>();
+    private final Map<String, Path> taskLabelPaths = new ConcurrentHashMap<>();
+
+    private CpuController cpu;
+    private MemoryController memory;
+    private IoController io;
+    private PidsController pids;
+
     protected ControlGroup2(String cgName, Path cgPath, String... cgControlTypes) {
         this.cgName = cgName;
         this.cgPath = cgPath;
@@ -23,20 +49,49 @@ public class ControlGroup2 {
         Collections.addAll(this.cgControlTypes, cgControlTypes);
     }
 
-    private String findPath(String cgLabel, boolean withinTasks) {
-        String filePath = cgPath + "/";
-
+    private Path findPath(String cgLabel, boolean withinTasks) {
         if (withinTasks)
-            filePath += "tasks/";
+            return taskLabelPaths.computeIfAbsent(cgLabel, label -> cgPath.resolve("tasks").resolve(label));
 
-        filePath += cgLabel;
-        return filePath;
+        return labelPaths.computeIfAbsent(cgLabel, cgPath::resolve);
     }
 
     public String getName() {
         return cgName;
     }
 
+    public Path getPath() {
+        return cgPath;
+    }
+
+    public synchronized CpuController cpu() {
+        if (cpu == null)
+            cpu = new CpuController(this);
+
+        return cpu;
+    }
+
+    public synchronized MemoryController memory() {
+        if (memory == null)
+            memory = new MemoryController(this);
+
+        return memory;
+    }
+
+    public synchronized IoController io() {
+        if (io == null)
+            io = new IoController(this);
+
+        return io;
+    }
+
+    public synchronized PidsController pids() {
+        if (pids == null)
+            pids = new PidsController(this);
+
+        return pids;
+    }
+
     public String[] getControlTypes() {
         String[] arr = new String[cgControlTypes.size()];
 
@@ -66,7 +121,7 @@ public class ControlGroup2 {
      * @throws IOException On cgroup or internal write errors
      */
     public void addProcess() throws IOException {
-        File procsFile = new File(cgPath + "/tasks/cgroup.procs");
+        File procsFile = findPath("cgroup.procs", true).toFile();
         if (!procsFile.exists())
             throw new IOException("cgroups failed to initialize");
 
@@ -79,13 +134,14 @@ public class ControlGroup2 {
         FileOutputStream fos = new FileOutputStream(procsFile);
         fos.write(String.valueOf(pid).getBytes());
         fos.close();
+
+        notifyMigrated(pid, procsFile.toPath().getParent());
     }
 
     /**
      * Adds a specific process to the cgroups, giving that process the cgroup rules for that process.
-     * If the Process ID list is empty, the PID of the current process gets passed on. In case of the
-     * Process ID array not being empty, it checks for every process that is currently running, and
-     * passes onto the cgroup control.
+     * If the Process ID list is empty, the PID of the current process gets passed on. Processes
+     * that are no longer running are skipped.
      *
      * @param processIds A list of process IDs to pass to the cgroup control
      * @throws IOException On cgroup or internal write errors
@@ -96,72 +152,288 @@ public class ControlGroup2 {
             return;
         }
 
-        File procsFile = new File(cgPath + "/tasks/cgroup.procs");
-        if (!procsFile.exists())
-            throw new IOException("cgroups failed to initialize");
+        MigrationResult result = migrateProcesses(processIds, 1);
+        if (result.count(MigrationResult.DENIED) != 0)
+            throw new PermissionDeniedException("cannot move " + result.count(MigrationResult.DENIED) + " process(es) into \"" + cgName + "\"");
 
-        if (!procsFile.canWrite())
-            throw new PermissionDeniedException("cannot write to a protected file as normal user");
+        if (result.count(MigrationResult.FAILED) != 0)
+            throw new IOException("failed to move " + result.count(MigrationResult.FAILED) + " process(es) into \"" + cgName + "\"");
+    }
 
-        List<Long> pidList = new ArrayList<>();
-        for (long procId : processIds) {
-            Optional<ProcessHandle> pHandle = ProcessHandle.of(procId);
-            pHandle.ifPresent(processHandle -> pidList.add(processHandle.pid()));
+    /**
+     * Moves a batch of processes into the cgroup, writing one PID per write through a single open
+     * descriptor of {@code cgroup.procs}. Large batches are spread across up to {@code threads} threads.
+     *
+     * @param processIds The process IDs to move
+     * @param threads    The maximum number of threads to use
+     * @return The per-PID outcome: moved, exited, denied or failed
+     * @throws IOException If the cgroup.procs file could not be opened
+     */
+    public MigrationResult migrateProcesses(long[] processIds, int threads) throws IOException {
+        Path procsFile = findPath("cgroup.procs", true);
+        MigrationResult result = ProcessMigrator.migrate(procsFile, processIds, threads);
+
+        if (!migrationListeners.isEmpty()) {
+            for (int i = 0; i < result.size(); i++) {
+                if (result.getStatus(i) == MigrationResult.MOVED)
+                    notifyMigrated(result.getPid(i), procsFile.getParent());
+            }
         }
 
-        FileOutputStream fos = new FileOutputStream(procsFile);
+        return result;
+    }
 
-        for (int i = 0; i < pidList.size(); i++) {
-            fos.write(String.valueOf(pidList.get(i)).getBytes());
+    /**
+     * Tells the listener about every process moved through {@link #addProcess(long...)},
+     * {@link #migrateProcesses(long[], int)} or a {@link CgLauncher}, of all control groups.
+     */
+    public static void addMigrationListener(MigrationListener listener) {
+        migrationListeners.add(listener);
+    }
 
-            if (i != pidList.size() - 1)
-                fos.write("\n".getBytes());
-        }
+    public static void removeMigrationListener(MigrationListener listener) {
+        migrationListeners.remove(listener);
+    }
 
-        fos.close();
+    static void notifyMigrated(long pid, Path cgPath) {
+        for (MigrationListener listener : migrationListeners)
+            listener.onMigrated(pid, cgPath);
+    }
+
+    /**
+     * Journals every following write through {@link #setValue} and {@link #setTaskValue}, of all control
+     * groups, before it is made.
+     *
+     * @param journal The journal, or null to stop journaling
+     * @return The journal that was active before
+     */
+    public static CgAuditJournal setJournal(CgAuditJournal journal) {
+        CgAuditJournal previous = ControlGroup2.journal;
+        ControlGroup2.journal = journal;
+        return previous;
+    }
+
+    public static CgAuditJournal getJournal() {
+        return journal;
     }
 
     public void setValue(String cgLabel, String cgValue) throws IOException {
-        CGUtils.writeFile(new File(cgPath + "/" + cgLabel), cgValue);
+        write(cgLabel, findPath(cgLabel, false), cgValue);
     }
 
     public void setTaskValue(String cgLabel, String cgValue) throws IOException {
-        CGUtils.writeFile(new File(cgPath + "/tasks/" + cgLabel), cgValue);
+        write("tasks/" + cgLabel, findPath(cgLabel, true), cgValue);
+    }
+
+    private void write(String cgLabel, Path path, String cgValue) throws IOException {
+        CgAuditJournal audit = journal;
+        if (audit == null) {
+            writeFile(path, cgValue);
+            return;
+        }
+
+        // the process lists are not a setting and the one-shot files cannot be read; reading them would only cost time
+        String oldValue = null;
+        if (!path.endsWith("cgroup.procs") && !path.endsWith("cgroup.threads") && !isOneShot(path)) {
+            try {
+                oldValue = HANDLES.readString(path);
+            } catch (IOException ignore) {
+                // write-only, or not there at all; the write tells
+            }
+        }
+
+        long seq = audit.append(cgName, cgLabel, oldValue, cgValue);
+        audit.commit(seq);
+
+        try {
+            writeFile(path, cgValue);
+        } catch (IOException ex) {
+            try {
+                audit.commit(audit.appendFailure(seq, cgName, cgLabel, cgValue));
+            } catch (IOException journalEx) {
+                ex.addSuppressed(journalEx);
+            }
+
+            throw ex;
+        }
+    }
+
+    /**
+     * Writes through the handle pool, except for the files that act on every write; those must never be
+     * written twice, not even when a pooled handle went stale.
+     */
+    private static void writeFile(Path path, String cgValue) throws IOException {
+        if (isOneShot(path))
+            HANDLES.writeUnpooled(path, cgValue);
+        else
+            HANDLES.write(path, cgValue);
+    }
+
+    private static boolean isOneShot(Path path) {
+        return path.endsWith("memory.reclaim") || path.endsWith("cgroup.kill");
     }
 
     public String getValue(String cgLabel) throws IOException {
-        return CGUtils.readFile(new File(findPath(cgLabel, false)));
+        return HANDLES.readString(findPath(cgLabel, false));
     }
 
     public String getTaskValue(String cgLabel) throws IOException {
-        String path = findPath(cgLabel, true);
+        return HANDLES.readString(findPath(cgLabel, true));
+    }
 
-        File file = new File(path);
-        if (!file.exists())
-            throw new FileNotFoundException("Cannot create a new file under cgroups v2");
+    /**
+     * Reads a control file into the reused buffer of the calling thread, without creating a String.
+     * The buffer is only valid until the next read on the same thread.
+     */
+    ByteBuffer readBuffer(String cgLabel) throws IOException {
+        return HANDLES.read(findPath(cgLabel, false));
+    }
 
-        if (!file.canRead())
-            throw new PermissionDeniedException("Cannot read values from tasks \"" + file.getName() + "\"");
+    /**
+     * Closes the open handles to the control files of this group and its sub-groups.
+     */
+    public void releaseHandles() {
+        HANDLES.release(cgPath);
+    }
 
-        FileInputStream fis = new FileInputStream(file);
-        StringBuilder str = new StringBuilder();
-        byte[] buff = new byte[2048];
-        int len;
+    /**
+     * Removes the (empty) control group directory and closes its open handles. The kernel refuses
+     * to remove a group that still has processes or sub-groups in it.
+     *
+     * @throws IOException If the control group could not be removed
+     */
+    public void remove() throws IOException {
+        releaseHandles();
+        Files.delete(cgPath);
+    }
 
-        while ((len = fis.read(buff, 0, 2048)) != -1)
-            str.append(new String(buff, 0, len));
+    /**
+     * Freezes all processes of the group and its descendants through {@code cgroup.freeze}, and waits
+     * (event-driven) until {@code cgroup.events} reports the group as frozen.
+     *
+     * @param timeoutMillis How long to wait for the group to be frozen
+     * @return How long it took, and whether it completed in time
+     * @throws IOException If the group could not be frozen
+     */
+    public CgOperationResult freeze(long timeoutMillis) throws IOException {
+        return freezeAll(List.of(this), true, timeoutMillis).get(0);
+    }
 
-        fis.close();
+    /**
+     * Thaws the group (and its descendants, unless they are frozen on their own) and waits until
+     * {@code cgroup.events} reports it as running again.
+     */
+    public CgOperationResult thaw(long timeoutMillis) throws IOException {
+        return freezeAll(List.of(this), false, timeoutMillis).get(0);
+    }
+
+    public boolean isFrozen() throws IOException {
+        long[] values = new long[1];
+        CgFileParser.parseFlatKeyed(readBuffer("cgroup.events"), FROZEN_KEY, values, 0);
+
+        return values[0] == 1;
+    }
+
+    /**
+     * Freezes or thaws a set of control groups at once. All writes are issued first, then the groups are
+     * awaited in parallel through {@code cgroup.events} notifications, with one shared timeout.
+     *
+     * @param groups        The groups to freeze or thaw
+     * @param freeze        True to freeze, false to thaw
+     * @param timeoutMillis How long to wait for all groups to reach the state
+     * @return The per-group results, in the order of {@code groups}
+     */
+    public static List<CgOperationResult> freezeAll(List<ControlGroup2> groups, boolean freeze, long timeoutMillis) {
+        int size = groups.size();
+        long[] starts = new long[size];
+        Exception[] errors = new Exception[size];
+        List<CompletableFuture<Void>> futures = new ArrayList<>(size);
+        String value = freeze ? "1" : "0";
+
+        for (int i = 0; i < size; i++) {
+            ControlGroup2 cg = groups.get(i);
+            starts[i] = System.nanoTime();
+
+            CompletableFuture<Void> future = null;
+            try {
+                future = CgStateWaiter.get().await(cg.cgPath, CgStateWaiter.FROZEN, freeze ? 1 : 0);
+                cg.setValue("cgroup.freeze", value);
+                futures.add(future);
+            } catch (IOException ex) {
+                // nothing will change, so the watch on cgroup.events is dropped right away
+                if (future != null)
+                    future.cancel(false);
+
+                errors[i] = ex;
+                futures.add(null);
+            }
+        }
 
-        return str.toString();
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+        long[] ends = new long[size];
+        boolean[] completed = new boolean[size];
+
+        for (int i = 0; i < size; i++) {
+            CompletableFuture<Void> future = futures.get(i);
+            if (future == null) {
+                ends[i] = System.nanoTime();
+                continue;
+            }
+
+            try {
+                long remaining = Math.max(0, deadline - System.nanoTime());
+                future.get(remaining, TimeUnit.NANOSECONDS);
+                completed[i] = true;
+            } catch (TimeoutException ex) {
+                future.cancel(false);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                future.cancel(false);
+                errors[i] = ex;
+            } catch (ExecutionException ex) {
+                errors[i] = ex.getCause() instanceof Exception cause ? cause : ex;
+            }
+
+            ends[i] = System.nanoTime();
+        }
+
+        // futures complete on the waiter thread as soon as the event arrives; the time of the
+        // get() call that noticed it is close enough for everything but the first few groups
+        List<CgOperationResult> results = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            results.add(new CgOperationResult(groups.get(i).cgName, completed[i], ends[i] - starts[i], errors[i]));
+
+        return results;
+    }
+
+    /**
+     * Kills every process in the group and its descendants, waits for the group to become empty and
+     * removes it along with all of its sub-groups.
+     *
+     * @param timeoutMillis How long to wait for the processes to exit
+     * @return How long the teardown took, and whether the group is gone
+     */
+    public CgOperationResult teardown(long timeoutMillis) {
+        return teardownAll(List.of(this), timeoutMillis).get(0);
+    }
+
+    /**
+     * Tears down a set of control groups at once. All groups are killed first, then awaited against one
+     * shared timeout, and the empty groups are removed in parallel. Groups that did not become empty in
+     * time are left in place.
+     *
+     * @param groups        The groups to tear down
+     * @param timeoutMillis How long to wait for the processes of all groups to exit
+     * @return The per-group results, in the order of {@code groups}
+     */
+    public static List<CgOperationResult> teardownAll(List<ControlGroup2> groups, long timeoutMillis) {
+        return CgTeardown.teardown(groups, timeoutMillis, Math.max(1, Runtime.getRuntime().availableProcessors()));
     }
 
     public static ControlGroup2 create(String cgName, String... cgControlTypes) throws IOException {
-        Path cgRootPath = CGUtils.findCgMountPath();
-        if (cgRootPath == null)
-            throw new IOException("Cgroup mount path not found. Get cgroups mounted first.");
+        Path controlPath = CgMountResolver.resolve(cgName);
 
-        File file = new File(cgRootPath + "/" + cgName);
+        File file = controlPath.toFile();
         if (file.exists())
             return load(cgName);
 
@@ -169,7 +441,7 @@ public class ControlGroup2 {
             throw new PermissionDeniedException("Could not create new cgroup control (Not root or superuser)");
 
         if (cgControlTypes != null) {
-            File controls = new File(cgRootPath + "/" + cgName + "/cgroup.subtree_control");
+            File controls = controlPath.resolve("cgroup.subtree_control").toFile();
             FileOutputStream fos = new FileOutputStream(controls, true);
 
             for (String control : cgControlTypes)
@@ -178,20 +450,17 @@ public class ControlGroup2 {
             fos.close();
         }
 
-        Path controlPath = new File(cgRootPath + "/" + cgName).toPath();
         return new ControlGroup2(cgName, controlPath, cgControlTypes);
     }
 
     public static ControlGroup2 load(String cgName) throws IOException {
-        Path cgRootPath = CGUtils.findCgMountPath();
-        if (cgRootPath == null)
-            throw new IOException("Cgroup mount path not found. Get cgroups mounted first.");
+        Path controlPath = CgMountResolver.resolve(cgName);
 
-        File cgPath = new File(cgRootPath + "/" + cgName);
+        File cgPath = controlPath.toFile();
         if (!cgPath.exists())
-            throw new FileNotFoundException("Control Group labeled \"" + cgName + "\" under \"" + cgRootPath + "\" not found");
+            throw new FileNotFoundException("Control Group labeled \"" + cgName + "\" under \"" + CgMountResolver.getUnifiedMount() + "\" not found");
 
-        File file = new File(cgRootPath + "/" + cgName + "/cgroup.subtree_control");
+        File file = controlPath.resolve("cgroup.subtree_control").toFile();
         if (!file.exists())
             throw new FileNotFoundException("cgroup control directory or the cgroup subtree control file not found");
 
@@ -201,7 +470,17 @@ public class ControlGroup2 {
 
         String[] types = new String(buff).split("\n");
 
-        return new ControlGroup2(cgName, cgPath.toPath(), types);
+        return new ControlGroup2(cgName, controlPath, types);
+    }
+
+    public interface MigrationListener {
+
+        /**
+         * @param pid    The process that was moved
+         * @param cgPath The directory of the group it was moved into
+         */
+        void onMigrated(long pid, Path cgPath);
+
     }
 
 }
@@ -0,0 +1,151 @@
+package net.bc100dev.pfc.cg;
+
+import java.io.IOException;
+
+/**
+ * The typed view of the cpu controller: {@code cpu.max}, {@code cpu.weight} and {@code cpu.stat}.
+ */
+public class CpuController extends CgController {
+
+    public static final long DEFAULT_PERIOD_USEC = 100_000;
+
+    public CpuController(ControlGroup2 cg) {
+        super(cg);
+    }
+
+    @Override
+    public String getName() {
+        return "cpu";
+    }
+
+    /**
+     * Reads {@code cpu.max} into {@code dst[0]} (quota, {@link CgFileParser#MAX} if unlimited) and
+     * {@code dst[1]} (period), both in microseconds.
+     */
+    public void getMax(long[] dst) throws IOException {
+        if (CgFileParser.parsePair(cg.readBuffer("cpu.max"), dst, 0) != 2)
+            throw new IOException("Unexpected format of cpu.max");
+    }
+
+    /**
+     * @return The quota of {@code cpu.max} in microseconds, or {@link CgFileParser#MAX} if unlimited
+     */
+    public long getMaxQuota() throws IOException {
+        long[] values = new long[2];
+        getMax(values);
+
+        return values[0];
+    }
+
+    /**
+     * Limits the group to {@code quotaUsec} of CPU time per {@code periodUsec}.
+     *
+     * @param quotaUsec  The quota in microseconds, or {@link CgFileParser#MAX} for no limit
+     * @param periodUsec The period in microseconds
+     */
+    public void setMax(long quotaUsec, long periodUsec) throws IOException {
+        cg.setValue("cpu.max", CgFileParser.format(quotaUsec) + " " + periodUsec);
+    }
+
+    /**
+     * Limits the group to a number of CPUs (e.g. 1.5) with the default period of 100ms.
+     */
+    public void setMaxCpus(double cpus) throws IOException {
+        setMax((long) (cpus * DEFAULT_PERIOD_USEC), DEFAULT_PERIOD_USEC);
+    }
+
+    public void setUnlimited() throws IOException {
+        cg.setValue("cpu.max", "max");
+    }
+
+    /**
+     * @return {@code cpu.max.burst}: how much unused quota of past periods the group may use on top
+     * of its quota, in microseconds
+     */
+    public long getMaxBurst() throws IOException {
+        return readSingle("cpu.max.burst");
+    }
+
+    public void setMaxBurst(long burstUsec) throws IOException {
+        writeSingle("cpu.max.burst", burstUsec);
+    }
+
+    public long getWeight() throws IOException {
+        return readSingle("cpu.weight");
+    }
+
+    /**
+     * @param weight The weight, from 1 to 10000 (100 by default)
+     */
+    public void setWeight(long weight) throws IOException {
+        if (weight < 1 || weight > 10_000)
+            throw new IllegalArgumentException("cpu.weight must be between 1 and 10000");
+
+        writeSingle("cpu.weight", weight);
+    }
+
+    /**
+     * Reads {@code cpu.stat} into a reusable {@link Stat}.
+     *
+     * @param dst The object to fill, or null to create a new one
+     * @return {@code dst}, or the new object
+     */
+    public Stat readStat(Stat dst) throws IOException {
+        if (dst == null)
+            dst = new Stat();
+
+        dst.values[Stat.NR_BURSTS] = 0;
+        dst.values[Stat.BURST_USEC] = 0;
+        CgFileParser.parseFlatKeyed(cg.readBuffer("cpu.stat"), Stat.KEYS, dst.values, 0);
+        return dst;
+    }
+
+    /**
+     * The contents of {@code cpu.stat}. The throttling and burst fields stay 0 unless the cpu controller
+     * is enabled for the group.
+     */
+    public static class Stat {
+
+        private static final byte[][] KEYS = CgFileParser.keys("usage_usec", "user_usec", "system_usec",
+                "nr_periods", "nr_throttled", "throttled_usec", "nr_bursts", "burst_usec");
+
+        private static final int USAGE_USEC = 0, USER_USEC = 1, SYSTEM_USEC = 2, NR_PERIODS = 3,
+                NR_THROTTLED = 4, THROTTLED_USEC = 5, NR_BURSTS = 6, BURST_USEC = 7;
+
+        private final long[] values = new long[KEYS.length];
+
+        public long getUsageUsec() {
+            return values[USAGE_USEC];
+        }
+
+        public long getUserUsec() {
+            return values[USER_USEC];
+        }
+
+        public long getSystemUsec() {
+            return values[SYSTEM_USEC];
+        }
+
+        public long getNrPeriods() {
+            return values[NR_PERIODS];
+        }
+
+        public long getNrThrottled() {
+            return values[NR_THROTTLED];
+        }
+
+        public long getThrottledUsec() {
+            return values[THROTTLED_USEC];
+        }
+
+        public long getNrBursts() {
+            return values[NR_BURSTS];
+        }
+
+        public long getBurstUsec() {
+            return values[BURST_USEC];
+        }
+
+    }
+
+}
@@ -0,0 +1,434 @@
+package net.bc100dev.pfc.cg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rebalances {@code cpu.weight} between the child groups of a parent by what they actually use, so that
+ * idle groups do not keep a share they never use while busy ones get throttled.
+ * <p>
+ * Every period, the {@code cpu.stat} of each child is read once; its CPU demand is the time it ran plus
+ * the time it was throttled, smoothed over the periods. The {@link Policy} divides the CPUs between the
+ * children by their demands (max-min fairness, optionally weighted by an SLA class), and the weights are
+ * set in proportion to those shares, 100 on average. A weight is only written once it moved by more
+ * than the hysteresis, so small fluctuations do not cause writes.
+ * <p>
+ * Optionally, a child that was throttled by its {@code cpu.max} quota gets a {@code cpu.max.burst} of a
+ * share of its quota, until it runs unthrottled again.
+ */
+public class CpuWeightBalancer {
+
+    public static final int MIN_WEIGHT = 1;
+    public static final int MAX_WEIGHT = 10_000;
+
+    private static final byte[][] STAT_KEYS = CgFileParser.keys("usage_usec", "nr_throttled", "throttled_usec");
+    private static final byte[][] CGROUP_STAT_KEYS = CgFileParser.keys("nr_descendants");
+
+    private final ControlGroup2 parent;
+    private final Map<String, Double> slaWeights = new ConcurrentHashMap<>();
+    private final long[] values = new long[3];
+    private final long[] maxValues = new long[2];
+
+    private Policy policy = Policy.MAX_MIN;
+    private double hysteresis = 0.10;
+    private double smoothing = 0.5;
+    private int floorWeight = 10;
+    private double burstRatio;
+
+    private Child[] children = new Child[0];
+    private double[] demands = new double[0];
+    private double[] shares = new double[0];
+    private double[] classes = new double[0];
+    private long lastDescendants = -1;
+    private long lastPass;
+
+    private ScheduledExecutorService executor;
+    private volatile long passes;
+    private volatile long writes;
+    private volatile long lastPassNanos;
+
+    public CpuWeightBalancer(ControlGroup2 parent) {
+        this.parent = parent;
+    }
+
+    public synchronized CpuWeightBalancer policy(Policy policy) {
+        this.policy = policy;
+        return this;
+    }
+
+    /**
+     * @param hysteresis The relative change (e.g. 0.1 for 10%) a weight needs before it is written
+     */
+    public synchronized CpuWeightBalancer hysteresis(double hysteresis) {
+        if (hysteresis < 0)
+            throw new IllegalArgumentException("Hysteresis cannot be negative");
+
+        this.hysteresis = hysteresis;
+        return this;
+    }
+
+    /**
+     * @param smoothing The weight of the newest period in the demand average, from 0 (exclusive) to 1
+     */
+    public synchronized CpuWeightBalancer smoothing(double smoothing) {
+        if (smoothing <= 0 || smoothing > 1)
+            throw new IllegalArgumentException("Smoothing needs to be within (0, 1]");
+
+        this.smoothing = smoothing;
+        return this;
+    }
+
+    /**
+     * @param floorWeight The lowest weight set, so that an idle group is not starved once it wakes up
+     */
+    public synchronized CpuWeightBalancer floorWeight(int floorWeight) {
+        if (floorWeight < MIN_WEIGHT || floorWeight > MAX_WEIGHT)
+            throw new IllegalArgumentException("Floor weight must be between 1 and 10000");
+
+        this.floorWeight = floorWeight;
+        return this;
+    }
+
+    /**
+     * Enables {@code cpu.max.burst} for throttled children.
+     *
+     * @param burstRatio The share of the quota a throttled child may burst, or 0 to leave the bursts alone
+     */
+    public synchronized CpuWeightBalancer burst(double burstRatio) {
+        if (burstRatio < 0)
+            throw new IllegalArgumentException("Burst ratio cannot be negative");
+
+        this.burstRatio = burstRatio;
+        return this;
+    }
+
+    /**
+     * Sets the SLA class weight of a child for {@link Policy#SLA_WEIGHTED}; children without one have 1.
+     *
+     * @param childName The name of the child group, relative to the parent
+     */
+    public void setSlaWeight(String childName, double weight) {
+        if (weight <= 0)
+            throw new IllegalArgumentException("SLA weight must be positive");
+
+        slaWeights.put(childName, weight);
+    }
+
+    /**
+     * Samples all children and rebalances their weights once, on the calling thread.
+     */
+    public synchronized void balanceOnce() {
+        long start = System.nanoTime();
+
+        refreshChildren();
+
+        long elapsed = lastPass == 0 ? 0 : start - lastPass;
+        lastPass = start;
+
+        int n = children.length;
+        double capacity = capacity();
+
+        for (int i = 0; i < n; i++) {
+            Child child = children[i];
+            sample(child, elapsed);
+
+            // a child seen for the first time has no demand yet
+            demands[i] = Math.max(0, child.demand);
+            classes[i] = policy == Policy.SLA_WEIGHTED ? slaWeights.getOrDefault(child.name, 1.0) : 1.0;
+        }
+
+        if (elapsed > 0 && n > 0) {
+            waterFill(demands, classes, shares, n, capacity);
+
+            double mean = 0;
+            for (int i = 0; i < n; i++)
+                mean += shares[i];
+
+            mean /= n;
+
+            for (int i = 0; i < n; i++) {
+                long weight = mean <= 0 ? 100 : Math.round(shares[i] / mean * 100);
+                apply(children[i], Math.max(floorWeight, Math.min(MAX_WEIGHT, weight)));
+            }
+        }
+
+        lastPassNanos = System.nanoTime() - start;
+        passes++;
+    }
+
+    public synchronized void start(long periodMillis) {
+        if (executor != null)
+            throw new IllegalStateException("Balancer is already running");
+
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pfc-cpu-balancer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        executor.scheduleAtFixedRate(this::balanceOnce, 0, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        ScheduledExecutorService exec;
+        synchronized (this) {
+            exec = executor;
+            executor = null;
+        }
+
+        if (exec != null)
+            exec.shutdownNow();
+    }
+
+    public synchronized boolean isRunning() {
+        return executor != null;
+    }
+
+    public long getPasses() {
+        return passes;
+    }
+
+    /**
+     * @return The number of weights (and bursts) written so far
+     */
+    public long getWrites() {
+        return writes;
+    }
+
+    public long getLastPassNanos() {
+        return lastPassNanos;
+    }
+
+    /**
+     * @return The current weight of every child, as last read or written
+     */
+    public synchronized Map<String, Long> getWeights() {
+        Map<String, Long> map = new TreeMap<>();
+        for (Child child : children)
+            map.put(child.name, child.weight);
+
+        return map;
+    }
+
+    /**
+     * Max-min fair shares of the capacity: every child gets at most its demand, and what is left over is
+     * divided equally (by class weight) among those who want more. Spare capacity that nobody demands is
+     * divided among all children, so that a waking child still has some headroom.
+     */
+    static void waterFill(double[] demands, double[] classes, double[] shares, int n, double capacity) {
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+
+        // the children with the smallest demand per class weight are satisfied first
+        Arrays.sort(order, (a, b) -> Double.compare(demands[a] / classes[a], demands[b] / classes[b]));
+
+        double remaining = capacity;
+        double remainingClass = 0;
+        for (int i = 0; i < n; i++)
+            remainingClass += classes[i];
+
+        for (int idx = 0; idx < n; idx++) {
+            int i = order[idx];
+            double fair = remaining * classes[i] / remainingClass;
+
+            shares[i] = Math.min(demands[i], fair);
+            remaining -= shares[i];
+            remainingClass -= classes[i];
+        }
+
+        if (remaining > 0) {
+            double total = 0;
+            for (int i = 0; i < n; i++)
+                total += classes[i];
+
+            for (int i = 0; i < n; i++)
+                shares[i] += remaining * classes[i] / total;
+        }
+    }
+
+    private void sample(Child child, long elapsed) {
+        try {
+            ByteBuffer buff = ControlGroup2.HANDLES.read(child.cg.getPath().resolve("cpu.stat"));
+            values[0] = values[1] = values[2] = 0;
+            CgFileParser.parseFlatKeyed(buff, STAT_KEYS, values, 0);
+        } catch (IOException ex) {
+            // gone, or replaced by a group of the same name; the count of descendants may not have changed,
+            // so the next pass lists the children again regardless
+            child.demand = 0;
+            lastDescendants = -1;
+            return;
+        }
+
+        long usage = values[0] - child.usage;
+        long throttledPeriods = values[1] - child.throttledPeriods;
+        long throttled = values[2] - child.throttledUsec;
+        boolean first = child.usage < 0;
+
+        child.usage = values[0];
+        child.throttledPeriods = values[1];
+        child.throttledUsec = values[2];
+
+        if (first || elapsed <= 0)
+            return;
+
+        // in CPUs: the time it ran, and the time it wanted to run but was not allowed to
+        double demand = (usage + throttled) * 1000.0 / elapsed;
+        child.demand = child.demand < 0 ? demand : smoothing * demand + (1 - smoothing) * child.demand;
+
+        if (burstRatio > 0)
+            updateBurst(child, throttledPeriods > 0);
+    }
+
+    private void apply(Child child, long weight) {
+        long old = child.weight;
+        if (old > 0 && Math.abs(weight - old) <= old * hysteresis)
+            return;
+
+        try {
+            child.cg.cpu().setWeight(weight);
+            child.weight = weight;
+            writes++;
+        } catch (IOException ignore) {
+            // gone, or the cpu controller is not enabled for it
+        }
+    }
+
+    private void updateBurst(Child child, boolean throttled) {
+        try {
+            long burst = 0;
+            if (throttled) {
+                long quota = child.cg.cpu().getMaxQuota();
+                burst = quota == CgFileParser.MAX ? 0 : (long) (quota * burstRatio);
+            }
+
+            if (burst == child.burst)
+                return;
+
+            child.cg.cpu().setMaxBurst(burst);
+            child.burst = burst;
+            writes++;
+        } catch (IOException ignore) {
+            // no cpu.max.burst on this kernel
+        }
+    }
+
+    /**
+     * @return The CPUs the children share: the quota of the parent's {@code cpu.max} if it has one,
+     * otherwise the online CPUs of the machine
+     */
+    private double capacity() {
+        try {
+            parent.cpu().getMax(maxValues);
+            if (maxValues[0] != CgFileParser.MAX && maxValues[1] > 0)
+                return (double) maxValues[0] / maxValues[1];
+        } catch (IOException ignore) {
+            // the root group, or no cpu controller above the parent
+        }
+
+        try {
+            return NumaTopology.get().getCpuCount();
+        } catch (IOException ex) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+    }
+
+    /**
+     * Lists the children again once the number of descendants of the parent changed, keeping the state
+     * of the children that are still there.
+     */
+    private void refreshChildren() {
+        long descendants;
+        try {
+            ByteBuffer buff = ControlGroup2.HANDLES.read(parent.getPath().resolve("cgroup.stat"));
+            CgFileParser.parseFlatKeyed(buff, CGROUP_STAT_KEYS, values, 0);
+            descendants = values[0];
+        } catch (IOException ex) {
+            descendants = -1;
+        }
+
+        if (descendants >= 0 && descendants == lastDescendants)
+            return;
+
+        lastDescendants = descendants;
+
+        Map<String, Child> known = new HashMap<>();
+        for (Child child : children)
+            known.put(child.name, child);
+
+        List<Child> list = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(parent.getPath(),
+                entry -> Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS))) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                Child child = known.get(name);
+
+                list.add(child != null ? child : new Child(name, new ControlGroup2(parent.getName() + "/" + name, path)));
+            }
+        } catch (IOException ignore) {
+            // the parent is gone
+        }
+
+        children = list.toArray(new Child[0]);
+        demands = new double[children.length];
+        shares = new double[children.length];
+        classes = new double[children.length];
+    }
+
+    /**
+     * How the CPUs are divided between the children.
+     */
+    public enum Policy {
+
+        /**
+         * Max-min fairness: no child gets more than it demands, the rest is split equally.
+         */
+        MAX_MIN,
+
+        /**
+         * Weighted max-min fairness, with the SLA class weights set through {@link #setSlaWeight}.
+         */
+        SLA_WEIGHTED
+
+    }
+
+    private static final class Child {
+
+        private final String name;
+        private final ControlGroup2 cg;
+
+        private long usage = -1;
+        private long throttledPeriods;
+        private long throttledUsec;
+        private double demand = -1;
+        private long weight;
+        private long burst = -1;
+
+        private Child(String name, ControlGroup2 cg) {
+            this.name = name;
+            this.cg = cg;
+
+            try {
+                this.weight = cg.cpu().getWeight();
+            } catch (IOException ex) {
+                this.weight = 0;
+            }
+        }
+
+    }
+
+}
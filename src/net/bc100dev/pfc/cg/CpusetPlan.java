@@ -0,0 +1,79 @@
+package net.bc100dev.pfc.cg;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The CPUs and memory nodes a {@link CpusetPlanner} gives to every group.
+ */
+public class CpusetPlan {
+
+    private final List<Assignment> assignments;
+    private final List<String> unplaced;
+
+    CpusetPlan(List<Assignment> assignments, List<String> unplaced) {
+        this.assignments = Collections.unmodifiableList(assignments);
+        this.unplaced = Collections.unmodifiableList(unplaced);
+    }
+
+    public List<Assignment> getAssignments() {
+        return assignments;
+    }
+
+    public Assignment getAssignment(String cgroup) {
+        for (Assignment assignment : assignments) {
+            if (assignment.cgroup().equals(cgroup))
+                return assignment;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return The groups that did not fit onto the remaining CPUs
+     */
+    public List<String> getUnplaced() {
+        return unplaced;
+    }
+
+    public boolean isComplete() {
+        return unplaced.isEmpty();
+    }
+
+    /**
+     * @return The plan as text, one group per line
+     */
+    public String describe() {
+        StringBuilder str = new StringBuilder();
+
+        for (Assignment assignment : assignments) {
+            str.append(String.format("%s: cpus %s, mems %s%s%n", assignment.cgroup(), assignment.cpuList(),
+                    assignment.memList(), assignment.isolated() ? ", isolated" : ""));
+        }
+
+        for (String cgroup : unplaced)
+            str.append(String.format("%s: not enough free CPUs%n", cgroup));
+
+        return str.toString();
+    }
+
+    /**
+     * @param cgroup   The group
+     * @param cpus     The CPUs for {@code cpuset.cpus}
+     * @param mems     The memory nodes for {@code cpuset.mems}, the nodes of the CPUs
+     * @param isolated Whether the group becomes an isolated partition ({@code cpuset.cpus.partition})
+     */
+    public record Assignment(String cgroup, BitSet cpus, BitSet mems, boolean isolated) {
+
+        public String cpuList() {
+            return NumaTopology.formatCpuList(cpus);
+        }
+
+        public String memList() {
+            return NumaTopology.formatCpuList(mems);
+        }
+
+    }
+
+}
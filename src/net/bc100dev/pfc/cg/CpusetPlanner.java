@@ -0,0 +1,318 @@
+package net.bc100dev.pfc.cg;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Gives control groups non-overlapping {@code cpuset.cpus} ranges aligned to NUMA nodes, with the
+ * {@code cpuset.mems} of the nodes their CPUs are on, and optionally makes them isolated partitions.
+ * <p>
+ * A group is placed on the node with the fewest free CPUs that still fit it (whole cores first, so that
+ * hyperthread siblings stay together), and only spans several nodes if no single one has room. When
+ * groups are added or removed, the groups that were placed before keep their CPUs where possible, and
+ * the whole plan is only laid out again if the new groups would not fit otherwise.
+ * <pre>
+ * CpusetPlanner planner = new CpusetPlanner();
+ * planner.reserve(NumaTopology.parseCpuList("0-1"));
+ * planner.add("services/db", 8, true);
+ * planner.add("services/web", 4, false);
+ *
+ * CpusetPlan plan = planner.plan();
+ * planner.apply(plan, false);
+ * </pre>
+ */
+public class CpusetPlanner {
+
+    private final NumaTopology topology;
+    private final BitSet reserved = new BitSet();
+    private final Map<String, Request> requests = new LinkedHashMap<>();
+    private final Set<String> removed = new LinkedHashSet<>();
+
+    private CpusetPlan applied;
+
+    public CpusetPlanner() throws IOException {
+        this(NumaTopology.get());
+    }
+
+    public CpusetPlanner(NumaTopology topology) {
+        this.topology = topology;
+    }
+
+    /**
+     * Keeps CPUs out of every plan, like the ones for housekeeping and interrupts.
+     */
+    public synchronized CpusetPlanner reserve(BitSet cpus) {
+        reserved.clear();
+        reserved.or(cpus);
+        return this;
+    }
+
+    /**
+     * Adds a group to the plan, or changes its request.
+     *
+     * @param cgroup   The group, relative to the cgroup2 mount
+     * @param cpus     The number of CPUs
+     * @param isolated Whether to make it an isolated partition, removing its CPUs from load balancing
+     */
+    public synchronized void add(String cgroup, int cpus, boolean isolated) {
+        if (cpus < 1)
+            throw new IllegalArgumentException("A group needs at least one CPU");
+
+        requests.put(cgroup, new Request(cgroup, cpus, isolated));
+        removed.remove(cgroup);
+    }
+
+    /**
+     * Removes a group from the plan. Its CPUs are given to other groups on the next plan; if the group
+     * still exists when that plan is applied, its partition is turned back into a member.
+     */
+    public synchronized void remove(String cgroup) {
+        if (requests.remove(cgroup) != null)
+            removed.add(cgroup);
+    }
+
+    public synchronized List<String> getGroups() {
+        return new ArrayList<>(requests.keySet());
+    }
+
+    /**
+     * @return The plan that was applied last, or null
+     */
+    public synchronized CpusetPlan getApplied() {
+        return applied;
+    }
+
+    /**
+     * Lays out the current groups, keeping the CPUs of the last applied plan where possible.
+     */
+    public synchronized CpusetPlan plan() {
+        CpusetPlan plan = place(applied);
+
+        if (!plan.isComplete() && applied != null) {
+            // moving the existing groups around might make room
+            CpusetPlan fresh = place(null);
+            if (fresh.getUnplaced().size() < plan.getUnplaced().size())
+                return fresh;
+        }
+
+        return plan;
+    }
+
+    /**
+     * Writes a plan through {@link CgProfileApplier}, in an order the kernel accepts for partitions:
+     * partitions that change or go away are turned into members first, then the CPUs and memory nodes
+     * are written, and the isolated partitions are created last. Only changed values are written.
+     *
+     * @param plan   The plan from {@link #plan()}
+     * @param dryRun Only report what would be written
+     * @return The merged result of all steps
+     */
+    public synchronized CgApplyResult apply(CpusetPlan plan, boolean dryRun) {
+        CgProfileApplier applier = new CgProfileApplier().dryRun(dryRun);
+        List<CgApplyResult> results = new ArrayList<>(3);
+
+        List<CgProfile> demote = new ArrayList<>();
+        Set<String> stale = new LinkedHashSet<>(removed);
+        if (applied != null) {
+            for (CpusetPlan.Assignment old : applied.getAssignments()) {
+                CpusetPlan.Assignment now = plan.getAssignment(old.cgroup());
+
+                if (old.isolated() && (now == null || !now.isolated() || !now.cpus().equals(old.cpus())))
+                    stale.add(old.cgroup());
+            }
+        }
+
+        for (String cgroup : stale) {
+            if (exists(cgroup))
+                demote.add(new CgProfile(cgroup, List.of(), List.of(), Map.of("cpuset.cpus.partition", "member")));
+        }
+
+        if (!demote.isEmpty())
+            results.add(applier.apply(demote));
+
+        List<CgProfile> cpus = new ArrayList<>();
+        List<CgProfile> partitions = new ArrayList<>();
+        for (CpusetPlan.Assignment assignment : plan.getAssignments()) {
+            cpus.add(new CgProfile(assignment.cgroup(), List.of("cpuset"), List.of(),
+                    Map.of("cpuset.cpus", assignment.cpuList(), "cpuset.mems", assignment.memList())));
+
+            if (assignment.isolated())
+                partitions.add(new CgProfile(assignment.cgroup(), List.of(), List.of(), Map.of("cpuset.cpus.partition", "isolated")));
+        }
+
+        results.add(applier.apply(cpus));
+        if (!partitions.isEmpty())
+            results.add(applier.apply(partitions));
+
+        CgApplyResult result = CgApplyResult.merge(results);
+        if (!dryRun && result.getErrors().isEmpty()) {
+            applied = plan;
+            removed.clear();
+        }
+
+        return result;
+    }
+
+    private static boolean exists(String cgroup) {
+        try {
+            return Files.isDirectory(CgMountResolver.resolve(cgroup));
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    private CpusetPlan place(CpusetPlan keep) {
+        Map<Integer, BitSet> free = new HashMap<>();
+        for (NumaTopology.NumaNode node : topology.getNodes()) {
+            BitSet cpus = (BitSet) node.cpus().clone();
+            cpus.andNot(reserved);
+            free.put(node.id(), cpus);
+        }
+
+        Map<String, CpusetPlan.Assignment> placed = new HashMap<>();
+        List<Request> pending = new ArrayList<>();
+
+        for (Request request : requests.values()) {
+            CpusetPlan.Assignment old = keep == null ? null : keep.getAssignment(request.cgroup);
+
+            if (old != null && old.cpus().cardinality() == request.cpus && old.isolated() == request.isolated
+                    && take(free, old.cpus())) {
+                placed.put(request.cgroup, old);
+                continue;
+            }
+
+            pending.add(request);
+        }
+
+        // the large groups first, they are the hardest to fit onto one node
+        pending.sort(Comparator.comparingInt((Request r) -> -r.cpus).thenComparing(r -> r.cgroup));
+
+        List<String> unplaced = new ArrayList<>();
+        for (Request request : pending) {
+            CpusetPlan.Assignment assignment = allocate(free, request);
+            if (assignment == null)
+                unplaced.add(request.cgroup);
+            else
+                placed.put(request.cgroup, assignment);
+        }
+
+        List<CpusetPlan.Assignment> assignments = new ArrayList<>(placed.size());
+        for (Request request : requests.values()) {
+            CpusetPlan.Assignment assignment = placed.get(request.cgroup);
+            if (assignment != null)
+                assignments.add(assignment);
+        }
+
+        return new CpusetPlan(assignments, unplaced);
+    }
+
+    /**
+     * Removes the CPUs from the free ones, if all of them are still free.
+     */
+    private static boolean take(Map<Integer, BitSet> free, BitSet cpus) {
+        BitSet all = new BitSet();
+        for (BitSet nodeFree : free.values())
+            all.or(nodeFree);
+
+        BitSet missing = (BitSet) cpus.clone();
+        missing.andNot(all);
+        if (!missing.isEmpty())
+            return false;
+
+        for (BitSet nodeFree : free.values())
+            nodeFree.andNot(cpus);
+
+        return true;
+    }
+
+    private CpusetPlan.Assignment allocate(Map<Integer, BitSet> free, Request request) {
+        // best fit: the node with the fewest free CPUs that still has room
+        NumaTopology.NumaNode best = null;
+        int bestFree = Integer.MAX_VALUE;
+
+        for (NumaTopology.NumaNode node : topology.getNodes()) {
+            int count = free.get(node.id()).cardinality();
+
+            if (count >= request.cpus && count < bestFree) {
+                best = node;
+                bestFree = count;
+            }
+        }
+
+        BitSet cpus = new BitSet();
+        BitSet mems = new BitSet();
+
+        if (best != null) {
+            takeCores(best, free.get(best.id()), request.cpus, cpus);
+            mems.set(best.id());
+        } else {
+            int total = 0;
+            for (BitSet nodeFree : free.values())
+                total += nodeFree.cardinality();
+
+            if (total < request.cpus)
+                return null;
+
+            // span as few nodes as possible, the emptiest first
+            List<NumaTopology.NumaNode> nodes = new ArrayList<>(topology.getNodes());
+            nodes.sort(Comparator.comparingInt((NumaTopology.NumaNode n) -> -free.get(n.id()).cardinality())
+                    .thenComparingInt(NumaTopology.NumaNode::id));
+
+            int needed = request.cpus;
+            for (NumaTopology.NumaNode node : nodes) {
+                if (needed == 0)
+                    break;
+
+                int count = Math.min(needed, free.get(node.id()).cardinality());
+                if (count == 0)
+                    continue;
+
+                takeCores(node, free.get(node.id()), count, cpus);
+                mems.set(node.id());
+                needed -= count;
+            }
+        }
+
+        return new CpusetPlan.Assignment(request.cgroup, cpus, mems, request.isolated);
+    }
+
+    /**
+     * Takes CPUs from a node, whole free cores first and single CPUs for the rest.
+     */
+    private static void takeCores(NumaTopology.NumaNode node, BitSet nodeFree, int count, BitSet dst) {
+        int needed = count;
+
+        for (BitSet core : node.cores()) {
+            if (needed == 0)
+                return;
+
+            BitSet available = (BitSet) core.clone();
+            available.and(nodeFree);
+
+            if (available.equals(core) && core.cardinality() <= needed) {
+                dst.or(core);
+                nodeFree.andNot(core);
+                needed -= core.cardinality();
+            }
+        }
+
+        for (int cpu = nodeFree.nextSetBit(0); cpu >= 0 && needed > 0; cpu = nodeFree.nextSetBit(cpu + 1)) {
+            dst.set(cpu);
+            nodeFree.clear(cpu);
+            needed--;
+        }
+    }
+
+    private record Request(String cgroup, int cpus, boolean isolated) {
+    }
+
+}
@@ -0,0 +1,366 @@
+package net.bc100dev.pfc.cg;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates the energy used by control groups from the RAPL package counters of the powercap framework
+ * ({@code /sys/class/powercap/intel-rapl:N/energy_uj}).
+ * <p>
+ * Every tick, the package counters are read (taking their wraparound at {@code max_energy_range_uj} into
+ * account) and the energy of the interval is split between the groups in proportion to the CPU time
+ * their {@code cpu.stat} reports for the same interval. Either all of it goes to the tracked groups, or
+ * only their share of the CPU time of the whole system, leaving the rest unattributed; see {@link Split}.
+ * The counters wrap after a few minutes under load at most, so the interval should stay well below that.
+ * <pre>
+ * EnergyAccountant energy = new EnergyAccountant();
+ * energy.add(ControlGroup2.load("tenants/a"));
+ * energy.add(ControlGroup2.load("tenants/b"));
+ * energy.start(1000);
+ * ...
+ * double joules = energy.getJoules("tenants/a");
+ * </pre>
+ */
+public class EnergyAccountant {
+
+    public static final Path POWERCAP_ROOT = Path.of("/sys/class/powercap");
+
+    private static final byte[][] CPU_KEYS = CgFileParser.keys("usage_usec");
+
+    private final List<Zone> zones;
+    private final Map<String, Group> groups = new ConcurrentHashMap<>();
+    private volatile Group[] groupArray = new Group[0];
+    private final long[] values = new long[1];
+
+    private Split split = Split.TRACKED;
+    private Path systemStat;
+    private long lastSystemUsage = -1;
+
+    private double packageJoules;
+    private double unattributedJoules;
+    private double packageWatts;
+    private long lastTick;
+    private long lastTickNanos;
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * Reads the RAPL packages of this machine.
+     *
+     * @throws IOException If there is no RAPL package under {@link #POWERCAP_ROOT}
+     */
+    public EnergyAccountant() throws IOException {
+        this(POWERCAP_ROOT);
+    }
+
+    /**
+     * @param powercapRoot The directory containing the {@code intel-rapl:N} zones
+     * @throws IOException If there is no RAPL package under it
+     */
+    public EnergyAccountant(Path powercapRoot) throws IOException {
+        this.zones = readZones(powercapRoot);
+
+        if (zones.isEmpty())
+            throw new IOException("No RAPL package found under " + powercapRoot);
+    }
+
+    /**
+     * Sets how the energy is split; {@link Split#SYSTEM} reads the CPU time of the whole system from the
+     * {@code cpu.stat} of the root group.
+     */
+    public synchronized EnergyAccountant split(Split split) throws IOException {
+        this.split = split;
+        this.systemStat = split == Split.SYSTEM ? CgMountResolver.resolve("").resolve("cpu.stat") : null;
+        this.lastSystemUsage = -1;
+        return this;
+    }
+
+    /**
+     * Starts accounting a group. Groups should not contain each other, or their energy is counted twice.
+     */
+    public synchronized void add(ControlGroup2 cg) {
+        groups.putIfAbsent(cg.getName(), new Group(cg));
+        groupArray = groups.values().toArray(new Group[0]);
+    }
+
+    public synchronized void remove(String cgName) {
+        groups.remove(cgName);
+        groupArray = groups.values().toArray(new Group[0]);
+    }
+
+    /**
+     * @return The names of the RAPL packages, like "package-0"
+     */
+    public List<String> getPackages() {
+        List<String> names = new ArrayList<>(zones.size());
+        for (Zone zone : zones)
+            names.add(zone.name);
+
+        return names;
+    }
+
+    /**
+     * Reads the counters once and splits the energy since the last tick, on the calling thread. The
+     * first tick only takes the baseline.
+     */
+    public synchronized void tickOnce() {
+        long start = System.nanoTime();
+
+        long energy = 0;
+        boolean complete = true;
+        for (Zone zone : zones) {
+            long delta = zone.read();
+            if (delta < 0)
+                complete = false;
+            else
+                energy += delta;
+        }
+
+        long totalUsage = 0;
+        for (Group group : groupArray)
+            totalUsage += group.read(values);
+
+        long systemUsage = 0;
+        if (systemStat != null) {
+            try {
+                values[0] = 0;
+                CgFileParser.parseFlatKeyed(ControlGroup2.HANDLES.read(systemStat), CPU_KEYS, values, 0);
+                systemUsage = lastSystemUsage < 0 ? 0 : values[0] - lastSystemUsage;
+                lastSystemUsage = values[0];
+            } catch (IOException ignore) {
+                // all of it is split between the groups then
+            }
+        }
+
+        long elapsed = lastTick == 0 ? 0 : start - lastTick;
+        lastTick = start;
+
+        if (complete && elapsed > 0) {
+            double joules = energy / 1e6;
+            long denominator = Math.max(totalUsage, systemUsage);
+
+            packageJoules += joules;
+            packageWatts = joules * 1e9 / elapsed;
+
+            double attributed = 0;
+            for (Group group : groupArray) {
+                double share = denominator == 0 ? 0 : joules * group.usageDelta / denominator;
+
+                group.joules += share;
+                group.watts = share * 1e9 / elapsed;
+                attributed += share;
+            }
+
+            unattributedJoules += joules - attributed;
+        }
+
+        lastTickNanos = System.nanoTime() - start;
+    }
+
+    public synchronized void start(long intervalMillis) {
+        if (executor != null)
+            throw new IllegalStateException("Accountant is already running");
+
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pfc-energy-accountant");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        executor.scheduleAtFixedRate(this::tickOnce, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        ScheduledExecutorService exec;
+        synchronized (this) {
+            exec = executor;
+            executor = null;
+        }
+
+        if (exec != null)
+            exec.shutdownNow();
+    }
+
+    public synchronized boolean isRunning() {
+        return executor != null;
+    }
+
+    /**
+     * @return The energy attributed to a group so far, in joules, or 0 if it is not accounted
+     */
+    public synchronized double getJoules(String cgName) {
+        Group group = groups.get(cgName);
+        return group == null ? 0 : group.joules;
+    }
+
+    /**
+     * @return The average power of a group over the last tick, in watts
+     */
+    public synchronized double getWatts(String cgName) {
+        Group group = groups.get(cgName);
+        return group == null ? 0 : group.watts;
+    }
+
+    /**
+     * @return The energy of every group so far, in joules, by name
+     */
+    public synchronized Map<String, Double> getTotals() {
+        Map<String, Double> map = new TreeMap<>();
+        for (Group group : groupArray)
+            map.put(group.cg.getName(), group.joules);
+
+        return map;
+    }
+
+    /**
+     * @return The energy of all packages since the first tick, in joules
+     */
+    public synchronized double getPackageJoules() {
+        return packageJoules;
+    }
+
+    public synchronized double getPackageWatts() {
+        return packageWatts;
+    }
+
+    /**
+     * @return The energy that was not attributed to any group: what the rest of the system used with
+     * {@link Split#SYSTEM}, or ticks in which none of the groups ran
+     */
+    public synchronized double getUnattributedJoules() {
+        return unattributedJoules;
+    }
+
+    public synchronized long getLastTickNanos() {
+        return lastTickNanos;
+    }
+
+    /**
+     * Finds the package zones ({@code intel-rapl:N}), skipping their core, uncore and dram sub-zones
+     * ({@code intel-rapl:N:M}), which the package counter already includes.
+     */
+    private static List<Zone> readZones(Path root) throws IOException {
+        List<Zone> zones = new ArrayList<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root, "intel-rapl:*")) {
+            for (Path dir : stream) {
+                String id = dir.getFileName().toString();
+                if (id.indexOf(':') != id.lastIndexOf(':'))
+                    continue;
+
+                Path energy = dir.resolve("energy_uj");
+                if (!Files.isReadable(energy))
+                    continue;
+
+                String name = Files.exists(dir.resolve("name")) ? Files.readString(dir.resolve("name")).trim() : id;
+                long range = Long.parseLong(Files.readString(dir.resolve("max_energy_range_uj")).trim());
+                zones.add(new Zone(name, energy, range));
+            }
+        } catch (NumberFormatException ex) {
+            throw new IOException("Invalid max_energy_range_uj under " + root, ex);
+        }
+
+        zones.sort((a, b) -> a.name.compareTo(b.name));
+        return zones;
+    }
+
+    /**
+     * How the energy of a tick is split.
+     */
+    public enum Split {
+
+        /**
+         * All energy goes to the tracked groups, by their share of the CPU time they used together.
+         */
+        TRACKED,
+
+        /**
+         * The groups get their share of the CPU time of the whole system; the rest stays unattributed.
+         */
+        SYSTEM
+
+    }
+
+    private static final class Zone {
+
+        private final String name;
+        private final Path energyFile;
+        private final long range;
+        private long last = -1;
+
+        private Zone(String name, Path energyFile, long range) {
+            this.name = name;
+            this.energyFile = energyFile;
+            this.range = range;
+        }
+
+        /**
+         * @return The microjoules since the last read, 0 on the first one, or -1 if the counter is unreadable
+         */
+        private long read() {
+            long now;
+            try {
+                now = CgFileParser.parseSingle(ControlGroup2.HANDLES.read(energyFile));
+            } catch (IOException ex) {
+                last = -1;
+                return -1;
+            }
+
+            long delta;
+            if (last < 0)
+                delta = 0;
+            else if (now >= last)
+                delta = now - last;
+            else
+                delta = range - last + now; // wrapped around
+
+            last = now;
+            return delta;
+        }
+
+    }
+
+    private static final class Group {
+
+        private final ControlGroup2 cg;
+        private final Path statFile;
+        private long lastUsage = -1;
+        private long usageDelta;
+        private double joules;
+        private double watts;
+
+        private Group(ControlGroup2 cg) {
+            this.cg = cg;
+            this.statFile = cg.getPath().resolve("cpu.stat");
+        }
+
+        /**
+         * @return The CPU time used since the last read, in microseconds
+         */
+        private long read(long[] values) {
+            try {
+                values[0] = 0;
+                CgFileParser.parseFlatKeyed(ControlGroup2.HANDLES.read(statFile), CPU_KEYS, values, 0);
+            } catch (IOException ex) {
+                usageDelta = 0;
+                return 0;
+            }
+
+            usageDelta = lastUsage < 0 ? 0 : Math.max(0, values[0] - lastUsage);
+            lastUsage = values[0];
+            return usageDelta;
+        }
+
+    }
+
+}
@@ -0,0 +1,413 @@
+package net.bc100dev.pfc.cg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects runaway forking in control groups and stops it within one tick, by freezing the group or by
+ * capping its {@code pids.max}.
+ * <p>
+ * Every tick, {@code pids.current} of each group is read, and (unless turned off) the task IDs of
+ * {@code cgroup.threads}, to count the tasks that were not there on the previous tick. Both go into a
+ * preallocated {@link SampleRing} per group, and the growth and arrival rates are taken over the samples
+ * within the sliding window. Once either rate crosses its threshold, the action is taken and the
+ * listeners are notified; the group then stays tripped until {@link #release(String)}. If the action
+ * fails, the group is not tripped and the action is tried again on the next tick.
+ * <p>
+ * {@code pids.current} counts the tasks of the whole subtree, but {@code cgroup.threads} only lists the
+ * tasks that are directly in the group, so arrivals in sub-groups only show up in the growth rate. Watch
+ * the sub-groups themselves where their arrivals matter.
+ * <p>
+ * The files are read into the reused buffers of the handle pool, the task IDs are parsed into reused
+ * arrays and compared after an in-place sort, so a tick over thousands of groups does not allocate once
+ * the arrays have grown to the size of the groups.
+ */
+public class ForkRateDetector {
+
+    private static final int CURRENT = 0;
+    private static final int ARRIVALS = 1;
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Map<String, Group> groups = new ConcurrentHashMap<>();
+    private volatile Group[] groupArray = new Group[0];
+    private final long[] sample = new long[2];
+
+    private long windowNanos = 5_000_000_000L;
+    private long tickMillis = 250;
+    private double growthThreshold = 50;
+    private double arrivalThreshold = 200;
+    private Action action = Action.FREEZE;
+    private long capHeadroom;
+    private boolean trackArrivals = true;
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param windowMillis The span the rates are taken over
+     */
+    public synchronized ForkRateDetector window(long windowMillis) {
+        if (windowMillis <= 0)
+            throw new IllegalArgumentException("Window must be positive");
+
+        this.windowNanos = windowMillis * 1_000_000;
+        resizeRings();
+        return this;
+    }
+
+    /**
+     * @param tickMillis How often the groups are sampled by {@link #start()}
+     */
+    public synchronized ForkRateDetector tick(long tickMillis) {
+        if (tickMillis <= 0)
+            throw new IllegalArgumentException("Tick must be positive");
+
+        this.tickMillis = tickMillis;
+        resizeRings();
+        return this;
+    }
+
+    /**
+     * @param growthPerSecond  The growth of {@code pids.current} per second that trips a group
+     * @param arrivalPerSecond The new tasks per second that trip a group
+     */
+    public synchronized ForkRateDetector thresholds(double growthPerSecond, double arrivalPerSecond) {
+        if (growthPerSecond <= 0 || arrivalPerSecond <= 0)
+            throw new IllegalArgumentException("Thresholds must be positive");
+
+        this.growthThreshold = growthPerSecond;
+        this.arrivalThreshold = arrivalPerSecond;
+        return this;
+    }
+
+    /**
+     * @param action      What to do with a tripped group
+     * @param capHeadroom For {@link Action#CAP_PIDS}, how many tasks above {@code pids.current} are still allowed
+     */
+    public synchronized ForkRateDetector action(Action action, long capHeadroom) {
+        if (capHeadroom < 0)
+            throw new IllegalArgumentException("Headroom cannot be negative");
+
+        this.action = action;
+        this.capHeadroom = capHeadroom;
+        return this;
+    }
+
+    /**
+     * Turns the reading of {@code cgroup.threads} off, leaving only the growth of {@code pids.current},
+     * which is much cheaper for groups with many tasks but misses tasks that come and go. Arrivals are
+     * only counted for the tasks directly in a group, not for those of its sub-groups.
+     */
+    public synchronized ForkRateDetector trackArrivals(boolean trackArrivals) {
+        this.trackArrivals = trackArrivals;
+        return this;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @param cg The group, which needs the pids controller
+     */
+    public synchronized void add(ControlGroup2 cg) {
+        groups.putIfAbsent(cg.getName(), new Group(cg, ringCapacity()));
+        groupArray = groups.values().toArray(new Group[0]);
+    }
+
+    public synchronized void remove(String cgName) {
+        groups.remove(cgName);
+        groupArray = groups.values().toArray(new Group[0]);
+    }
+
+    /**
+     * @return Whether the group tripped and has not been released yet
+     */
+    public boolean isTripped(String cgName) {
+        Group group = groups.get(cgName);
+        return group != null && group.tripped;
+    }
+
+    /**
+     * Undoes the action taken on a tripped group (thawing it, or restoring its {@code pids.max}) and
+     * starts watching it from scratch.
+     */
+    public synchronized void release(String cgName) throws IOException {
+        Group group = groups.get(cgName);
+        if (group == null)
+            return;
+
+        if (group.frozen) {
+            group.cg.setValue("cgroup.freeze", "0");
+            group.frozen = false;
+        }
+
+        if (group.savedMax >= 0) {
+            group.cg.pids().setMax(group.savedMax);
+            group.savedMax = -1;
+        }
+
+        group.ring.clear();
+        group.primed = false;
+        group.tripped = false;
+    }
+
+    /**
+     * Samples all groups once and acts on the ones that fork too fast, on the calling thread.
+     */
+    public synchronized void tickOnce() {
+        for (Group group : groupArray)
+            tick(group);
+    }
+
+    /**
+     * Ticks on a daemon thread, at the interval set through {@link #tick(long)}.
+     */
+    public synchronized void start() {
+        start(tickMillis);
+    }
+
+    /**
+     * Ticks on a daemon thread. The window holds {@code window / tick} samples per group; the rings of
+     * groups added before are resized to fit the tick.
+     */
+    public synchronized void start(long tickMillis) {
+        if (executor != null)
+            throw new IllegalStateException("Detector is already running");
+
+        tick(tickMillis);
+
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pfc-fork-detector");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        executor.scheduleAtFixedRate(this::tickOnce, 0, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        ScheduledExecutorService exec;
+        synchronized (this) {
+            exec = executor;
+            executor = null;
+        }
+
+        if (exec != null)
+            exec.shutdownNow();
+    }
+
+    public synchronized boolean isRunning() {
+        return executor != null;
+    }
+
+    private void tick(Group group) {
+        if (group.tripped)
+            return;
+
+        long now = System.nanoTime();
+        long current;
+        try {
+            current = CgFileParser.parseSingle(ControlGroup2.HANDLES.read(group.currentFile));
+
+            // read to the end, cgroup.threads comes a page at a time
+            if (trackArrivals)
+                group.arrivals += readThreads(group, ControlGroup2.HANDLES.read(group.threadsFile));
+        } catch (IOException ex) {
+            // gone, or without the pids controller
+            return;
+        }
+
+        group.primed = true;
+
+        sample[CURRENT] = current;
+        sample[ARRIVALS] = group.arrivals;
+        group.ring.record(now, sample, 0);
+
+        int age = group.ring.ageWithin(windowNanos);
+        if (age == 0)
+            return;
+
+        double growth = group.ring.rate(CURRENT, age);
+        double arrival = group.ring.rate(ARRIVALS, age);
+        if (growth < growthThreshold && arrival < arrivalThreshold)
+            return;
+
+        boolean applied = false;
+        try {
+            switch (action) {
+                case FREEZE -> {
+                    group.cg.setValue("cgroup.freeze", "1");
+                    group.frozen = true;
+                    applied = true;
+                }
+                case CAP_PIDS -> {
+                    long max = group.cg.pids().getMax();
+                    long cap = current + capHeadroom;
+
+                    if (cap < max) {
+                        group.cg.pids().setMax(cap);
+                        group.savedMax = max;
+                    }
+
+                    applied = true;
+                }
+                case NOTIFY -> {
+                    // only the listeners are told
+                }
+            }
+        } catch (IOException ignore) {
+            // reported as not applied
+        }
+
+        // a notification does not stop anything, so the group keeps being watched; neither does an action
+        // that failed, which is tried again on the next tick
+        group.tripped = applied;
+        if (action == Action.NOTIFY)
+            group.ring.clear();
+
+        ForkRateEvent event = new ForkRateEvent(group.cg.getName(), growth, arrival, current, action, applied, now);
+        for (Listener listener : listeners) {
+            try {
+                listener.onForkRate(event);
+            } catch (RuntimeException ex) {
+                // a broken listener must not stop the detection, which would end the scheduled ticks
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, ex);
+            }
+        }
+    }
+
+    private int ringCapacity() {
+        return (int) Math.min(4096, windowNanos / 1_000_000 / Math.max(1, tickMillis) + 2);
+    }
+
+    /**
+     * Gives every group a ring that covers the window at the current tick, starting it over.
+     */
+    private void resizeRings() {
+        int capacity = ringCapacity();
+
+        for (Group group : groups.values()) {
+            if (group.ring.getCapacity() != capacity) {
+                group.ring = new SampleRing(capacity, 2);
+                group.primed = false;
+            }
+        }
+    }
+
+    /**
+     * Parses the task IDs of {@code cgroup.threads} into the scratch array of the group, sorts them and
+     * counts the ones that were not there on the previous tick.
+     *
+     * @return The number of new tasks (0 on the first tick)
+     */
+    private static int readThreads(Group group, ByteBuffer buff) {
+        int limit = buff.limit();
+        int pos = buff.position();
+        int count = 0;
+
+        while (pos < limit) {
+            int lineEnd = CgFileParser.lineEnd(buff, pos, limit);
+
+            if (lineEnd > pos) {
+                if (count == group.scratch.length)
+                    group.scratch = Arrays.copyOf(group.scratch, count * 2);
+
+                group.scratch[count++] = CgFileParser.parseValue(buff, pos, lineEnd);
+            }
+
+            pos = lineEnd + 1;
+        }
+
+        Arrays.sort(group.scratch, 0, count);
+
+        // both lists are sorted, so a single merge pass finds the new ones
+        int arrived = 0;
+        int j = 0;
+        for (int i = 0; i < count; i++) {
+            long tid = group.scratch[i];
+            while (j < group.tidCount && group.tids[j] < tid)
+                j++;
+
+            if (j >= group.tidCount || group.tids[j] != tid)
+                arrived++;
+        }
+
+        boolean first = !group.primed;
+
+        long[] swap = group.tids;
+        group.tids = group.scratch;
+        group.scratch = swap.length >= group.tids.length ? swap : new long[group.tids.length];
+        group.tidCount = count;
+
+        return first ? 0 : arrived;
+    }
+
+    /**
+     * What is done with a group that forks too fast.
+     */
+    public enum Action {
+
+        /**
+         * Freezes the whole group, so no task of it runs until it is released.
+         */
+        FREEZE,
+
+        /**
+         * Sets {@code pids.max} just above {@code pids.current}, so the running tasks go on but cannot fork.
+         */
+        CAP_PIDS,
+
+        /**
+         * Only notifies the listeners.
+         */
+        NOTIFY
+
+    }
+
+    public interface Listener {
+
+        void onForkRate(ForkRateEvent event);
+
+    }
+
+    private static final class Group {
+
+        private final ControlGroup2 cg;
+        private final Path currentFile;
+        private final Path threadsFile;
+        private SampleRing ring;
+
+        private long[] tids = new long[64];
+        private long[] scratch = new long[64];
+        private int tidCount;
+        private long arrivals;
+        private boolean primed;
+
+        private volatile boolean tripped;
+        private boolean frozen;
+        private long savedMax = -1;
+
+        private Group(ControlGroup2 cg, int capacity) {
+            this.cg = cg;
+            this.currentFile = cg.getPath().resolve("pids.current");
+            this.threadsFile = cg.getPath().resolve("cgroup.threads");
+            this.ring = new SampleRing(capacity, 2);
+        }
+
+    }
+
+}
@@ -0,0 +1,16 @@
+package net.bc100dev.pfc.cg;
+
+/**
+ * Sent to the {@link ForkRateDetector.Listener}s once a control group forks faster than allowed.
+ *
+ * @param cgroup         The name of the control group
+ * @param growthRate     The growth of {@code pids.current} per second within the window
+ * @param arrivalRate    The new tasks per second within the window
+ * @param current        {@code pids.current} at the time of the event
+ * @param action         What was done to the group
+ * @param applied        Whether the action succeeded (always false for {@link ForkRateDetector.Action#NOTIFY})
+ * @param timestampNanos The time of the tick that crossed the threshold, from {@link System#nanoTime()}
+ */
+public record ForkRateEvent(String cgroup, double growthRate, double arrivalRate, long current,
+                            ForkRateDetector.Action action, boolean applied, long timestampNanos) {
+}
@@ -0,0 +1,273 @@
+package net.bc100dev.pfc.cg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The typed view of the io controller: {@code io.max}, {@code io.weight}, {@code io.latency} and
+ * {@code io.stat}, all per block device. Devices are identified by their major and minor numbers, packed
+ * with {@link CgFileParser#device(int, int)}, or by anything {@link BlockDeviceResolver} resolves.
+ */
+public class IoController extends CgController {
+
+    public IoController(ControlGroup2 cg) {
+        super(cg);
+    }
+
+    @Override
+    public String getName() {
+        return "io";
+    }
+
+    /**
+     * Limits the bandwidth and the operations per second of the group on a device. A limit of
+     * {@link CgFileParser#MAX} (or any negative value) removes it.
+     */
+    public void setMax(int major, int minor, long rbps, long wbps, long riops, long wiops) throws IOException {
+        cg.setValue("io.max", major + ":" + minor +
+                " rbps=" + CgFileParser.format(rbps) +
+                " wbps=" + CgFileParser.format(wbps) +
+                " riops=" + CgFileParser.format(riops) +
+                " wiops=" + CgFileParser.format(wiops));
+    }
+
+    /**
+     * Like {@link #setMax(int, int, long, long, long, long)}, for the disk of a device file, a kernel
+     * name or a path on a mounted file system.
+     */
+    public void setMax(String device, long rbps, long wbps, long riops, long wiops) throws IOException {
+        BlockDevice disk = BlockDeviceResolver.get().resolveDisk(device);
+        setMax(disk.major(), disk.minor(), rbps, wbps, riops, wiops);
+    }
+
+    public void clearMax(int major, int minor) throws IOException {
+        setMax(major, minor, CgFileParser.MAX, CgFileParser.MAX, CgFileParser.MAX, CgFileParser.MAX);
+    }
+
+    /**
+     * @return The default weight of {@code io.weight}, which applies to all devices without their own
+     */
+    public long getWeight() throws IOException {
+        for (String line : cg.getValue("io.weight").split("\n")) {
+            if (line.startsWith("default "))
+                return Long.parseLong(line.substring(8).trim());
+        }
+
+        throw new IOException("io.weight has no default weight");
+    }
+
+    /**
+     * Sets the default weight of the group, from 1 to 10000.
+     */
+    public void setWeight(long weight) throws IOException {
+        checkWeight(weight);
+        cg.setValue("io.weight", "default " + weight);
+    }
+
+    /**
+     * Sets the weight of the group on a single device, from 1 to 10000.
+     */
+    public void setWeight(int major, int minor, long weight) throws IOException {
+        checkWeight(weight);
+        cg.setValue("io.weight", major + ":" + minor + " " + weight);
+    }
+
+    public void setWeight(String device, long weight) throws IOException {
+        BlockDevice disk = BlockDeviceResolver.get().resolveDisk(device);
+        setWeight(disk.major(), disk.minor(), weight);
+    }
+
+    /**
+     * Makes the device use the default weight again.
+     */
+    public void clearWeight(int major, int minor) throws IOException {
+        cg.setValue("io.weight", major + ":" + minor + " default");
+    }
+
+    /**
+     * Sets the latency target of {@code io.latency}: while a sibling group misses its target on the
+     * device, groups with a looser target are throttled. {@link CgFileParser#MAX} removes the target.
+     *
+     * @param targetUsec The target in microseconds
+     */
+    public void setLatency(int major, int minor, long targetUsec) throws IOException {
+        cg.setValue("io.latency", major + ":" + minor + " target=" + CgFileParser.format(targetUsec));
+    }
+
+    public void setLatency(String device, long targetUsec) throws IOException {
+        BlockDevice disk = BlockDeviceResolver.get().resolveDisk(device);
+        setLatency(disk.major(), disk.minor(), targetUsec);
+    }
+
+    public void clearLatency(int major, int minor) throws IOException {
+        setLatency(major, minor, CgFileParser.MAX);
+    }
+
+    private static void checkWeight(long weight) {
+        if (weight < 1 || weight > 10_000)
+            throw new IllegalArgumentException("io.weight must be between 1 and 10000");
+    }
+
+    /**
+     * Reads the per-device limits of {@code io.max} into a reusable {@link Limits}.
+     *
+     * @param dst The object to fill, or null to create a new one
+     * @return {@code dst}, or the new object
+     */
+    public Limits readMax(Limits dst) throws IOException {
+        if (dst == null)
+            dst = new Limits();
+
+        dst.read(cg.readBuffer("io.max"));
+        return dst;
+    }
+
+    /**
+     * Reads the per-device counters of {@code io.stat} into a reusable {@link Stat}. Once the object has
+     * grown to the number of devices, reading does not allocate anymore.
+     *
+     * @param dst The object to fill, or null to create a new one
+     * @return {@code dst}, or the new object
+     */
+    public Stat readStat(Stat dst) throws IOException {
+        if (dst == null)
+            dst = new Stat();
+
+        dst.read(cg.readBuffer("io.stat"));
+        return dst;
+    }
+
+    /**
+     * A table of per-device values of a nested keyed file, stored in flat primitive arrays.
+     */
+    abstract static class DeviceTable {
+
+        private final byte[][] keys;
+        private long[] devices = new long[4];
+        private long[] values;
+        private int count;
+
+        DeviceTable(byte[][] keys) {
+            this.keys = keys;
+            this.values = new long[devices.length * keys.length];
+        }
+
+        void read(ByteBuffer buff) {
+            int lines = CgFileParser.countLines(buff);
+            if (lines > devices.length) {
+                devices = new long[lines];
+                values = new long[lines * keys.length];
+            }
+
+            count = CgFileParser.parseNestedKeyed(buff, keys, devices, values);
+        }
+
+        /**
+         * @return The number of devices
+         */
+        public int size() {
+            return count;
+        }
+
+        public long getDevice(int index) {
+            return devices[index];
+        }
+
+        public int getMajor(int index) {
+            return CgFileParser.major(devices[index]);
+        }
+
+        public int getMinor(int index) {
+            return CgFileParser.minor(devices[index]);
+        }
+
+        /**
+         * @return The index of the device, or -1 if it is not in the table
+         */
+        public int indexOf(int major, int minor) {
+            long device = CgFileParser.device(major, minor);
+
+            for (int i = 0; i < count; i++) {
+                if (devices[i] == device)
+                    return i;
+            }
+
+            return -1;
+        }
+
+        protected long get(int index, int key) {
+            if (index < 0 || index >= count)
+                throw new IndexOutOfBoundsException("Device " + index + " out of " + count);
+
+            return values[index * keys.length + key];
+        }
+
+    }
+
+    /**
+     * The per-device counters of {@code io.stat}.
+     */
+    public static class Stat extends DeviceTable {
+
+        private static final byte[][] KEYS = CgFileParser.keys("rbytes", "wbytes", "rios", "wios", "dbytes", "dios");
+
+        public Stat() {
+            super(KEYS);
+        }
+
+        public long getReadBytes(int index) {
+            return get(index, 0);
+        }
+
+        public long getWriteBytes(int index) {
+            return get(index, 1);
+        }
+
+        public long getReadIos(int index) {
+            return get(index, 2);
+        }
+
+        public long getWriteIos(int index) {
+            return get(index, 3);
+        }
+
+        public long getDiscardBytes(int index) {
+            return get(index, 4);
+        }
+
+        public long getDiscardIos(int index) {
+            return get(index, 5);
+        }
+
+    }
+
+    /**
+     * The per-device limits of {@code io.max}; {@link CgFileParser#MAX} for no limit.
+     */
+    public static class Limits extends DeviceTable {
+
+        private static final byte[][] KEYS = CgFileParser.keys("rbps", "wbps", "riops", "wiops");
+
+        public Limits() {
+            super(KEYS);
+        }
+
+        public long getReadBps(int index) {
+            return get(index, 0);
+        }
+
+        public long getWriteBps(int index) {
+            return get(index, 1);
+        }
+
+        public long getReadIops(int index) {
+            return get(index, 2);
+        }
+
+        public long getWriteIops(int index) {
+            return get(index, 3);
+        }
+
+    }
+
+}
@@ -0,0 +1,426 @@
+package net.bc100dev.pfc.cg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Samples the per-device {@code io.stat} counters of a control group hierarchy and turns them into
+ * rates: bytes and operations per second, read and written, per group and device.
+ * <p>
+ * Like {@code cpu.stat}, {@code io.stat} includes the I/O of all descendants, so a subtree whose root did
+ * not do any I/O since the last sample is not read any further, and its groups are reported with rates
+ * of 0. Directories are only listed again below the groups whose number of descendants changed, and the
+ * counters are parsed into preallocated arrays, which makes a sample of a mostly idle tree every 500 ms
+ * cheap even with thousands of groups.
+ */
+public class IoStatSampler {
+
+    private static final byte[][] STAT_KEYS = CgFileParser.keys("nr_descendants", "nr_dying_descendants");
+
+    /**
+     * Lists the whole tree again after this many samples, even if the descendant counts did not change.
+     */
+    private static final int RESCAN_SAMPLES = 300;
+
+    private static final int READ_BYTES = 0;
+    private static final int WRITE_BYTES = 1;
+    private static final int READ_IOS = 2;
+    private static final int WRITE_IOS = 3;
+    private static final int FIELDS = 4;
+
+    private final String rootName;
+    private final int maxDepth;
+    private final long[] values = new long[2];
+
+    private Node root;
+    private long lastSample;
+    private int samplesSinceScan;
+    private int size;
+    private int reads;
+
+    /**
+     * @param rootName The group to sample, relative to the mount point ("" for the whole hierarchy)
+     * @param maxDepth How deep below the root groups are sampled
+     */
+    public IoStatSampler(String rootName, int maxDepth) {
+        this.rootName = rootName;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Takes a sample. The rates of the first sample of a group are all 0.
+     *
+     * @throws IOException If the root group does not exist
+     */
+    public synchronized void sample() throws IOException {
+        Path rootPath = CgMountResolver.resolve(rootName);
+
+        if (root == null || !root.path.equals(rootPath)) {
+            root = new Node(rootPath, rootName);
+            samplesSinceScan = 0;
+        } else if (++samplesSinceScan >= RESCAN_SAMPLES) {
+            forget(root);
+            samplesSinceScan = 0;
+        }
+
+        reads = 0;
+        if (scan(root, 0)) {
+            size = 0;
+            count(root);
+        }
+
+        long now = System.nanoTime();
+        long elapsed = lastSample == 0 ? 0 : now - lastSample;
+        lastSample = now;
+
+        visit(root, elapsed);
+    }
+
+    /**
+     * @return The number of groups in the sampled tree
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return The number of files read by the last sample
+     */
+    public synchronized int getReads() {
+        return reads;
+    }
+
+    /**
+     * Hands the rates of every group and device of the last sample to the visitor, without allocating.
+     */
+    public synchronized void forEach(Visitor visitor) {
+        if (root != null)
+            forEach(root, visitor);
+    }
+
+    /**
+     * @return The rates of one group per device, or an empty list if it is not sampled
+     */
+    public synchronized List<IoRate> getRates(String cgroup) {
+        List<IoRate> list = new ArrayList<>();
+        Node node = root == null ? null : find(root, cgroup);
+
+        if (node != null) {
+            for (int i = 0; i < node.count; i++)
+                list.add(node.rate(i));
+        }
+
+        return list;
+    }
+
+    /**
+     * @return The rates of all groups and devices that did any I/O in the last sample
+     */
+    public synchronized List<IoRate> getActiveRates() {
+        List<IoRate> list = new ArrayList<>();
+        forEach((cgroup, major, minor, rbps, wbps, rios, wios) -> {
+            if (rbps != 0 || wbps != 0 || rios != 0 || wios != 0)
+                list.add(new IoRate(cgroup, major, minor, rbps, wbps, rios, wios));
+        });
+
+        return list;
+    }
+
+    private void forEach(Node node, Visitor visitor) {
+        for (int i = 0; i < node.count; i++) {
+            int base = i * FIELDS;
+            visitor.accept(node.name, CgFileParser.major(node.devices[i]), CgFileParser.minor(node.devices[i]),
+                    node.rates[base + READ_BYTES], node.rates[base + WRITE_BYTES],
+                    node.rates[base + READ_IOS], node.rates[base + WRITE_IOS]);
+        }
+
+        for (Node child : node.children)
+            forEach(child, visitor);
+    }
+
+    private static Node find(Node node, String cgroup) {
+        if (node.name.equals(cgroup))
+            return node;
+
+        for (Node child : node.children) {
+            if (cgroup.equals(child.name) || cgroup.startsWith(child.name + "/")) {
+                Node found = find(child, cgroup);
+                if (found != null)
+                    return found;
+            }
+        }
+
+        return null;
+    }
+
+    private void visit(Node node, long elapsed) {
+        // without io.stat (like on the root of some kernels), the children have to tell for themselves
+        boolean changed = !node.hasIo || read(node, elapsed);
+
+        for (Node child : node.children) {
+            if (changed)
+                visit(child, elapsed);
+            else
+                idle(child, elapsed);
+        }
+    }
+
+    private void idle(Node node, long elapsed) {
+        // groups that appeared since the last scan still need their first values
+        if (!node.sampled) {
+            visit(node, elapsed);
+            return;
+        }
+
+        Arrays.fill(node.rates, 0);
+
+        for (Node child : node.children)
+            idle(child, elapsed);
+    }
+
+    /**
+     * Reads the counters of a group and updates its rates.
+     *
+     * @return Whether any counter changed since the last sample (or if this is the first one)
+     */
+    private boolean read(Node node, long elapsed) {
+        boolean first = !node.sampled;
+        node.sampled = true;
+
+        IoController.Stat stat = node.stat;
+        try {
+            stat.read(ControlGroup2.HANDLES.read(node.path.resolve("io.stat")));
+            reads++;
+        } catch (IOException ex) {
+            // removed since the last scan; the next sample notices the different descendant count
+            idle(node, 0);
+            return false;
+        }
+
+        int count = stat.size();
+        node.ensureCapacity(count);
+
+        boolean changed = first || count != node.count;
+        double seconds = first ? 0 : elapsed / 1e9;
+
+        for (int i = 0; i < count; i++) {
+            long device = stat.getDevice(i);
+            int base = i * FIELDS;
+
+            // devices keep their line from sample to sample, unless one was added or removed
+            int prev = i < node.count && node.devices[i] == device ? i : node.indexOf(device);
+
+            long rbytes = stat.getReadBytes(i);
+            long wbytes = stat.getWriteBytes(i);
+            long rios = stat.getReadIos(i);
+            long wios = stat.getWriteIos(i);
+
+            if (prev < 0 || seconds <= 0) {
+                node.rates[base + READ_BYTES] = node.rates[base + WRITE_BYTES] = 0;
+                node.rates[base + READ_IOS] = node.rates[base + WRITE_IOS] = 0;
+                changed |= prev < 0;
+            } else {
+                int prevBase = prev * FIELDS;
+                long dr = rbytes - node.counters[prevBase + READ_BYTES];
+                long dw = wbytes - node.counters[prevBase + WRITE_BYTES];
+                long dri = rios - node.counters[prevBase + READ_IOS];
+                long dwi = wios - node.counters[prevBase + WRITE_IOS];
+
+                node.rates[base + READ_BYTES] = dr / seconds;
+                node.rates[base + WRITE_BYTES] = dw / seconds;
+                node.rates[base + READ_IOS] = dri / seconds;
+                node.rates[base + WRITE_IOS] = dwi / seconds;
+                changed |= dr != 0 || dw != 0 || dri != 0 || dwi != 0;
+            }
+
+            node.scratchDevices[i] = device;
+            node.scratch[base + READ_BYTES] = rbytes;
+            node.scratch[base + WRITE_BYTES] = wbytes;
+            node.scratch[base + READ_IOS] = rios;
+            node.scratch[base + WRITE_IOS] = wios;
+        }
+
+        node.swap(count);
+        return changed;
+    }
+
+    /**
+     * Brings the children of a group up to date, but only lists the directories of the subtrees whose
+     * number of descendants changed since the last scan.
+     *
+     * @return Whether anything was listed
+     */
+    private boolean scan(Node node, int depth) {
+        long descendants = readDescendants(node);
+        if (descendants >= 0 && descendants == node.descendants)
+            return false;
+
+        node.descendants = descendants;
+        if (depth >= maxDepth)
+            return false;
+
+        Map<String, Node> known = new HashMap<>();
+        for (Node child : node.children)
+            known.put(child.name, child);
+
+        node.children.clear();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(node.path,
+                entry -> Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS))) {
+            for (Path childPath : stream) {
+                String childName = node.name.isEmpty() ? childPath.getFileName().toString() : node.name + "/" + childPath.getFileName();
+
+                Node child = known.get(childName);
+                if (child == null)
+                    child = new Node(childPath, childName);
+
+                node.children.add(child);
+            }
+        } catch (IOException ignore) {
+            // removed while walking
+        }
+
+        for (Node child : node.children)
+            scan(child, depth + 1);
+
+        return true;
+    }
+
+    private static void forget(Node node) {
+        node.descendants = -1;
+
+        for (Node child : node.children)
+            forget(child);
+    }
+
+    private void count(Node node) {
+        size++;
+
+        for (Node child : node.children)
+            count(child);
+    }
+
+    private long readDescendants(Node node) {
+        try {
+            Path file = node.path.resolve("cgroup.stat");
+            ByteBuffer buff = node == root ? ControlGroup2.HANDLES.read(file) : ControlGroup2.HANDLES.readUnpooled(file);
+            reads++;
+
+            CgFileParser.parseFlatKeyed(buff, STAT_KEYS, values, 0);
+            return values[0] + values[1];
+        } catch (IOException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Receives the rates of one group on one device.
+     */
+    @FunctionalInterface
+    public interface Visitor {
+
+        void accept(String cgroup, int major, int minor, double readBytesSec, double writeBytesSec,
+                    double readIosSec, double writeIosSec);
+
+    }
+
+    /**
+     * The I/O rates of a group on a device.
+     *
+     * @param cgroup        The name of the group
+     * @param major         The major number of the device
+     * @param minor         The minor number of the device
+     * @param readBytesSec  Bytes read per second
+     * @param writeBytesSec Bytes written per second
+     * @param readIosSec    Read operations per second
+     * @param writeIosSec   Write operations per second
+     */
+    public record IoRate(String cgroup, int major, int minor, double readBytesSec, double writeBytesSec,
+                         double readIosSec, double writeIosSec) {
+    }
+
+    private static final class Node {
+
+        private final Path path;
+        private final String name;
+        private final List<Node> children = new ArrayList<>();
+        private final IoController.Stat stat = new IoController.Stat();
+
+        private final boolean hasIo;
+        private boolean sampled;
+        private long descendants = -1;
+
+        private int count;
+        private long[] devices = new long[0];
+        private long[] counters = new long[0];
+        private double[] rates = new double[0];
+        private long[] scratchDevices = new long[0];
+        private long[] scratch = new long[0];
+
+        private Node(Path path, String name) {
+            this.path = path;
+            this.name = name;
+            this.hasIo = Files.exists(path.resolve("io.stat"));
+        }
+
+        private void ensureCapacity(int count) {
+            if (scratchDevices.length >= count)
+                return;
+
+            long[] oldDevices = devices;
+            long[] oldCounters = counters;
+            double[] oldRates = rates;
+
+            devices = new long[count];
+            counters = new long[count * FIELDS];
+            rates = new double[count * FIELDS];
+            scratchDevices = new long[count];
+            scratch = new long[count * FIELDS];
+
+            System.arraycopy(oldDevices, 0, devices, 0, this.count);
+            System.arraycopy(oldCounters, 0, counters, 0, this.count * FIELDS);
+            System.arraycopy(oldRates, 0, rates, 0, Math.min(oldRates.length, rates.length));
+        }
+
+        private int indexOf(long device) {
+            for (int i = 0; i < count; i++) {
+                if (devices[i] == device)
+                    return i;
+            }
+
+            return -1;
+        }
+
+        /**
+         * Makes the counters just read the previous ones of the next sample.
+         */
+        private void swap(int count) {
+            long[] devs = devices;
+            devices = scratchDevices;
+            scratchDevices = devs;
+
+            long[] cnt = counters;
+            counters = scratch;
+            scratch = cnt;
+
+            this.count = count;
+        }
+
+        private IoRate rate(int index) {
+            int base = index * FIELDS;
+            return new IoRate(name, CgFileParser.major(devices[index]), CgFileParser.minor(devices[index]),
+                    rates[base + READ_BYTES], rates[base + WRITE_BYTES], rates[base + READ_IOS], rates[base + WRITE_IOS]);
+        }
+
+    }
+
+}
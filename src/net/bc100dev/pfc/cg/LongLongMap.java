@@ -0,0 +1,172 @@
+package net.bc100dev.pfc.cg;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map from long to long, for keys like PIDs and cgroup IDs that are never 0.
+ * <p>
+ * Keys and values are kept next to each other in a single array, so a reader that races with a writer
+ * (under an optimistic lock) only ever sees one consistent table and cannot run out of its bounds; the
+ * result is garbage then, which the lock validation discards.
+ */
+final class LongLongMap {
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] table;
+    private int size;
+
+    LongLongMap(int expected) {
+        table = new long[2 * capacityFor(expected)];
+    }
+
+    /**
+     * @return The value, or {@code missing} if the key is not there
+     */
+    long get(long key, long missing) {
+        if (key == 0)
+            return missing;
+
+        long[] tab = table;
+        int capacity = tab.length >> 1;
+        int mask = capacity - 1;
+        int slot = hash(key) & mask;
+
+        for (int probes = 0; probes < capacity; probes++) {
+            long k = tab[slot << 1];
+            if (k == key)
+                return tab[(slot << 1) + 1];
+
+            if (k == 0)
+                return missing;
+
+            slot = (slot + 1) & mask;
+        }
+
+        return missing;
+    }
+
+    /**
+     * @return The previous value, or {@code missing} if the key was not there
+     */
+    long put(long key, long value, long missing) {
+        if (key == 0)
+            throw new IllegalArgumentException("0 cannot be a key");
+
+        if (size + 1 > (table.length >> 1) * LOAD_FACTOR)
+            resize(table.length);
+
+        int mask = (table.length >> 1) - 1;
+        int slot = hash(key) & mask;
+
+        while (true) {
+            long k = table[slot << 1];
+            if (k == key) {
+                long previous = table[(slot << 1) + 1];
+                table[(slot << 1) + 1] = value;
+                return previous;
+            }
+
+            if (k == 0) {
+                table[slot << 1] = key;
+                table[(slot << 1) + 1] = value;
+                size++;
+                return missing;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * @return The removed value, or {@code missing} if the key was not there
+     */
+    long remove(long key, long missing) {
+        int mask = (table.length >> 1) - 1;
+        int slot = hash(key) & mask;
+
+        while (true) {
+            long k = table[slot << 1];
+            if (k == 0)
+                return missing;
+
+            if (k == key)
+                break;
+
+            slot = (slot + 1) & mask;
+        }
+
+        long removed = table[(slot << 1) + 1];
+        size--;
+
+        // shift the following entries of the cluster back, so lookups never stop at a hole
+        int hole = slot;
+        int next = (slot + 1) & mask;
+        while (table[next << 1] != 0) {
+            int home = hash(table[next << 1]) & mask;
+
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                table[hole << 1] = table[next << 1];
+                table[(hole << 1) + 1] = table[(next << 1) + 1];
+                hole = next;
+            }
+
+            next = (next + 1) & mask;
+        }
+
+        table[hole << 1] = 0;
+        table[(hole << 1) + 1] = 0;
+        return removed;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        Arrays.fill(table, 0);
+        size = 0;
+    }
+
+    /**
+     * Passes every entry to the visitor, in no particular order.
+     */
+    void forEach(Visitor visitor) {
+        long[] tab = table;
+        for (int i = 0; i < tab.length; i += 2) {
+            if (tab[i] != 0)
+                visitor.visit(tab[i], tab[i + 1]);
+        }
+    }
+
+    private void resize(int length) {
+        long[] old = table;
+        table = new long[length * 2];
+        size = 0;
+
+        for (int i = 0; i < old.length; i += 2) {
+            if (old[i] != 0)
+                put(old[i], old[i + 1], 0);
+        }
+    }
+
+    static int capacityFor(int expected) {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < expected)
+            capacity <<= 1;
+
+        return capacity;
+    }
+
+    static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    interface Visitor {
+
+        void visit(long key, long value);
+
+    }
+
+}
@@ -0,0 +1,143 @@
+package net.bc100dev.pfc.cg;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash set of longs that are never 0, the set counterpart of {@link LongLongMap}.
+ */
+final class LongSet {
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] table;
+    private int size;
+
+    LongSet(int expected) {
+        table = new long[LongLongMap.capacityFor(expected)];
+    }
+
+    boolean contains(long value) {
+        if (value == 0)
+            return false;
+
+        long[] tab = table;
+        int mask = tab.length - 1;
+        int slot = LongLongMap.hash(value) & mask;
+
+        for (int probes = 0; probes < tab.length; probes++) {
+            long v = tab[slot];
+            if (v == value)
+                return true;
+
+            if (v == 0)
+                return false;
+
+            slot = (slot + 1) & mask;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return Whether the value was not in the set yet
+     */
+    boolean add(long value) {
+        if (value == 0)
+            throw new IllegalArgumentException("0 cannot be added");
+
+        if (size + 1 > table.length * LOAD_FACTOR)
+            resize();
+
+        int mask = table.length - 1;
+        int slot = LongLongMap.hash(value) & mask;
+
+        while (true) {
+            long v = table[slot];
+            if (v == value)
+                return false;
+
+            if (v == 0) {
+                table[slot] = value;
+                size++;
+                return true;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * @return Whether the value was in the set
+     */
+    boolean remove(long value) {
+        int mask = table.length - 1;
+        int slot = LongLongMap.hash(value) & mask;
+
+        while (true) {
+            long v = table[slot];
+            if (v == 0)
+                return false;
+
+            if (v == value)
+                break;
+
+            slot = (slot + 1) & mask;
+        }
+
+        size--;
+
+        int hole = slot;
+        int next = (slot + 1) & mask;
+        while (table[next] != 0) {
+            int home = LongLongMap.hash(table[next]) & mask;
+
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                table[hole] = table[next];
+                hole = next;
+            }
+
+            next = (next + 1) & mask;
+        }
+
+        table[hole] = 0;
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        Arrays.fill(table, 0);
+        size = 0;
+    }
+
+    /**
+     * Copies the values into an array, in no particular order.
+     *
+     * @return The number of values copied, at most {@code out.length}
+     */
+    int copyTo(long[] out) {
+        long[] tab = table;
+        int count = 0;
+
+        for (int i = 0; i < tab.length && count < out.length; i++) {
+            if (tab[i] != 0)
+                out[count++] = tab[i];
+        }
+
+        return count;
+    }
+
+    private void resize() {
+        long[] old = table;
+        table = new long[old.length * 2];
+        size = 0;
+
+        for (long v : old) {
+            if (v != 0)
+                add(v);
+        }
+    }
+
+}
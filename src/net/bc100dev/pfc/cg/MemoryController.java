@@ -0,0 +1,234 @@
+package net.bc100dev.pfc.cg;
+
+import java.io.IOException;
+
+/**
+ * The typed view of the memory controller: {@code memory.current}, {@code memory.high}, {@code memory.max},
+ * {@code memory.stat} and {@code memory.events}. All sizes are in bytes.
+ */
+public class MemoryController extends CgController {
+
+    public MemoryController(ControlGroup2 cg) {
+        super(cg);
+    }
+
+    @Override
+    public String getName() {
+        return "memory";
+    }
+
+    public long getCurrent() throws IOException {
+        return readSingle("memory.current");
+    }
+
+    /**
+     * @return The throttling limit, or {@link CgFileParser#MAX} if not set
+     */
+    public long getHigh() throws IOException {
+        return readSingle("memory.high");
+    }
+
+    /**
+     * @param bytes The throttling limit, or {@link CgFileParser#MAX} to remove it
+     */
+    public void setHigh(long bytes) throws IOException {
+        writeSingle("memory.high", bytes);
+    }
+
+    /**
+     * @return The hard limit, or {@link CgFileParser#MAX} if not set
+     */
+    public long getMax() throws IOException {
+        return readSingle("memory.max");
+    }
+
+    /**
+     * @param bytes The hard limit, or {@link CgFileParser#MAX} to remove it
+     */
+    public void setMax(long bytes) throws IOException {
+        writeSingle("memory.max", bytes);
+    }
+
+    public long getLow() throws IOException {
+        return readSingle("memory.low");
+    }
+
+    public void setLow(long bytes) throws IOException {
+        writeSingle("memory.low", bytes);
+    }
+
+    public long getMin() throws IOException {
+        return readSingle("memory.min");
+    }
+
+    public void setMin(long bytes) throws IOException {
+        writeSingle("memory.min", bytes);
+    }
+
+    /**
+     * Asks the kernel to reclaim memory from the group through {@code memory.reclaim}. The write is made
+     * once on a handle of its own and never repeated, since every write reclaims again.
+     *
+     * @throws IOException If the amount could not be reclaimed in full (EAGAIN), among others
+     */
+    public void reclaim(long bytes) throws IOException {
+        writeSingle("memory.reclaim", bytes);
+    }
+
+    /**
+     * Reads {@code memory.stat} into a reusable {@link Stat}, without allocating.
+     *
+     * @param dst The object to fill, or null to create a new one
+     * @return {@code dst}, or the new object
+     */
+    public Stat readStat(Stat dst) throws IOException {
+        if (dst == null)
+            dst = new Stat();
+
+        CgFileParser.parseFlatKeyed(cg.readBuffer("memory.stat"), Stat.KEYS, dst.values, 0);
+        return dst;
+    }
+
+    /**
+     * Reads {@code memory.events} into a reusable {@link Events}, without allocating.
+     *
+     * @param dst The object to fill, or null to create a new one
+     * @return {@code dst}, or the new object
+     */
+    public Events readEvents(Events dst) throws IOException {
+        if (dst == null)
+            dst = new Events();
+
+        CgFileParser.parseFlatKeyed(cg.readBuffer("memory.events"), Events.KEYS, dst.values, 0);
+        return dst;
+    }
+
+    /**
+     * The contents of {@code memory.stat}, in bytes for the memory amounts and as counters for the events.
+     */
+    public static class Stat {
+
+        private static final String[] NAMES = {
+                "anon", "file", "kernel", "kernel_stack", "pagetables", "sock", "shmem",
+                "file_mapped", "file_dirty", "file_writeback", "swapcached", "anon_thp",
+                "active_anon", "inactive_anon", "active_file", "inactive_file", "unevictable",
+                "slab", "slab_reclaimable", "slab_unreclaimable",
+                "workingset_refault_anon", "workingset_refault_file",
+                "workingset_activate_anon", "workingset_activate_file",
+                "pgfault", "pgmajfault", "pgscan", "pgsteal"
+        };
+
+        private static final byte[][] KEYS = CgFileParser.keys(NAMES);
+
+        private final long[] values = new long[KEYS.length];
+
+        /**
+         * @return The value of any of the supported keys, or -1 if the key is not supported
+         */
+        public long get(String key) {
+            for (int i = 0; i < NAMES.length; i++) {
+                if (NAMES[i].equals(key))
+                    return values[i];
+            }
+
+            return -1;
+        }
+
+        public long getAnon() {
+            return values[0];
+        }
+
+        public long getFile() {
+            return values[1];
+        }
+
+        public long getKernel() {
+            return values[2];
+        }
+
+        public long getShmem() {
+            return values[6];
+        }
+
+        public long getFileDirty() {
+            return values[8];
+        }
+
+        public long getActiveAnon() {
+            return values[12];
+        }
+
+        public long getInactiveAnon() {
+            return values[13];
+        }
+
+        public long getActiveFile() {
+            return values[14];
+        }
+
+        public long getInactiveFile() {
+            return values[15];
+        }
+
+        public long getSlab() {
+            return values[17];
+        }
+
+        public long getWorkingsetRefaultAnon() {
+            return values[20];
+        }
+
+        public long getWorkingsetRefaultFile() {
+            return values[21];
+        }
+
+        public long getWorkingsetRefault() {
+            return values[20] + values[21];
+        }
+
+        public long getPgfault() {
+            return values[24];
+        }
+
+        public long getPgmajfault() {
+            return values[25];
+        }
+
+    }
+
+    /**
+     * The counters of {@code memory.events}.
+     */
+    public static class Events {
+
+        private static final byte[][] KEYS = CgFileParser.keys("low", "high", "max", "oom", "oom_kill", "oom_group_kill");
+
+        private final long[] values = new long[KEYS.length];
+
+        public long getLow() {
+            return values[0];
+        }
+
+        public long getHigh() {
+            return values[1];
+        }
+
+        public long getMax() {
+            return values[2];
+        }
+
+        public long getOom() {
+            return values[3];
+        }
+
+        public long getOomKill() {
+            return values[4];
+        }
+
+        public long getOomGroupKill() {
+            return values[5];
+        }
+
+    }
+
+}
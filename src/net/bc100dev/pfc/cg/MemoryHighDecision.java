@@ -0,0 +1,25 @@
+package net.bc100dev.pfc.cg;
+
+/**
+ * A single decision of the {@link MemoryHighTuner} about one control group.
+ *
+ * @param cgroup         The name of the control group
+ * @param action         Whether {@code memory.high} was raised, lowered or kept
+ * @param current        {@code memory.current} at the time of the decision
+ * @param oldHigh        {@code memory.high} before ({@link CgFileParser#MAX} if unlimited)
+ * @param newHigh        {@code memory.high} after
+ * @param pressure       The share of the interval some tasks stalled on memory (0 to 1)
+ * @param refaultRate    Workingset refaults per second
+ * @param applied        Whether the value was written (false on a dry run or if the write failed)
+ * @param timestampNanos The time of the decision, from {@link System#nanoTime()}
+ */
+public record MemoryHighDecision(String cgroup, Action action, long current, long oldHigh, long newHigh,
+                                 double pressure, double refaultRate, boolean applied, long timestampNanos) {
+
+    public enum Action {
+        RAISE,
+        LOWER,
+        HOLD
+    }
+
+}
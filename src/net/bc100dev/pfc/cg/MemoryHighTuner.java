@@ -0,0 +1,299 @@
+package net.bc100dev.pfc.cg;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tunes {@code memory.high} of a set of control groups in a closed loop, from the memory pressure (PSI)
+ * of each group, its workingset refault rate and {@code memory.current}.
+ * <p>
+ * While a group shows (almost) no pressure and few refaults, its limit is probed downwards by a fixed
+ * step, which makes the kernel reclaim memory the group does not really use. As soon as the pressure or
+ * the refaults cross the upper thresholds, the limit is raised by a share of itself, so the group gets out
+ * of trouble faster than it got in: the additive-decrease, multiplicative-increase of AIMD, turned around
+ * so that the safe direction is the fast one. Every step is bounded, and every group has its own minimum
+ * and maximum limit.
+ * <pre>
+ * MemoryHighTuner tuner = new MemoryHighTuner()
+ *         .thresholds(0.01, 0.10)
+ *         .dryRun(true);
+ * tuner.add(cg, 256L &lt;&lt; 20, 4L &lt;&lt; 30);
+ * tuner.start(5000);
+ * </pre>
+ */
+public class MemoryHighTuner {
+
+    private final Map<String, Group> groups = new ConcurrentHashMap<>();
+    private final MemoryHighDecision[] history;
+    private int historyHead = -1;
+    private int historyCount;
+
+    private double pressureLow = 0.01;
+    private double pressureHigh = 0.10;
+    private double refaultLow = 100;
+    private double refaultHigh = 1000;
+    private long decreaseStep = 16L << 20;
+    private double increaseRatio = 0.25;
+    private long maxStep = 512L << 20;
+    private boolean dryRun;
+
+    private ScheduledExecutorService executor;
+
+    public MemoryHighTuner() {
+        this(1024);
+    }
+
+    /**
+     * @param historySize The number of decisions kept, over all groups
+     */
+    public MemoryHighTuner(int historySize) {
+        if (historySize < 1)
+            throw new IllegalArgumentException("History needs to hold at least one decision");
+
+        this.history = new MemoryHighDecision[historySize];
+    }
+
+    /**
+     * @param low  Below this share of stalled time (and the low refault rate), the limit is lowered
+     * @param high From this share of stalled time on, the limit is raised
+     */
+    public synchronized MemoryHighTuner thresholds(double low, double high) {
+        if (low < 0 || high <= low || high > 1)
+            throw new IllegalArgumentException("Thresholds need to be 0 <= low < high <= 1");
+
+        this.pressureLow = low;
+        this.pressureHigh = high;
+        return this;
+    }
+
+    /**
+     * @param low  Below this many refaults per second (and the low pressure), the limit is lowered
+     * @param high From this many refaults per second on, the limit is raised
+     */
+    public synchronized MemoryHighTuner refaultThresholds(double low, double high) {
+        if (low < 0 || high <= low)
+            throw new IllegalArgumentException("Thresholds need to be 0 <= low < high");
+
+        this.refaultLow = low;
+        this.refaultHigh = high;
+        return this;
+    }
+
+    /**
+     * @param decreaseStep  The bytes the limit is lowered by per interval
+     * @param increaseRatio The share of the limit it is raised by per interval
+     * @param maxStep       The most bytes a single raise may add
+     */
+    public synchronized MemoryHighTuner steps(long decreaseStep, double increaseRatio, long maxStep) {
+        if (decreaseStep <= 0 || increaseRatio <= 0 || maxStep < decreaseStep)
+            throw new IllegalArgumentException("Invalid steps");
+
+        this.decreaseStep = decreaseStep;
+        this.increaseRatio = increaseRatio;
+        this.maxStep = maxStep;
+        return this;
+    }
+
+    /**
+     * Only records the decisions instead of writing them. The tuner then continues from the limits it
+     * would have set; once the dry run is turned off, it goes on from the real limits again.
+     */
+    public synchronized MemoryHighTuner dryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+
+        if (!dryRun) {
+            for (Group group : groups.values())
+                group.dryRunHigh = -1;
+        }
+
+        return this;
+    }
+
+    /**
+     * Tunes a group within bounds.
+     *
+     * @param cg       The group, which needs the memory controller
+     * @param minBytes The lowest limit the tuner sets
+     * @param maxBytes The highest limit the tuner sets
+     */
+    public void add(ControlGroup2 cg, long minBytes, long maxBytes) {
+        if (minBytes < 0 || maxBytes < minBytes)
+            throw new IllegalArgumentException("Bounds need to be 0 <= min <= max");
+
+        groups.put(cg.getName(), new Group(cg, minBytes, maxBytes));
+    }
+
+    public void remove(String cgName) {
+        groups.remove(cgName);
+    }
+
+    /**
+     * Runs one round of decisions over all groups, on the calling thread. The first round of a group only
+     * takes the baseline for the rates.
+     */
+    public synchronized void tickOnce() {
+        for (Group group : groups.values()) {
+            MemoryHighDecision decision = decide(group);
+            if (decision != null)
+                record(decision);
+        }
+    }
+
+    public synchronized void start(long intervalMillis) {
+        if (executor != null)
+            throw new IllegalStateException("Tuner is already running");
+
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pfc-memory-tuner");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        executor.scheduleAtFixedRate(this::tickOnce, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        ScheduledExecutorService exec;
+        synchronized (this) {
+            exec = executor;
+            executor = null;
+        }
+
+        if (exec != null)
+            exec.shutdownNow();
+    }
+
+    public synchronized boolean isRunning() {
+        return executor != null;
+    }
+
+    /**
+     * @return The kept decisions, oldest first
+     */
+    public synchronized List<MemoryHighDecision> getHistory() {
+        List<MemoryHighDecision> list = new ArrayList<>(historyCount);
+
+        for (int age = historyCount - 1; age >= 0; age--)
+            list.add(history[(historyHead - age + history.length) % history.length]);
+
+        return list;
+    }
+
+    public List<MemoryHighDecision> getHistory(String cgName) {
+        List<MemoryHighDecision> list = getHistory();
+        list.removeIf(decision -> !decision.cgroup().equals(cgName));
+        return list;
+    }
+
+    private void record(MemoryHighDecision decision) {
+        historyHead = (historyHead + 1) % history.length;
+        history[historyHead] = decision;
+
+        if (historyCount < history.length)
+            historyCount++;
+    }
+
+    private MemoryHighDecision decide(Group group) {
+        long now = System.nanoTime();
+        long current, high, stall, refaults;
+
+        try {
+            CgFileParser.parsePressure(group.cg.readBuffer("memory.pressure"), group.pressure, 0);
+            stall = group.pressure[3];
+
+            refaults = group.memory.readStat(group.stat).getWorkingsetRefault();
+            current = group.memory.getCurrent();
+            high = group.dryRunHigh >= 0 ? group.dryRunHigh : group.memory.getHigh();
+        } catch (IOException ex) {
+            // the group is gone or lost its memory controller, nothing to decide
+            group.lastTick = 0;
+            return null;
+        }
+
+        long elapsed = now - group.lastTick;
+        boolean primed = group.lastTick != 0;
+        long stallDelta = stall - group.lastStall;
+        long refaultDelta = refaults - group.lastRefaults;
+
+        group.lastTick = now;
+        group.lastStall = stall;
+        group.lastRefaults = refaults;
+
+        if (!primed || elapsed <= 0)
+            return null;
+
+        double pressure = Math.min(1, stallDelta * 1000.0 / elapsed);
+        double refaultRate = refaultDelta * 1e9 / elapsed;
+
+        long newHigh;
+        if (pressure >= pressureHigh || refaultRate >= refaultHigh) {
+            // an unlimited group cannot get any more, and a limit set above the bounds from outside is not
+            // lowered when the group asks for more
+            long step = Math.min(maxStep, Math.max(decreaseStep, (long) (high * increaseRatio)));
+            newHigh = high == CgFileParser.MAX || high >= group.maxBytes ? high : clamp(group, high + step);
+        } else if (pressure < pressureLow && refaultRate < refaultLow) {
+            // an unlimited group starts from what it uses
+            long base = high == CgFileParser.MAX ? Math.min(current, group.maxBytes) : high;
+            newHigh = clamp(group, base - decreaseStep);
+        } else
+            newHigh = high == CgFileParser.MAX ? high : clamp(group, high);
+
+        MemoryHighDecision.Action action;
+        if (newHigh > high)
+            action = MemoryHighDecision.Action.RAISE;
+        else if (newHigh < high)
+            action = MemoryHighDecision.Action.LOWER;
+        else
+            action = MemoryHighDecision.Action.HOLD;
+
+        boolean applied = false;
+        if (newHigh != high) {
+            if (dryRun)
+                group.dryRunHigh = newHigh;
+            else {
+                try {
+                    group.memory.setHigh(newHigh);
+                    applied = true;
+                } catch (IOException ignore) {
+                    // recorded as not applied
+                }
+            }
+        }
+
+        return new MemoryHighDecision(group.cg.getName(), action, current, high, newHigh, pressure, refaultRate, applied, now);
+    }
+
+    private static long clamp(Group group, long value) {
+        return Math.max(group.minBytes, Math.min(group.maxBytes, value));
+    }
+
+    private static final class Group {
+
+        private final ControlGroup2 cg;
+        private final MemoryController memory;
+        private final long minBytes;
+        private final long maxBytes;
+        private final long[] pressure = new long[CgFileParser.PRESSURE_FIELDS];
+        private final MemoryController.Stat stat = new MemoryController.Stat();
+
+        private long lastTick;
+        private long lastStall;
+        private long lastRefaults;
+        private long dryRunHigh = -1;
+
+        private Group(ControlGroup2 cg, long minBytes, long maxBytes) {
+            this.cg = cg;
+            this.memory = cg.memory();
+            this.minBytes = minBytes;
+            this.maxBytes = maxBytes;
+        }
+
+    }
+
+}
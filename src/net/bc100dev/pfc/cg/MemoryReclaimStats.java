@@ -0,0 +1,30 @@
+package net.bc100dev.pfc.cg;
+
+/**
+ * What the {@link MemoryReclaimer} reclaimed from one control group, and how much of it came back.
+ *
+ * @param cgroup           The name of the control group
+ * @param reclaimedBytes   The bytes reclaimed through {@code memory.reclaim} so far
+ * @param requests         The number of writes to {@code memory.reclaim}
+ * @param partial          The writes the kernel could not reclaim in full
+ * @param refaults         The workingset refaults (in pages) since the first reclaim
+ * @param lastReclaimNanos The time of the last reclaim, from {@link System#nanoTime()}, or 0
+ */
+public record MemoryReclaimStats(String cgroup, long reclaimedBytes, long requests, long partial,
+                                 long refaults, long lastReclaimNanos) {
+
+    private static final long PAGE_SIZE = 4096;
+
+    public long refaultedBytes() {
+        return refaults * PAGE_SIZE;
+    }
+
+    /**
+     * @return The share of the reclaimed memory that was faulted back in; close to 1 means the memory
+     * was not cold at all
+     */
+    public double refaultRatio() {
+        return reclaimedBytes == 0 ? 0 : (double) refaultedBytes() / reclaimedBytes;
+    }
+
+}
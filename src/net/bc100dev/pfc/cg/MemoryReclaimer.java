@@ -0,0 +1,355 @@
+package net.bc100dev.pfc.cg;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Proactively reclaims cold memory from control groups through {@code memory.reclaim}, so that idle
+ * services give back the page cache (and optionally anonymous memory) they are not using.
+ * <p>
+ * Every period, the {@code memory.stat} of each group is read. A group counts as cold while most of its
+ * memory sits on the inactive lists and it refaults little, and cold groups are asked to give up a share
+ * of their inactive memory, the coldest first. All writes of a period share a budget derived from the
+ * rate limit, and the budget is halved whenever the system-wide memory pressure rises above the limit,
+ * and grows back slowly once it has calmed down. A group under pressure of its own is skipped.
+ * <pre>
+ * MemoryReclaimer reclaimer = new MemoryReclaimer()
+ *         .rateLimit(64L &lt;&lt; 20)
+ *         .coldness(0.5, 50);
+ * reclaimer.add(cg);
+ * reclaimer.start(10_000);
+ * </pre>
+ */
+public class MemoryReclaimer {
+
+    private static final long PAGE_SIZE = 4096;
+    private static final Path SYSTEM_PRESSURE = Path.of("/proc/pressure/memory");
+
+    private final Map<String, Group> groups = new ConcurrentHashMap<>();
+    private final long[] pressure = new long[CgFileParser.PRESSURE_FIELDS];
+
+    private long rateLimit = 32L << 20;
+    private long maxStep = 64L << 20;
+    private double reclaimShare = 0.10;
+    private double minInactiveRatio = 0.5;
+    private double maxRefaultRate = 50;
+    private double pressureLimit = 0.05;
+    private boolean includeAnon;
+
+    private double budgetScale = 1;
+    private long lastTick;
+    private long lastSystemStall = -1;
+
+    private ScheduledExecutorService executor;
+    private volatile long passes;
+    private volatile long totalReclaimed;
+
+    /**
+     * @param bytesPerSecond The most bytes reclaimed per second over all groups
+     */
+    public synchronized MemoryReclaimer rateLimit(long bytesPerSecond) {
+        if (bytesPerSecond <= 0)
+            throw new IllegalArgumentException("Rate limit must be positive");
+
+        this.rateLimit = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * @param share   The share of its inactive memory a cold group is asked to give up per period
+     * @param maxStep The most bytes a single write to {@code memory.reclaim} asks for
+     */
+    public synchronized MemoryReclaimer step(double share, long maxStep) {
+        if (share <= 0 || share > 1 || maxStep < PAGE_SIZE)
+            throw new IllegalArgumentException("Invalid step");
+
+        this.reclaimShare = share;
+        this.maxStep = maxStep;
+        return this;
+    }
+
+    /**
+     * @param minInactiveRatio The share of the reclaimable memory that needs to be inactive
+     * @param maxRefaultRate   The most workingset refaults per second a cold group may have
+     */
+    public synchronized MemoryReclaimer coldness(double minInactiveRatio, double maxRefaultRate) {
+        if (minInactiveRatio < 0 || minInactiveRatio > 1 || maxRefaultRate < 0)
+            throw new IllegalArgumentException("Invalid coldness thresholds");
+
+        this.minInactiveRatio = minInactiveRatio;
+        this.maxRefaultRate = maxRefaultRate;
+        return this;
+    }
+
+    /**
+     * @param limit The share of stalled time (of the system, or of a group) above which reclaim backs off
+     */
+    public synchronized MemoryReclaimer pressureLimit(double limit) {
+        if (limit <= 0 || limit > 1)
+            throw new IllegalArgumentException("Pressure limit needs to be within (0, 1]");
+
+        this.pressureLimit = limit;
+        return this;
+    }
+
+    /**
+     * Also counts the inactive anonymous memory as reclaimable, which only makes sense with swap.
+     */
+    public synchronized MemoryReclaimer includeAnon(boolean includeAnon) {
+        this.includeAnon = includeAnon;
+        return this;
+    }
+
+    /**
+     * @param cg The group, which needs the memory controller
+     */
+    public void add(ControlGroup2 cg) {
+        groups.putIfAbsent(cg.getName(), new Group(cg));
+    }
+
+    public void remove(String cgName) {
+        groups.remove(cgName);
+    }
+
+    public List<String> getGroups() {
+        return new ArrayList<>(new TreeMap<>(groups).keySet());
+    }
+
+    /**
+     * Samples all groups and reclaims from the cold ones once, on the calling thread. The first round
+     * only takes the baseline for the rates.
+     */
+    public synchronized void reclaimOnce() {
+        long now = System.nanoTime();
+        long elapsed = lastTick == 0 ? 0 : now - lastTick;
+        lastTick = now;
+
+        boolean backOff = systemPressure(elapsed) >= pressureLimit;
+        if (backOff)
+            budgetScale = Math.max(1.0 / 64, budgetScale / 2);
+        else
+            budgetScale = Math.min(1, budgetScale + 0.1);
+
+        List<Group> cold = new ArrayList<>();
+        for (Group group : groups.values()) {
+            if (sample(group, now) && !backOff)
+                cold.add(group);
+        }
+
+        passes++;
+        if (elapsed <= 0 || cold.isEmpty())
+            return;
+
+        long budget = (long) (rateLimit * (elapsed / 1e9) * budgetScale);
+
+        // the groups with the most inactive memory first
+        cold.sort((a, b) -> Long.compare(b.inactive, a.inactive));
+
+        for (Group group : cold) {
+            long amount = Math.min(budget, Math.min(maxStep, (long) (group.inactive * reclaimShare)));
+            amount = amount / PAGE_SIZE * PAGE_SIZE;
+
+            // the drop of memory.current may exceed the amount asked for, which can use up the budget
+            if (amount <= 0)
+                break;
+
+            budget -= reclaim(group, amount, now);
+        }
+    }
+
+    public synchronized void start(long intervalMillis) {
+        if (executor != null)
+            throw new IllegalStateException("Reclaimer is already running");
+
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pfc-memory-reclaimer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        executor.scheduleAtFixedRate(this::reclaimOnce, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        ScheduledExecutorService exec;
+        synchronized (this) {
+            exec = executor;
+            executor = null;
+        }
+
+        if (exec != null)
+            exec.shutdownNow();
+    }
+
+    public synchronized boolean isRunning() {
+        return executor != null;
+    }
+
+    public long getPasses() {
+        return passes;
+    }
+
+    public long getTotalReclaimed() {
+        return totalReclaimed;
+    }
+
+    /**
+     * @return The share of the rate limit currently allowed, below 1 after the pressure rose
+     */
+    public synchronized double getBudgetScale() {
+        return budgetScale;
+    }
+
+    /**
+     * @return The statistics of every group, by name
+     */
+    public synchronized Map<String, MemoryReclaimStats> getStats() {
+        Map<String, MemoryReclaimStats> map = new TreeMap<>();
+        for (Group group : groups.values())
+            map.put(group.cg.getName(), group.stats());
+
+        return map;
+    }
+
+    /**
+     * @return The share of the last interval some tasks of the system stalled on memory, or 0 if unknown
+     */
+    private double systemPressure(long elapsed) {
+        long stall;
+        try {
+            CgFileParser.parsePressure(ControlGroup2.HANDLES.read(SYSTEM_PRESSURE), pressure, 0);
+            stall = pressure[3];
+        } catch (IOException ex) {
+            // no PSI on this kernel, reclaim without backing off
+            return 0;
+        }
+
+        long delta = stall - lastSystemStall;
+        boolean primed = lastSystemStall >= 0;
+        lastSystemStall = stall;
+
+        return primed && elapsed > 0 ? delta * 1000.0 / elapsed : 0;
+    }
+
+    /**
+     * Reads the statistics of a group and decides whether it is cold.
+     */
+    private boolean sample(Group group, long now) {
+        long refaults, stall;
+        try {
+            group.memory.readStat(group.stat);
+            refaults = group.stat.getWorkingsetRefault();
+
+            CgFileParser.parsePressure(group.cg.readBuffer("memory.pressure"), group.pressure, 0);
+            stall = group.pressure[3];
+        } catch (IOException ex) {
+            // the group is gone or lost its memory controller
+            group.lastTick = 0;
+            return false;
+        }
+
+        long elapsed = now - group.lastTick;
+        boolean primed = group.lastTick != 0;
+        long refaultDelta = refaults - group.lastRefaults;
+        long stallDelta = stall - group.lastStall;
+
+        group.lastTick = now;
+        group.lastRefaults = refaults;
+        group.lastStall = stall;
+
+        long active = group.stat.getActiveFile();
+        long inactive = group.stat.getInactiveFile();
+        if (includeAnon) {
+            active += group.stat.getActiveAnon();
+            inactive += group.stat.getInactiveAnon();
+        }
+
+        group.inactive = inactive;
+
+        if (!primed || elapsed <= 0)
+            return false;
+
+        if (group.requests > 0)
+            group.refaultsAfter += refaultDelta;
+
+        double refaultRate = refaultDelta * 1e9 / elapsed;
+        double groupPressure = stallDelta * 1000.0 / elapsed;
+        double inactiveRatio = active + inactive == 0 ? 0 : (double) inactive / (active + inactive);
+
+        return inactive >= PAGE_SIZE && inactiveRatio >= minInactiveRatio
+                && refaultRate <= maxRefaultRate && groupPressure < pressureLimit;
+    }
+
+    /**
+     * @return The bytes reclaimed, as far as they are known
+     */
+    private long reclaim(Group group, long amount, long now) {
+        long before;
+        try {
+            before = group.memory.getCurrent();
+        } catch (IOException ex) {
+            return 0;
+        }
+
+        try {
+            group.memory.reclaim(amount);
+        } catch (IOException ex) {
+            // the kernel reclaimed less than asked for (or nothing, if the group is gone)
+            group.partial++;
+        }
+
+        // what actually left the group; the kernel may reclaim more than asked for, and the group may have
+        // grown again in the meantime, which makes this a lower bound
+        long reclaimed;
+        try {
+            reclaimed = Math.max(0, before - group.memory.getCurrent());
+        } catch (IOException ignore) {
+            reclaimed = 0;
+        }
+
+        group.requests++;
+        group.reclaimed += reclaimed;
+        group.lastReclaim = now;
+        totalReclaimed += reclaimed;
+
+        return reclaimed;
+    }
+
+    private static final class Group {
+
+        private final ControlGroup2 cg;
+        private final MemoryController memory;
+        private final MemoryController.Stat stat = new MemoryController.Stat();
+        private final long[] pressure = new long[CgFileParser.PRESSURE_FIELDS];
+
+        private long lastTick;
+        private long lastRefaults;
+        private long lastStall;
+        private long inactive;
+
+        private long reclaimed;
+        private long requests;
+        private long partial;
+        private long refaultsAfter;
+        private long lastReclaim;
+
+        private Group(ControlGroup2 cg) {
+            this.cg = cg;
+            this.memory = cg.memory();
+        }
+
+        private MemoryReclaimStats stats() {
+            return new MemoryReclaimStats(cg.getName(), reclaimed, requests, partial, refaultsAfter, lastReclaim);
+        }
+
+    }
+
+}
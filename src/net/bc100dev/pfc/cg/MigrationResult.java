@@ -0,0 +1,93 @@
+package net.bc100dev.pfc.cg;
+
+/**
+ * The outcome of a bulk process migration into a control group. The status of every PID is kept in a
+ * primitive array, at the same index as the PID in the array that was passed to the migration.
+ */
+public class MigrationResult {
+
+    public static final byte MOVED = 0;
+    public static final byte EXITED = 1;
+    public static final byte DENIED = 2;
+    public static final byte FAILED = 3;
+
+    private final long[] pids;
+    private final byte[] status;
+    private final long elapsedNanos;
+
+    MigrationResult(long[] pids, byte[] status, long elapsedNanos) {
+        this.pids = pids;
+        this.status = status;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public int size() {
+        return pids.length;
+    }
+
+    public long getPid(int index) {
+        return pids[index];
+    }
+
+    /**
+     * @param index The index of the PID in the migrated array
+     * @return One of {@link #MOVED}, {@link #EXITED}, {@link #DENIED} or {@link #FAILED}
+     */
+    public byte getStatus(int index) {
+        return status[index];
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public int count(byte state) {
+        int count = 0;
+
+        for (byte s : status) {
+            if (s == state)
+                count++;
+        }
+
+        return count;
+    }
+
+    public boolean allMoved() {
+        return count(MOVED) == pids.length;
+    }
+
+    public long[] getMoved() {
+        return collect(MOVED);
+    }
+
+    public long[] getExited() {
+        return collect(EXITED);
+    }
+
+    public long[] getDenied() {
+        return collect(DENIED);
+    }
+
+    public long[] getFailed() {
+        return collect(FAILED);
+    }
+
+    private long[] collect(byte state) {
+        long[] arr = new long[count(state)];
+        int n = 0;
+
+        for (int i = 0; i < pids.length; i++) {
+            if (status[i] == state)
+                arr[n++] = pids[i];
+        }
+
+        return arr;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("moved=%d exited=%d denied=%d failed=%d (%.3f ms)",
+                count(MOVED), count(EXITED), count(DENIED), count(FAILED), elapsedNanos / 1_000_000.0);
+    }
+
+}
@@ -0,0 +1,202 @@
+package net.bc100dev.pfc.cg;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The NUMA nodes of the machine with their CPUs, and the cores (hyperthread siblings) of every CPU, read
+ * from {@code /sys/devices/system/node} and {@code /sys/devices/system/cpu}. The topology does not change
+ * while the system runs (apart from CPU hotplug), so it is only read once and cached.
+ * <p>
+ * Kernels without NUMA support have no node directory; all online CPUs then belong to node 0.
+ */
+public class NumaTopology {
+
+    public static final Path SYSTEM_ROOT = Path.of("/sys/devices/system");
+
+    private static NumaTopology instance;
+
+    private final List<NumaNode> nodes;
+    private final BitSet onlineCpus;
+
+    private NumaTopology(List<NumaNode> nodes, BitSet onlineCpus) {
+        this.nodes = Collections.unmodifiableList(nodes);
+        this.onlineCpus = onlineCpus;
+    }
+
+    /**
+     * @return The cached topology of this machine, read on the first call
+     * @throws IOException If the CPUs could not be read
+     */
+    public static synchronized NumaTopology get() throws IOException {
+        if (instance == null)
+            instance = read(SYSTEM_ROOT);
+
+        return instance;
+    }
+
+    /**
+     * Drops the cached topology, after CPUs were hot-plugged.
+     */
+    public static synchronized void invalidate() {
+        instance = null;
+    }
+
+    /**
+     * Reads the topology below a sysfs root other than {@link #SYSTEM_ROOT}, without caching it.
+     *
+     * @param root The directory containing the {@code node} and {@code cpu} directories
+     */
+    public static NumaTopology read(Path root) throws IOException {
+        Path cpuDir = root.resolve("cpu");
+        BitSet online = parseCpuList(Files.readString(cpuDir.resolve("online")));
+
+        Map<Integer, BitSet> nodeCpus = new LinkedHashMap<>();
+        Path nodeDir = root.resolve("node");
+        Path nodesOnline = nodeDir.resolve("online");
+
+        if (Files.exists(nodesOnline)) {
+            BitSet ids = parseCpuList(Files.readString(nodesOnline));
+
+            for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+                BitSet cpus = parseCpuList(Files.readString(nodeDir.resolve("node" + id).resolve("cpulist")));
+                cpus.and(online);
+                nodeCpus.put(id, cpus);
+            }
+        } else
+            nodeCpus.put(0, (BitSet) online.clone());
+
+        List<NumaNode> nodes = new ArrayList<>(nodeCpus.size());
+        for (Map.Entry<Integer, BitSet> entry : nodeCpus.entrySet()) {
+            BitSet cpus = entry.getValue();
+            BitSet assigned = new BitSet();
+            List<BitSet> cores = new ArrayList<>();
+
+            for (int cpu = cpus.nextSetBit(0); cpu >= 0; cpu = cpus.nextSetBit(cpu + 1)) {
+                if (assigned.get(cpu))
+                    continue;
+
+                BitSet core = readSiblings(cpuDir, cpu);
+                core.and(cpus);
+                core.set(cpu);
+
+                assigned.or(core);
+                cores.add(core);
+            }
+
+            nodes.add(new NumaNode(entry.getKey(), cpus, Collections.unmodifiableList(cores)));
+        }
+
+        return new NumaTopology(nodes, online);
+    }
+
+    public List<NumaNode> getNodes() {
+        return nodes;
+    }
+
+    public NumaNode getNode(int id) {
+        for (NumaNode node : nodes) {
+            if (node.id() == id)
+                return node;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return The node a CPU belongs to, or null if the CPU is offline
+     */
+    public NumaNode nodeOf(int cpu) {
+        for (NumaNode node : nodes) {
+            if (node.cpus().get(cpu))
+                return node;
+        }
+
+        return null;
+    }
+
+    public BitSet getOnlineCpus() {
+        return (BitSet) onlineCpus.clone();
+    }
+
+    public int getCpuCount() {
+        return onlineCpus.cardinality();
+    }
+
+    private static BitSet readSiblings(Path cpuDir, int cpu) {
+        try {
+            return parseCpuList(Files.readString(cpuDir.resolve("cpu" + cpu).resolve("topology").resolve("thread_siblings_list")));
+        } catch (IOException ex) {
+            // no topology information, the CPU is a core on its own
+            return new BitSet();
+        }
+    }
+
+    /**
+     * Parses a CPU (or node) list in the kernel's format, like {@code 0-3,8-11,16}.
+     */
+    public static BitSet parseCpuList(String list) {
+        BitSet set = new BitSet();
+        String trimmed = list.trim();
+        if (trimmed.isEmpty())
+            return set;
+
+        for (String range : trimmed.split(",")) {
+            int dash = range.indexOf('-');
+
+            try {
+                if (dash == -1)
+                    set.set(Integer.parseInt(range.trim()));
+                else
+                    set.set(Integer.parseInt(range.substring(0, dash).trim()), Integer.parseInt(range.substring(dash + 1).trim()) + 1);
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException(String.format("Invalid CPU list \"%s\"", list));
+            }
+        }
+
+        return set;
+    }
+
+    /**
+     * Formats a set of CPUs (or nodes) in the kernel's list format, with consecutive ones as ranges.
+     */
+    public static String formatCpuList(BitSet set) {
+        StringBuilder str = new StringBuilder();
+
+        for (int start = set.nextSetBit(0); start >= 0; ) {
+            int end = set.nextClearBit(start) - 1;
+
+            if (!str.isEmpty())
+                str.append(',');
+
+            str.append(start);
+            if (end > start)
+                str.append('-').append(end);
+
+            start = set.nextSetBit(end + 1);
+        }
+
+        return str.toString();
+    }
+
+    /**
+     * @param id    The node ID
+     * @param cpus  The online CPUs of the node
+     * @param cores The CPUs of the node grouped by physical core, in the order of their first CPU
+     */
+    public record NumaNode(int id, BitSet cpus, List<BitSet> cores) {
+
+        public int cpuCount() {
+            return cpus.cardinality();
+        }
+
+    }
+
+}
@@ -0,0 +1,56 @@
+package net.bc100dev.pfc.cg;
+
+import java.io.IOException;
+
+/**
+ * The typed view of the pids controller: {@code pids.current}, {@code pids.max} and {@code pids.events}.
+ */
+public class PidsController extends CgController {
+
+    private static final byte[][] EVENTS_KEYS = CgFileParser.keys("max");
+
+    public PidsController(ControlGroup2 cg) {
+        super(cg);
+    }
+
+    @Override
+    public String getName() {
+        return "pids";
+    }
+
+    public long getCurrent() throws IOException {
+        return readSingle("pids.current");
+    }
+
+    /**
+     * @return The highest {@code pids.current} the group ever had (kernel 6.1 and later)
+     */
+    public long getPeak() throws IOException {
+        return readSingle("pids.peak");
+    }
+
+    /**
+     * @return The limit, or {@link CgFileParser#MAX} if not set
+     */
+    public long getMax() throws IOException {
+        return readSingle("pids.max");
+    }
+
+    /**
+     * @param max The highest number of tasks, or {@link CgFileParser#MAX} to remove the limit
+     */
+    public void setMax(long max) throws IOException {
+        writeSingle("pids.max", max);
+    }
+
+    /**
+     * @return How often a fork or clone was refused because of {@code pids.max}
+     */
+    public long getMaxEvents() throws IOException {
+        long[] values = new long[1];
+        CgFileParser.parseFlatKeyed(cg.readBuffer("pids.events"), EVENTS_KEYS, values, 0);
+
+        return values[0];
+    }
+
+}
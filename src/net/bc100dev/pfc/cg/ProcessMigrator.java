@@ -0,0 +1,146 @@
+package net.bc100dev.pfc.cg;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Moves processes into a control group by writing to its {@code cgroup.procs} file. The kernel only
+ * accepts a single PID per write(2), so every PID gets its own positional write through one descriptor
+ * that is shared by all worker threads.
+ */
+class ProcessMigrator {
+
+    /**
+     * Batches smaller than this are not worth handing to another thread.
+     */
+    private static final int MIN_PIDS_PER_THREAD = 1024;
+
+    static MigrationResult migrate(Path procsFile, long[] pids, int threads) throws IOException {
+        long start = System.nanoTime();
+        byte[] status = new byte[pids.length];
+
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(procsFile, StandardOpenOption.WRITE);
+        } catch (NoSuchFileException ex) {
+            throw new FileNotFoundException("cgroups failed to initialize");
+        } catch (AccessDeniedException ex) {
+            throw new PermissionDeniedException("cannot write to a protected file as normal user");
+        }
+
+        try (channel) {
+            int workers = Math.max(1, Math.min(threads, pids.length / MIN_PIDS_PER_THREAD));
+            if (workers == 1)
+                migrateRange(channel, pids, status, 0, pids.length);
+            else
+                migrateParallel(channel, pids, status, workers);
+        }
+
+        return new MigrationResult(pids, status, System.nanoTime() - start);
+    }
+
+    private static void migrateParallel(FileChannel channel, long[] pids, byte[] status, int workers) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+
+        try {
+            List<Future<?>> futures = new ArrayList<>(workers);
+            int chunk = (pids.length + workers - 1) / workers;
+
+            for (int from = 0; from < pids.length; from += chunk) {
+                int begin = from;
+                int end = Math.min(pids.length, from + chunk);
+
+                futures.add(executor.submit(() -> {
+                    migrateRange(channel, pids, status, begin, end);
+                    return null;
+                }));
+            }
+
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Process migration interrupted", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException ioEx)
+                throw ioEx;
+
+            throw new IOException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void migrateRange(FileChannel channel, long[] pids, byte[] status, int from, int to) throws IOException {
+        ByteBuffer buff = ByteBuffer.allocateDirect(24);
+
+        for (int i = from; i < to; i++) {
+            buff.clear();
+            putDecimal(buff, pids[i]);
+            buff.flip();
+
+            try {
+                channel.write(buff, 0);
+                status[i] = MigrationResult.MOVED;
+            } catch (IOException ex) {
+                status[i] = classify(ex);
+
+                // a closed descriptor means the whole batch is lost, not just this PID
+                if (!channel.isOpen())
+                    throw ex;
+            }
+        }
+    }
+
+    /**
+     * Maps the errno of a rejected write to a migration status. ESRCH is raised for PIDs that are gone,
+     * EACCES/EPERM when the caller may not move that process (or into that group).
+     */
+    private static byte classify(IOException ex) {
+        String msg = ex.getMessage();
+        if (msg == null)
+            return MigrationResult.FAILED;
+
+        if (msg.contains("No such process"))
+            return MigrationResult.EXITED;
+
+        if (msg.contains("Permission denied") || msg.contains("Operation not permitted"))
+            return MigrationResult.DENIED;
+
+        return MigrationResult.FAILED;
+    }
+
+    static void putDecimal(ByteBuffer buff, long value) {
+        if (value < 0) {
+            buff.put((byte) '-');
+            value = -value;
+        }
+
+        int start = buff.position();
+        do {
+            buff.put((byte) ('0' + (value % 10)));
+            value /= 10;
+        } while (value != 0);
+
+        // digits were written in reverse order
+        int end = buff.position() - 1;
+        while (start < end) {
+            byte tmp = buff.get(start);
+            buff.put(start++, buff.get(end));
+            buff.put(end--, tmp);
+        }
+    }
+
+}
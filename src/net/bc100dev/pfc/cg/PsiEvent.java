@@ -0,0 +1,17 @@
+package net.bc100dev.pfc.cg;
+
+/**
+ * Sent to the {@link PsiMonitor.Listener}s once a {@link PsiTrigger} threshold has been crossed.
+ *
+ * @param source         The name of the control group, or {@link PsiMonitor#SYSTEM} for the system-wide files
+ * @param resource       The resource under pressure
+ * @param trigger        The trigger that fired
+ * @param stallUsec      The stall time that accumulated within the trigger window
+ * @param avg10          The 10s average of the stall type, in percent
+ * @param avg60          The 60s average of the stall type, in percent
+ * @param avg300         The 300s average of the stall type, in percent
+ * @param timestampNanos The time of the sample that crossed the threshold, from {@link System#nanoTime()}
+ */
+public record PsiEvent(String source, PsiMonitor.Resource resource, PsiTrigger trigger, long stallUsec,
+                       double avg10, double avg60, double avg300, long timestampNanos) {
+}
@@ -0,0 +1,358 @@
+package net.bc100dev.pfc.cg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches pressure stall information (PSI) of control groups and of the whole system, and notifies
+ * listeners once a {@link PsiTrigger} threshold is crossed.
+ * <p>
+ * All pressure files are watched by a single thread. The files are read through the shared handle pool
+ * and parsed without allocating, and every trigger keeps a preallocated ring of the stall totals that
+ * covers its window. A trigger fires when the stall time accumulated within the window reaches the
+ * threshold, and, like a kernel trigger, fires at most once per window.
+ * <p>
+ * Each file is read at its own pace. Without pressure, it is read every tenth of the shortest window of
+ * its triggers, the granularity the kernel polls its own triggers at; once the stall within a window
+ * reaches a quarter of a threshold, it is read at the poll interval until the pressure goes away. Idle
+ * groups therefore cost a read every 50ms to 1s, depending on the windows, and only the groups under
+ * pressure are read at the fast pace.
+ */
+public class PsiMonitor {
+
+    public static final String SYSTEM = "<system>";
+
+    public static final long DEFAULT_POLL_MILLIS = 10;
+
+    /**
+     * Files are read at this fraction of their shortest trigger window while there is no pressure.
+     */
+    private static final int IDLE_READS_PER_WINDOW = 10;
+
+    private static final Path SYSTEM_PRESSURE = Path.of("/proc/pressure");
+
+    private final long pollMillis;
+    private final long pollNanos;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Map<Path, Source> sources = new ConcurrentHashMap<>();
+    private volatile Source[] sourceArray = new Source[0];
+
+    private ScheduledExecutorService executor;
+
+    public PsiMonitor() {
+        this(DEFAULT_POLL_MILLIS);
+    }
+
+    /**
+     * @param pollMillis How often a pressure file is read while its pressure approaches a threshold; this
+     *                   bounds the notification latency
+     */
+    public PsiMonitor(long pollMillis) {
+        if (pollMillis <= 0)
+            throw new IllegalArgumentException("Poll interval must be positive");
+
+        this.pollMillis = pollMillis;
+        this.pollNanos = pollMillis * 1_000_000;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Watches the pressure file of a resource within a control group.
+     */
+    public Registration register(ControlGroup2 cg, Resource resource, PsiTrigger trigger) {
+        return register(cg.getPath().resolve(resource.getFile()), cg.getName(), resource, trigger);
+    }
+
+    /**
+     * Watches the system-wide pressure file of a resource, under {@code /proc/pressure}.
+     */
+    public Registration registerSystem(Resource resource, PsiTrigger trigger) {
+        return register(SYSTEM_PRESSURE.resolve(resource.getSystemFile()), SYSTEM, resource, trigger);
+    }
+
+    /**
+     * Reads all watched pressure files once and fires the triggers that crossed their threshold.
+     */
+    public synchronized void pollOnce() {
+        for (Source source : sourceArray)
+            poll(source);
+    }
+
+    /**
+     * Reads the pressure files that are due.
+     */
+    private synchronized void pollDue() {
+        long now = System.nanoTime();
+
+        for (Source source : sourceArray) {
+            if (now - source.nextPoll >= 0)
+                poll(source);
+        }
+    }
+
+    public synchronized void start() {
+        if (executor != null)
+            throw new IllegalStateException("PSI monitor is already running");
+
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pfc-psi-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // a tick without due files reads nothing
+        executor.scheduleAtFixedRate(this::pollDue, 0, pollMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        ScheduledExecutorService exec;
+        synchronized (this) {
+            exec = executor;
+            executor = null;
+        }
+
+        if (exec != null)
+            exec.shutdownNow();
+    }
+
+    public synchronized boolean isRunning() {
+        return executor != null;
+    }
+
+    private Registration register(Path file, String name, Resource resource, PsiTrigger trigger) {
+        synchronized (sources) {
+            Source source = sources.computeIfAbsent(file, f -> new Source(f, name, resource));
+            Registration registration = new Registration(source, trigger, pollMillis);
+
+            Registration[] regs = Arrays.copyOf(source.registrations, source.registrations.length + 1);
+            regs[regs.length - 1] = registration;
+            source.registrations = regs;
+            source.updatePeriod(pollNanos);
+
+            sourceArray = sources.values().toArray(new Source[0]);
+            return registration;
+        }
+    }
+
+    private void unregister(Registration registration) {
+        synchronized (sources) {
+            Source source = registration.source;
+            Registration[] regs = source.registrations;
+
+            int n = 0;
+            Registration[] remaining = new Registration[regs.length];
+            for (Registration reg : regs) {
+                if (reg != registration)
+                    remaining[n++] = reg;
+            }
+
+            source.registrations = Arrays.copyOf(remaining, n);
+            source.updatePeriod(pollNanos);
+            if (n == 0)
+                sources.remove(source.file);
+
+            sourceArray = sources.values().toArray(new Source[0]);
+        }
+    }
+
+    private void poll(Source source) {
+        long now;
+
+        try {
+            ByteBuffer buff = ControlGroup2.HANDLES.read(source.file);
+            now = System.nanoTime();
+
+            CgFileParser.parsePressure(buff, source.values, 0);
+        } catch (IOException ex) {
+            // the group is gone, or PSI is disabled; keep the triggers, there is nothing to report
+            source.nextPoll = System.nanoTime() + source.periodNanos;
+            return;
+        }
+
+        boolean building = false;
+        for (Registration reg : source.registrations) {
+            int base = reg.trigger.getType() == StallType.SOME ? 0 : 4;
+            long stall = reg.record(now, source.values[base + 3]);
+
+            if (stall * 4 >= reg.trigger.getStallUsec())
+                building = true;
+
+            if (stall < reg.trigger.getStallUsec())
+                continue;
+
+            if (reg.lastEvent != 0 && now - reg.lastEvent < reg.windowNanos)
+                continue;
+
+            reg.lastEvent = now;
+
+            PsiEvent event = new PsiEvent(source.name, source.resource, reg.trigger, stall,
+                    source.values[base] / 100.0, source.values[base + 1] / 100.0, source.values[base + 2] / 100.0, now);
+
+            for (Listener listener : listeners) {
+                try {
+                    listener.onPressure(event);
+                } catch (RuntimeException ex) {
+                    // a broken listener must not end the scheduled polls, and with them all monitoring
+                    Thread thread = Thread.currentThread();
+                    thread.getUncaughtExceptionHandler().uncaughtException(thread, ex);
+                }
+            }
+        }
+
+        source.nextPoll = now + (building ? pollNanos : source.periodNanos);
+    }
+
+    public enum Resource {
+
+        CPU("cpu.pressure", "cpu"),
+        MEMORY("memory.pressure", "memory"),
+        IO("io.pressure", "io");
+
+        private final String file;
+        private final String systemFile;
+
+        Resource(String file, String systemFile) {
+            this.file = file;
+            this.systemFile = systemFile;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public String getSystemFile() {
+            return systemFile;
+        }
+
+    }
+
+    public enum StallType {
+        SOME,
+        FULL
+    }
+
+    public interface Listener {
+
+        void onPressure(PsiEvent event);
+
+    }
+
+    private static final class Source {
+
+        private final Path file;
+        private final String name;
+        private final Resource resource;
+        private final long[] values = new long[CgFileParser.PRESSURE_FIELDS];
+        private volatile Registration[] registrations = new Registration[0];
+        private volatile long periodNanos;
+        private volatile long nextPoll = System.nanoTime();
+
+        private Source(Path file, String name, Resource resource) {
+            this.file = file;
+            this.name = name;
+            this.resource = resource;
+        }
+
+        /**
+         * Sets the idle read period to a tenth of the shortest window of the triggers.
+         */
+        private void updatePeriod(long pollNanos) {
+            long window = Long.MAX_VALUE;
+            for (Registration reg : registrations)
+                window = Math.min(window, reg.windowNanos);
+
+            periodNanos = Math.max(pollNanos, window / IDLE_READS_PER_WINDOW);
+            nextPoll = System.nanoTime();
+        }
+
+    }
+
+    /**
+     * A registered trigger. Its ring of (timestamp, stall total) samples is sized to span the trigger window
+     * at the fast read pace; at the idle pace, the window is covered to within a tenth.
+     */
+    public final class Registration {
+
+        private final Source source;
+        private final PsiTrigger trigger;
+        private final long windowNanos;
+        private final long[] timestamps;
+        private final long[] totals;
+
+        private int head = -1;
+        private int count;
+        private long lastEvent;
+
+        private Registration(Source source, PsiTrigger trigger, long pollMillis) {
+            this.source = source;
+            this.trigger = trigger;
+            this.windowNanos = trigger.getWindowUsec() * 1000L;
+
+            int capacity = (int) (trigger.getWindowUsec() / (pollMillis * 1000L)) + 2;
+            this.timestamps = new long[capacity];
+            this.totals = new long[capacity];
+        }
+
+        public PsiTrigger getTrigger() {
+            return trigger;
+        }
+
+        public String getSource() {
+            return source.name;
+        }
+
+        public Resource getResource() {
+            return source.resource;
+        }
+
+        public void cancel() {
+            unregister(this);
+        }
+
+        /**
+         * Records a stall total and returns the stall time accumulated since the start of the window.
+         */
+        private long record(long now, long total) {
+            int capacity = timestamps.length;
+            head = (head + 1) % capacity;
+            timestamps[head] = now;
+            totals[head] = total;
+
+            if (count < capacity)
+                count++;
+
+            // the newest sample at or before the start of the window, or the oldest one we have
+            long windowStart = now - windowNanos;
+            int base = (head - count + 1 + capacity) % capacity;
+
+            for (int age = 1; age < count; age++) {
+                int slot = (head - age + capacity) % capacity;
+
+                if (timestamps[slot] <= windowStart) {
+                    base = slot;
+                    break;
+                }
+            }
+
+            return total - totals[base];
+        }
+
+    }
+
+}
@@ -0,0 +1,69 @@
+package net.bc100dev.pfc.cg;
+
+/**
+ * A pressure threshold in the kernel's PSI trigger syntax: the stall time (in microseconds) of "some" or
+ * "full" tasks that has to accumulate within a time window (in microseconds), e.g. {@code some 150000 1000000}
+ * for 150ms of partial stall within 1s.
+ */
+public class PsiTrigger {
+
+    /**
+     * The kernel accepts trigger windows from 500ms to 10s.
+     */
+    public static final long MIN_WINDOW_USEC = 500_000;
+    public static final long MAX_WINDOW_USEC = 10_000_000;
+
+    private final PsiMonitor.StallType type;
+    private final long stallUsec;
+    private final long windowUsec;
+
+    public PsiTrigger(PsiMonitor.StallType type, long stallUsec, long windowUsec) {
+        if (type == null)
+            throw new NullPointerException("Stall type is null");
+
+        if (windowUsec < MIN_WINDOW_USEC || windowUsec > MAX_WINDOW_USEC)
+            throw new IllegalArgumentException("Trigger window must be between 500ms and 10s");
+
+        if (stallUsec <= 0 || stallUsec > windowUsec)
+            throw new IllegalArgumentException("Trigger stall time must be within the window");
+
+        this.type = type;
+        this.stallUsec = stallUsec;
+        this.windowUsec = windowUsec;
+    }
+
+    /**
+     * Parses a trigger like {@code some 150000 1000000}.
+     */
+    public static PsiTrigger parse(String trigger) {
+        String[] parts = trigger.trim().split("\\s+");
+        if (parts.length != 3)
+            throw new IllegalArgumentException(String.format("Invalid PSI trigger \"%s\" (expected <some|full> <stall us> <window us>)", trigger));
+
+        PsiMonitor.StallType type = switch (parts[0]) {
+            case "some" -> PsiMonitor.StallType.SOME;
+            case "full" -> PsiMonitor.StallType.FULL;
+            default -> throw new IllegalArgumentException(String.format("Invalid PSI stall type \"%s\"", parts[0]));
+        };
+
+        return new PsiTrigger(type, Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+    }
+
+    public PsiMonitor.StallType getType() {
+        return type;
+    }
+
+    public long getStallUsec() {
+        return stallUsec;
+    }
+
+    public long getWindowUsec() {
+        return windowUsec;
+    }
+
+    @Override
+    public String toString() {
+        return (type == PsiMonitor.StallType.SOME ? "some " : "full ") + stallUsec + " " + windowUsec;
+    }
+
+}
@@ -0,0 +1,133 @@
+package net.bc100dev.pfc.cg;
+
+/**
+ * A preallocated ring buffer of the last N samples of a metric. Each sample holds a timestamp and a fixed
+ * number of long fields, all stored in flat primitive arrays, so recording a sample never allocates.
+ * <p>
+ * Samples are addressed by age: 0 is the latest sample, 1 the one before it, and so on.
+ */
+public class SampleRing {
+
+    private final int capacity;
+    private final int fields;
+    private final long[] timestamps;
+    private final long[] values;
+
+    private int head = -1;
+    private int count;
+
+    public SampleRing(int capacity, int fields) {
+        if (capacity < 2)
+            throw new IllegalArgumentException("A sample ring needs to hold at least 2 samples");
+
+        this.capacity = capacity;
+        this.fields = fields;
+        this.timestamps = new long[capacity];
+        this.values = new long[capacity * fields];
+    }
+
+    /**
+     * Records a sample.
+     *
+     * @param timestampNanos The time of the sample, from {@link System#nanoTime()}
+     * @param src            The field values of the sample
+     * @param offset         The index of the first field in {@code src}
+     */
+    public synchronized void record(long timestampNanos, long[] src, int offset) {
+        head = (head + 1) % capacity;
+        timestamps[head] = timestampNanos;
+        System.arraycopy(src, offset, values, head * fields, fields);
+
+        if (count < capacity)
+            count++;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized void clear() {
+        head = -1;
+        count = 0;
+    }
+
+    public synchronized long get(int age, int field) {
+        return values[slot(age) * fields + field];
+    }
+
+    public synchronized long getTimestamp(int age) {
+        return timestamps[slot(age)];
+    }
+
+    public long latest(int field) {
+        return get(0, field);
+    }
+
+    /**
+     * @return The difference of a field between the latest sample and the one before it, or 0 with less than 2 samples
+     */
+    public long delta(int field) {
+        return delta(field, 1);
+    }
+
+    /**
+     * @return The difference of a field between the latest sample and the one {@code samplesBack} samples older,
+     * or 0 when not enough samples have been recorded yet
+     */
+    public synchronized long delta(int field, int samplesBack) {
+        if (samplesBack <= 0 || samplesBack >= count)
+            return 0;
+
+        return values[slot(0) * fields + field] - values[slot(samplesBack) * fields + field];
+    }
+
+    /**
+     * @return The change of a field per second between the latest two samples
+     */
+    public double rate(int field) {
+        return rate(field, 1);
+    }
+
+    /**
+     * @return The change of a field per second over the last {@code samplesBack} sample intervals
+     */
+    public synchronized double rate(int field, int samplesBack) {
+        if (samplesBack <= 0 || samplesBack >= count)
+            return 0;
+
+        long nanos = timestamps[slot(0)] - timestamps[slot(samplesBack)];
+        if (nanos <= 0)
+            return 0;
+
+        long delta = values[slot(0) * fields + field] - values[slot(samplesBack) * fields + field];
+        return delta * 1_000_000_000.0 / nanos;
+    }
+
+    /**
+     * @return The age of the oldest sample that is at most {@code windowNanos} older than the latest one,
+     * or 0 if there is no sample (or only the latest one) within the window
+     */
+    public synchronized int ageWithin(long windowNanos) {
+        if (count == 0)
+            return 0;
+
+        long latest = timestamps[slot(0)];
+        int age = 0;
+        while (age + 1 < count && latest - timestamps[slot(age + 1)] <= windowNanos)
+            age++;
+
+        return age;
+    }
+
+    private int slot(int age) {
+        if (age < 0 || age >= count)
+            throw new IndexOutOfBoundsException("Sample " + age + " out of " + count + " recorded samples");
+
+        return (head - age + capacity) % capacity;
+    }
+
+}
@@ -0,0 +1,556 @@
+package net.bc100dev.pfc.sh.cmd;
+
+import net.bc100dev.commons.Terminal;
+import net.bc100dev.commons.process.ProcessInvoke;
+import net.bc100dev.pfc.cg.CgApplyResult;
+import net.bc100dev.pfc.cg.CgAuditJournal;
+import net.bc100dev.pfc.cg.CgAuditRecord;
+import net.bc100dev.pfc.cg.CgFileParser;
+import net.bc100dev.pfc.cg.CgLauncher;
+import net.bc100dev.pfc.cg.CgOperationResult;
+import net.bc100dev.pfc.cg.CgProfile;
+import net.bc100dev.pfc.cg.CgProfileApplier;
+import net.bc100dev.pfc.cg.ControlGroup2;
+import net.bc100dev.pfc.cg.CpusetPlan;
+import net.bc100dev.pfc.cg.CpusetPlanner;
+import net.bc100dev.pfc.cg.MemoryReclaimStats;
+import net.bc100dev.pfc.cg.MemoryReclaimer;
+import net.bc100dev.pfc.cg.NumaTopology;
+import net.bc100dev.pfc.sh.ShellConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class CgManager {
+
+    private static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+    private static final long DEFAULT_RECLAIM_INTERVAL_MILLIS = 10_000;
+
+    private static CpusetPlanner cpusetPlanner;
+    private static MemoryReclaimer reclaimer;
+
+    public static int launchCmd(String[] args, List<ShellConfig> configList) {
+        if (args.length == 0) {
+            Terminal.println(Terminal.Color.YELLOW, helpCmd(), true);
+            return 1;
+        }
+
+        String[] subArgs = new String[args.length - 1];
+        System.arraycopy(args, 1, subArgs, 0, subArgs.length);
+
+        return switch (args[0]) {
+            case "freeze" -> freeze(subArgs, true);
+            case "thaw" -> freeze(subArgs, false);
+            case "teardown" -> teardown(subArgs);
+            case "apply" -> apply(subArgs);
+            case "cpuset" -> cpuset(subArgs);
+            case "reclaim" -> reclaim(subArgs);
+            case "journal" -> journal(subArgs);
+            case "run" -> run(subArgs);
+            default -> {
+                Terminal.println(Terminal.Color.RED, String.format("Unknown subcommand \"%s\"", args[0]), true);
+                yield 1;
+            }
+        };
+    }
+
+    public static String helpCmd() {
+        return """
+                cgroups <subcommand> [args]
+                    freeze <group>... [-t <millis>]    Freezes the groups and waits until they are frozen
+                    thaw <group>... [-t <millis>]      Thaws the groups and waits until they are running
+                    teardown <group>... [-t <millis>]  Kills all processes of the groups and removes them
+                    apply <profiles.json> [-n]         Applies the profiles, writing only changed values (-n: dry run)
+                    cpuset add <group> <cpus> [--isolated]
+                    cpuset remove <group>
+                    cpuset reserve <cpu list>
+                    cpuset plan | apply [-n]          Places the groups onto NUMA-aligned CPUs and applies the plan
+                    reclaim start <group>... [-i <millis>] [-r <bytes/s>] [--anon]
+                    reclaim remove <group>...
+                    reclaim status | stop              Reclaims cold memory of the groups in the background
+                    journal enable <dir> [-s <MiB>] [-r <MiB>]
+                    journal disable                    Journals every change of a control file (segment size, retention)
+                    journal query <dir> [-g <group>] [-f <file>] [-n <last>]
+                    journal at <dir> <group> <file> <time>
+                                                       Tells the value in force at a time (epoch millis or ISO date-time)
+                    run <group> [-l <file>=<value>]... <command> [args]
+                                                       Runs a command inside the group, in a group of its own with limits""";
+    }
+
+    private static int freeze(String[] args, boolean freeze) {
+        long[] timeout = {DEFAULT_TIMEOUT_MILLIS};
+        List<ControlGroup2> groups = parseGroups(args, timeout);
+        if (groups == null)
+            return 1;
+
+        return printResults(ControlGroup2.freezeAll(groups, freeze, timeout[0]), freeze ? "frozen" : "thawed");
+    }
+
+    private static int teardown(String[] args) {
+        long[] timeout = {DEFAULT_TIMEOUT_MILLIS};
+        List<ControlGroup2> groups = parseGroups(args, timeout);
+        if (groups == null)
+            return 1;
+
+        return printResults(ControlGroup2.teardownAll(groups, timeout[0]), "removed");
+    }
+
+    private static int apply(String[] args) {
+        String file = null;
+        boolean dryRun = false;
+
+        for (String arg : args) {
+            if (arg.equals("-n") || arg.equals("--dry-run"))
+                dryRun = true;
+            else
+                file = arg;
+        }
+
+        if (file == null) {
+            Terminal.println(Terminal.Color.RED, "No profile file given", true);
+            return 1;
+        }
+
+        CgApplyResult result;
+        try {
+            result = new CgProfileApplier().dryRun(dryRun).apply(CgProfile.load(new File(file)));
+        } catch (IOException ex) {
+            Terminal.println(Terminal.Color.RED, String.format("%s: %s", file, ex.getMessage()), true);
+            return 1;
+        }
+
+        return printApplyResult(result);
+    }
+
+    private static int printApplyResult(CgApplyResult result) {
+        for (CgApplyResult.Change change : result.getChanges()) {
+            if (change.file() == null)
+                Terminal.println(Terminal.Color.CYAN, String.format("%s: created", change.cgroup()), true);
+            else
+                Terminal.println(Terminal.Color.YELLOW, String.format("%s: %s \"%s\" -> \"%s\"", change.cgroup(),
+                        change.file(), change.oldValue() == null ? "" : change.oldValue(), change.newValue()), true);
+        }
+
+        for (Map.Entry<String, Exception> error : result.getErrors().entrySet())
+            Terminal.println(Terminal.Color.RED, String.format("%s: %s", error.getKey(), error.getValue().getMessage()), true);
+
+        Terminal.println(result.getErrors().isEmpty() ? Terminal.Color.GREEN : Terminal.Color.RED,
+                String.format("%d change(s)%s, %d read(s), %d write(s) in %.3f ms", result.getChanges().size(),
+                        result.isDryRun() ? " (dry run)" : "", result.getReads(), result.getWrites(),
+                        result.getElapsedNanos() / 1_000_000.0), true);
+
+        return result.getErrors().isEmpty() ? 0 : 1;
+    }
+
+    private static int cpuset(String[] args) {
+        if (args.length == 0) {
+            Terminal.println(Terminal.Color.YELLOW, helpCmd(), true);
+            return 1;
+        }
+
+        try {
+            if (cpusetPlanner == null)
+                cpusetPlanner = new CpusetPlanner();
+        } catch (IOException ex) {
+            Terminal.println(Terminal.Color.RED, String.format("Could not read the CPU topology: %s", ex.getMessage()), true);
+            return 1;
+        }
+
+        try {
+            switch (args[0]) {
+                case "add" -> {
+                    if (args.length < 3) {
+                        Terminal.println(Terminal.Color.RED, "Usage: cpuset add <group> <cpus> [--isolated]", true);
+                        return 1;
+                    }
+
+                    boolean isolated = args.length > 3 && args[3].equals("--isolated");
+                    cpusetPlanner.add(args[1], Integer.parseInt(args[2]), isolated);
+                }
+                case "remove" -> {
+                    if (args.length < 2) {
+                        Terminal.println(Terminal.Color.RED, "Usage: cpuset remove <group>", true);
+                        return 1;
+                    }
+
+                    cpusetPlanner.remove(args[1]);
+                }
+                case "reserve" -> {
+                    if (args.length < 2) {
+                        Terminal.println(Terminal.Color.RED, "Usage: cpuset reserve <cpu list>", true);
+                        return 1;
+                    }
+
+                    cpusetPlanner.reserve(NumaTopology.parseCpuList(args[1]));
+                }
+                case "plan" -> {
+                    System.out.print(cpusetPlanner.plan().describe());
+                    return 0;
+                }
+                case "apply" -> {
+                    boolean dryRun = args.length > 1 && (args[1].equals("-n") || args[1].equals("--dry-run"));
+                    CpusetPlan plan = cpusetPlanner.plan();
+
+                    System.out.print(plan.describe());
+                    return printApplyResult(cpusetPlanner.apply(plan, dryRun));
+                }
+                default -> {
+                    Terminal.println(Terminal.Color.RED, String.format("Unknown cpuset subcommand \"%s\"", args[0]), true);
+                    return 1;
+                }
+            }
+        } catch (IllegalArgumentException ex) {
+            Terminal.println(Terminal.Color.RED, ex.getMessage(), true);
+            return 1;
+        }
+
+        return 0;
+    }
+
+    private static int reclaim(String[] args) {
+        if (args.length == 0) {
+            Terminal.println(Terminal.Color.YELLOW, helpCmd(), true);
+            return 1;
+        }
+
+        switch (args[0]) {
+            case "start" -> {
+                long interval = DEFAULT_RECLAIM_INTERVAL_MILLIS;
+                long rate = -1;
+                boolean anon = false;
+                List<String> names = new ArrayList<>();
+
+                for (int i = 1; i < args.length; i++) {
+                    String arg = args[i];
+
+                    if (arg.equals("-i") && i + 1 < args.length) {
+                        try {
+                            interval = Long.parseLong(args[++i]);
+                        } catch (NumberFormatException ex) {
+                            interval = -1;
+                        }
+
+                        if (interval <= 0) {
+                            Terminal.println(Terminal.Color.RED, String.format("Invalid interval \"%s\"", args[i]), true);
+                            return 1;
+                        }
+                    } else if (arg.equals("-r") && i + 1 < args.length) {
+                        rate = CgFileParser.parseSize(args[++i]);
+                        if (rate <= 0 || rate == CgFileParser.MAX) {
+                            Terminal.println(Terminal.Color.RED, String.format("Invalid rate \"%s\"", args[i]), true);
+                            return 1;
+                        }
+                    } else if (arg.equals("--anon"))
+                        anon = true;
+                    else
+                        names.add(arg);
+                }
+
+                if (reclaimer == null)
+                    reclaimer = new MemoryReclaimer();
+
+                reclaimer.includeAnon(anon);
+                if (rate > 0)
+                    reclaimer.rateLimit(rate);
+
+                for (String name : names) {
+                    try {
+                        reclaimer.add(ControlGroup2.load(name));
+                    } catch (IOException ex) {
+                        Terminal.println(Terminal.Color.RED, String.format("%s: %s", name, ex.getMessage()), true);
+                        return 1;
+                    }
+                }
+
+                if (reclaimer.getGroups().isEmpty()) {
+                    Terminal.println(Terminal.Color.RED, "No control groups given", true);
+                    return 1;
+                }
+
+                if (!reclaimer.isRunning()) {
+                    reclaimer.start(interval);
+                    Terminal.println(Terminal.Color.GREEN, String.format("Reclaiming from %d group(s) every %d ms in the background",
+                            reclaimer.getGroups().size(), interval), true);
+                } else
+                    Terminal.println(Terminal.Color.GREEN, String.format("Reclaiming from %d group(s)", reclaimer.getGroups().size()), true);
+            }
+            case "remove" -> {
+                if (reclaimer != null) {
+                    for (int i = 1; i < args.length; i++)
+                        reclaimer.remove(args[i]);
+                }
+            }
+            case "stop" -> {
+                if (reclaimer == null || !reclaimer.isRunning()) {
+                    Terminal.println(Terminal.Color.YELLOW, "The reclaimer is not running", true);
+                    return 1;
+                }
+
+                reclaimer.stop();
+                Terminal.println(Terminal.Color.GREEN, String.format("Stopped after reclaiming %d MiB",
+                        reclaimer.getTotalReclaimed() >> 20), true);
+            }
+            case "status" -> {
+                if (reclaimer == null) {
+                    Terminal.println(Terminal.Color.YELLOW, "The reclaimer has not been started", true);
+                    return 1;
+                }
+
+                for (MemoryReclaimStats stats : reclaimer.getStats().values())
+                    Terminal.println(Terminal.Color.CYAN, String.format("%s: reclaimed %d KiB in %d request(s) (%d partial), refaulted %d KiB (%.1f%%)",
+                            stats.cgroup(), stats.reclaimedBytes() >> 10, stats.requests(), stats.partial(),
+                            stats.refaultedBytes() >> 10, stats.refaultRatio() * 100), true);
+
+                Terminal.println(reclaimer.isRunning() ? Terminal.Color.GREEN : Terminal.Color.YELLOW,
+                        String.format("%s, %d pass(es), %d KiB in total, budget at %.0f%%",
+                                reclaimer.isRunning() ? "Running" : "Stopped", reclaimer.getPasses(),
+                                reclaimer.getTotalReclaimed() >> 10, reclaimer.getBudgetScale() * 100), true);
+            }
+            default -> {
+                Terminal.println(Terminal.Color.RED, String.format("Unknown reclaim subcommand \"%s\"", args[0]), true);
+                return 1;
+            }
+        }
+
+        return 0;
+    }
+
+    private static int journal(String[] args) {
+        if (args.length == 0) {
+            Terminal.println(Terminal.Color.YELLOW, helpCmd(), true);
+            return 1;
+        }
+
+        try {
+            switch (args[0]) {
+                case "enable" -> {
+                    if (args.length < 2) {
+                        Terminal.println(Terminal.Color.RED, "No journal directory given", true);
+                        return 1;
+                    }
+
+                    long segmentSize = CgAuditJournal.DEFAULT_SEGMENT_SIZE;
+                    long retention = CgAuditJournal.DEFAULT_RETENTION;
+
+                    for (int i = 2; i < args.length; i++) {
+                        if (args[i].equals("-s") && i + 1 < args.length)
+                            segmentSize = Long.parseLong(args[++i]) << 20;
+                        else if (args[i].equals("-r") && i + 1 < args.length)
+                            retention = Long.parseLong(args[++i]) << 20;
+                    }
+
+                    CgAuditJournal journal = CgAuditJournal.open(Path.of(args[1]), segmentSize, retention);
+                    CgAuditJournal previous = ControlGroup2.setJournal(journal);
+                    if (previous != null)
+                        previous.close();
+
+                    Terminal.println(Terminal.Color.GREEN, String.format("Journaling control file changes into %s", args[1]), true);
+                }
+                case "disable" -> {
+                    CgAuditJournal previous = ControlGroup2.setJournal(null);
+                    if (previous == null) {
+                        Terminal.println(Terminal.Color.YELLOW, "No journal is active", true);
+                        return 1;
+                    }
+
+                    previous.close();
+                    Terminal.println(Terminal.Color.GREEN, String.format("Stopped journaling into %s", previous.getDirectory()), true);
+                }
+                case "query" -> {
+                    if (args.length < 2) {
+                        Terminal.println(Terminal.Color.RED, "No journal directory given", true);
+                        return 1;
+                    }
+
+                    String group = null, file = null;
+                    int last = Integer.MAX_VALUE;
+
+                    for (int i = 2; i < args.length; i++) {
+                        if (args[i].equals("-g") && i + 1 < args.length)
+                            group = args[++i];
+                        else if (args[i].equals("-f") && i + 1 < args.length)
+                            file = args[++i];
+                        else if (args[i].equals("-n") && i + 1 < args.length)
+                            last = Integer.parseInt(args[++i]);
+                    }
+
+                    List<CgAuditRecord> records = CgAuditJournal.query(Path.of(args[1]), group, file, Long.MIN_VALUE, Long.MAX_VALUE);
+                    for (CgAuditRecord record : records.subList(Math.max(0, records.size() - last), records.size())) {
+                        if (record.kind() == CgAuditRecord.Kind.FAILED)
+                            Terminal.println(Terminal.Color.RED, String.format("%s #%d %s/%s: write of #%d failed",
+                                    record.timestamp(), record.seq(), record.cgroup(), record.file(), record.ref()), true);
+                        else
+                            Terminal.println(Terminal.Color.CYAN, String.format("%s #%d %s/%s: %s -> %s",
+                                    record.timestamp(), record.seq(), record.cgroup(), record.file(),
+                                    printable(record.oldValue()), printable(record.newValue())), true);
+                    }
+                }
+                case "at" -> {
+                    if (args.length < 5) {
+                        Terminal.println(Terminal.Color.RED, "Usage: journal at <dir> <group> <file> <time>", true);
+                        return 1;
+                    }
+
+                    long micros;
+                    try {
+                        micros = Long.parseLong(args[4]) * 1000;
+                    } catch (NumberFormatException ex) {
+                        try {
+                            Instant instant = LocalDateTime.parse(args[4]).atZone(ZoneId.systemDefault()).toInstant();
+                            micros = instant.getEpochSecond() * 1_000_000 + instant.getNano() / 1000;
+                        } catch (DateTimeParseException dex) {
+                            Terminal.println(Terminal.Color.RED, String.format("Invalid time \"%s\"", args[4]), true);
+                            return 1;
+                        }
+                    }
+
+                    String value = CgAuditJournal.valueAt(Path.of(args[1]), args[2], args[3], micros);
+                    if (value == null) {
+                        Terminal.println(Terminal.Color.YELLOW, "The journal has no change of the file before that time", true);
+                        return 1;
+                    }
+
+                    Terminal.println(Terminal.Color.GREEN, printable(value), true);
+                }
+                default -> {
+                    Terminal.println(Terminal.Color.RED, String.format("Unknown journal subcommand \"%s\"", args[0]), true);
+                    return 1;
+                }
+            }
+        } catch (IOException | IllegalArgumentException ex) {
+            // NumberFormatException included
+            Terminal.println(Terminal.Color.RED, ex.getMessage(), true);
+            return 1;
+        }
+
+        return 0;
+    }
+
+    private static int run(String[] args) {
+        if (args.length < 2) {
+            Terminal.println(Terminal.Color.YELLOW, helpCmd(), true);
+            return 1;
+        }
+
+        try {
+            CgLauncher launcher = new CgLauncher(ControlGroup2.load(args[0])).inheritIO(true);
+
+            int i = 1;
+            for (; i + 1 < args.length && args[i].equals("-l"); i += 2) {
+                String limit = args[i + 1];
+                int eq = limit.indexOf('=');
+                if (eq <= 0) {
+                    Terminal.println(Terminal.Color.RED, String.format("Invalid limit \"%s\"", limit), true);
+                    return 1;
+                }
+
+                launcher.limit(limit.substring(0, eq), limit.substring(eq + 1));
+            }
+
+            if (i >= args.length) {
+                Terminal.println(Terminal.Color.RED, "No command given", true);
+                return 1;
+            }
+
+            File executable = new File(args[i]);
+            if (!executable.isAbsolute()) {
+                executable = null;
+                for (String dir : System.getenv().getOrDefault("PATH", "/usr/bin:/bin").split(File.pathSeparator)) {
+                    File candidate = new File(dir, args[i]);
+                    if (candidate.canExecute()) {
+                        executable = candidate;
+                        break;
+                    }
+                }
+
+                if (executable == null) {
+                    Terminal.println(Terminal.Color.RED, String.format("Command \"%s\" not found", args[i]), true);
+                    return 1;
+                }
+            }
+
+            String[] cmdArgs = new String[args.length - i];
+            System.arraycopy(args, i, cmdArgs, 0, cmdArgs.length);
+
+            ProcessInvoke invoke = launcher.launch(executable, true, cmdArgs);
+
+            if (invoke.getExitCode() == CgLauncher.JOIN_FAILED)
+                Terminal.println(Terminal.Color.RED, String.format("The command could not join \"%s\"", args[0]), true);
+
+            return invoke.getExitCode();
+        } catch (IOException | IllegalArgumentException ex) {
+            Terminal.println(Terminal.Color.RED, ex.getMessage(), true);
+            return 1;
+        }
+    }
+
+    private static String printable(String value) {
+        return value == null ? "?" : value.strip().replace("\n", "; ");
+    }
+
+    /**
+     * Loads the groups named in the arguments and reads the {@code -t <millis>} option into timeout[0].
+     *
+     * @return The groups, or null if the arguments are invalid (which has been printed already)
+     */
+    private static List<ControlGroup2> parseGroups(String[] args, long[] timeout) {
+        List<String> names = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-t") && i + 1 < args.length) {
+                try {
+                    timeout[0] = Long.parseLong(args[++i]);
+                } catch (NumberFormatException ex) {
+                    Terminal.println(Terminal.Color.RED, String.format("Invalid timeout \"%s\"", args[i]), true);
+                    return null;
+                }
+            } else
+                names.add(args[i]);
+        }
+
+        if (names.isEmpty()) {
+            Terminal.println(Terminal.Color.RED, "No control groups given", true);
+            return null;
+        }
+
+        List<ControlGroup2> groups = new ArrayList<>(names.size());
+        for (String name : names) {
+            try {
+                groups.add(ControlGroup2.load(name));
+            } catch (IOException ex) {
+                Terminal.println(Terminal.Color.RED, String.format("%s: %s", name, ex.getMessage()), true);
+                return null;
+            }
+        }
+
+        return groups;
+    }
+
+    private static int printResults(List<CgOperationResult> results, String action) {
+        int failed = 0;
+
+        for (CgOperationResult result : results) {
+            if (result.error() != null) {
+                failed++;
+                Terminal.println(Terminal.Color.RED, String.format("%s: %s", result.cgroup(), result.error().getMessage()), true);
+            } else if (!result.completed()) {
+                failed++;
+                Terminal.println(Terminal.Color.YELLOW, String.format("%s: timed out after %.3f ms",
+                        result.cgroup(), result.elapsedMillis()), true);
+            } else
+                Terminal.println(Terminal.Color.GREEN, String.format("%s: %s in %.3f ms",
+                        result.cgroup(), action, result.elapsedMillis()), true);
+        }
+
+        return failed == 0 ? 0 : 1;
+    }
+
+}
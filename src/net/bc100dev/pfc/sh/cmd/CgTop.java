@@ -0,0 +1,145 @@
+package net.bc100dev.pfc.sh.cmd;
+
+import net.bc100dev.commons.Terminal;
+import net.bc100dev.pfc.cg.CgTopSampler;
+import net.bc100dev.pfc.sh.ShellConfig;
+
+import java.io.IOException;
+import java.util.List;
+
+public class CgTop {
+
+    private static final int DEFAULT_COUNT = 20;
+    private static final long DEFAULT_INTERVAL_MILLIS = 1000;
+
+    public static int launchCmd(String[] args, List<ShellConfig> configList) {
+        int count = DEFAULT_COUNT;
+        int depth = Integer.MAX_VALUE;
+        int iterations = -1;
+        long interval = DEFAULT_INTERVAL_MILLIS;
+        String root = "";
+        CgTopSampler.Column column = CgTopSampler.Column.CPU;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                boolean hasValue = i + 1 < args.length;
+
+                switch (args[i]) {
+                    case "-k" -> count = hasValue ? Integer.parseInt(args[++i]) : count;
+                    case "-d" -> depth = hasValue ? Integer.parseInt(args[++i]) : depth;
+                    case "-n" -> iterations = hasValue ? Integer.parseInt(args[++i]) : iterations;
+                    case "-i" -> interval = hasValue ? Long.parseLong(args[++i]) : interval;
+                    case "-s" -> {
+                        CgTopSampler.Column parsed = hasValue ? parseColumn(args[++i]) : null;
+                        if (parsed == null) {
+                            Terminal.println(Terminal.Color.RED, "Unknown column (cpu, mem, read, write, io)", true);
+                            return 1;
+                        }
+
+                        column = parsed;
+                    }
+                    default -> root = args[i];
+                }
+            }
+        } catch (NumberFormatException ex) {
+            Terminal.println(Terminal.Color.RED, String.format("Invalid number: %s", ex.getMessage()), true);
+            return 1;
+        }
+
+        CgTopSampler sampler = new CgTopSampler(root, depth);
+
+        try {
+            sampler.sample();
+
+            for (int n = 0; iterations < 0 || n < iterations; n++) {
+                // a line of input switches the column or quits, without blocking the refresh
+                long wakeUp = System.currentTimeMillis() + interval;
+                while (System.currentTimeMillis() < wakeUp) {
+                    if (System.in.available() > 0) {
+                        String line = readLine().trim();
+                        if (line.equals("q"))
+                            return 0;
+
+                        CgTopSampler.Column parsed = parseColumn(line);
+                        if (parsed != null)
+                            column = parsed;
+                    }
+
+                    Thread.sleep(Math.min(50, interval));
+                }
+
+                long start = System.nanoTime();
+                sampler.sample();
+                long took = System.nanoTime() - start;
+
+                print(sampler, column, count, took);
+            }
+        } catch (IOException ex) {
+            Terminal.println(Terminal.Color.RED, ex.getMessage(), true);
+            return 1;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        return 0;
+    }
+
+    public static String helpCmd() {
+        return """
+                cgtop [group] [-k <count>] [-s <column>] [-i <millis>] [-d <depth>] [-n <iterations>]
+                    Shows the control groups using the most CPU, memory and I/O, refreshed every second.
+                    Columns: cpu, mem, read, write, io. Type a column and Enter to sort by it, or q to quit.""";
+    }
+
+    private static void print(CgTopSampler sampler, CgTopSampler.Column column, int count, long sampleNanos) {
+        Terminal.clearTerminal();
+        Terminal.println(Terminal.Color.CYAN, String.format("%d groups, %d files read in %.2f ms, sorted by %s",
+                sampler.size(), sampler.getReads(), sampleNanos / 1_000_000.0, column.name().toLowerCase()), true);
+        Terminal.println(Terminal.Color.YELLOW, String.format("%8s %10s %10s %10s  %s", "CPU%", "MEM", "READ/s", "WRITE/s", "GROUP"), true);
+
+        for (CgTopSampler.Entry entry : sampler.top(count, column)) {
+            System.out.printf("%8.1f %10s %10s %10s  %s%n", entry.cpuPercent(),
+                    entry.memory() < 0 ? "-" : formatBytes(entry.memory()),
+                    formatBytes(entry.readBytesSec()), formatBytes(entry.writeBytesSec()),
+                    entry.cgroup().isEmpty() ? "/" : entry.cgroup());
+        }
+    }
+
+    private static CgTopSampler.Column parseColumn(String str) {
+        return switch (str) {
+            case "cpu", "c" -> CgTopSampler.Column.CPU;
+            case "mem", "memory", "m" -> CgTopSampler.Column.MEMORY;
+            case "read", "r" -> CgTopSampler.Column.IO_READ;
+            case "write", "w" -> CgTopSampler.Column.IO_WRITE;
+            case "io", "i" -> CgTopSampler.Column.IO;
+            default -> null;
+        };
+    }
+
+    private static String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+
+        int c;
+        while (System.in.available() > 0 && (c = System.in.read()) != -1 && c != '\n')
+            line.append((char) c);
+
+        return line.toString();
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024)
+            return bytes + "B";
+
+        String units = "KMGTPE";
+        int unit = -1;
+        double value = bytes;
+
+        while (value >= 1024 && unit < units.length() - 1) {
+            value /= 1024;
+            unit++;
+        }
+
+        return String.format("%.1f%c", value, units.charAt(unit));
+    }
+
+}